@@ -16,10 +16,22 @@
  */
 package org.apache.nifi.pulsar;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.impl.PulsarClientImpl;
+import org.apache.pulsar.common.api.proto.PulsarApi.CommandGetTopicsOfNamespace.Mode;
+import org.apache.pulsar.common.naming.NamespaceName;
 
 @Tags({"Pulsar", "client", "pool"})
 @CapabilityDescription("Provides the ability to create Pulsar Producer / Consumer instances on demand, "
@@ -28,6 +40,71 @@ public interface PulsarClientService extends ControllerService {
 
     public PulsarClient getPulsarClient();
 
+    /**
+     * Returns the client to create the producers and consumers of a topic with. A service that spreads the topics
+     * across several clients always returns the same client for the same topic. By default, this is the only client.
+     *
+     * @param topic - The topic, or the topics pattern, of the producer or consumer.
+     */
+    public default PulsarClient getPulsarClient(String topic) {
+        return getPulsarClient();
+    }
+
     public String getPulsarBrokerRootURL();
 
+    /**
+     * @return the budget of message bytes that the producers and consumers of all of the processors using this
+     * service draw from. By default, there is no budget.
+     */
+    public default PulsarMemoryLimiter getMemoryLimiter() {
+        return PulsarMemoryLimiter.UNLIMITED;
+    }
+
+    /**
+     * @return the stats that the processors using this service register their producers and consumers with, and
+     * push their counters to. By default, stats are not collected.
+     */
+    public default PulsarClientStats getStats() {
+        return PulsarClientStats.DISABLED;
+    }
+
+    /**
+     * Lists the persistent topics of a namespace, such as "public/default", including the individual partitions of
+     * partitioned topics. This goes through the lookup service of the Pulsar client, in place of an admin client,
+     * so it only needs the permissions of a consumer of the namespace.
+     */
+    public default CompletableFuture<List<String>> getTopics(String namespace) {
+        final PulsarClient client = getPulsarClient();
+
+        if (!(client instanceof PulsarClientImpl)) {
+            final CompletableFuture<List<String>> unsupported = new CompletableFuture<>();
+            unsupported.completeExceptionally(new UnsupportedOperationException("Unable to list the topics of " + namespace
+                + " with a " + client.getClass().getName()));
+            return unsupported;
+        }
+        return ((PulsarClientImpl) client).getLookup().getTopicsUnderNamespace(NamespaceName.get(namespace), Mode.PERSISTENT);
+    }
+
+    /**
+     * Returns a producer that may be shared with the other processors that use this service, so that they publish
+     * through a single batching producer for each topic. The producer must be closed once it is no longer used, which
+     * only closes the shared producer when no other processor is using it. By default, producers are not shared.
+     *
+     * @param key - Identifies the topic and every setting of the builder, producers are only shared for equal keys.
+     */
+    public default <T> CompletableFuture<Producer<T>> getSharedProducer(String key, ProducerBuilder<T> builder) {
+        return builder.createAsync();
+    }
+
+    /**
+     * Returns a consumer that may be shared with the other processors that use this service. The consumer must be
+     * closed once it is no longer used, which only closes the shared consumer when no other processor is using it.
+     * By default, consumers are not shared.
+     *
+     * @param key - Identifies the topics, the subscription and every other setting of the builder.
+     */
+    public default <T> CompletableFuture<Consumer<T>> getSharedConsumer(String key, ConsumerBuilder<T> builder) {
+        return builder.subscribeAsync();
+    }
+
 }
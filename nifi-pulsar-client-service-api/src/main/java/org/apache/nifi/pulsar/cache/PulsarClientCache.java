@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread-safe cache of Pulsar producers or consumers.
+ * <p>
+ * Hits are a lookup in a ConcurrentHashMap, and do not lock. On a miss, the thread that inserts the entry for the key
+ * creates the value, while concurrent requests for the same key wait for that single creation to complete. Values
+ * that are evicted, either because the cache holds more than its maximum size or because they were not used for the
+ * idle timeout, are closed asynchronously so that eviction never blocks the caller on a round trip to the broker.
+ * Creations that return null are not cached. Creations that fail are kept until a caller has been handed the failed
+ * future, and for at least {@link #FAILURE_RETENTION_MILLIS}, so that a caller that only polls whether the creation
+ * is done, rather than waiting for it, gets to see the failure instead of always finding a new creation in progress.
+ */
+public class PulsarClientCache<K, V extends Closeable> {
+
+    public static final int DEFAULT_MAX_SIZE = 20;
+    public static final long FAILURE_RETENTION_MILLIS = 1000;
+
+    private static final ExecutorService CLOSE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "pulsar-client-cache-close");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates the value for a key, on the calling thread.
+     */
+    @FunctionalInterface
+    public interface Loader<K, V, E extends Exception> {
+        V load(K key) throws E;
+    }
+
+    private static final long FAILURE_RETENTION_NANOS = TimeUnit.MILLISECONDS.toNanos(FAILURE_RETENTION_MILLIS);
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final Executor closeExecutor;
+    private final LongSupplier clock;
+    private final AtomicLong lastSweep;
+    private volatile Consumer<? super V> closeListener = value -> { };
+
+    public PulsarClientCache(int maxSize) {
+        this(maxSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param idleTimeout - How long a value may go unused before it is evicted, zero means values never expire.
+     */
+    public PulsarClientCache(int maxSize, long idleTimeout, TimeUnit unit) {
+        this(maxSize, idleTimeout, unit, CLOSE_EXECUTOR, System::nanoTime);
+    }
+
+    PulsarClientCache(int maxSize, long idleTimeout, TimeUnit unit, Executor closeExecutor, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("'maxSize' must be a positive number");
+        }
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("'idleTimeout' must not be negative");
+        }
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.closeExecutor = closeExecutor;
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Sets a listener that is called with each value that is removed from the cache, just before it is closed.
+     */
+    public void setCloseListener(Consumer<? super V> listener) {
+        this.closeListener = listener;
+    }
+
+    /**
+     * @return the value for the key, or null if it is not cached or is still being created.
+     */
+    public V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        touch(entry);
+        return entry.getNow();
+    }
+
+    /**
+     * Returns the value for the key, creating it with the loader on a miss. If another thread is already
+     * creating the value, this waits for that creation rather than creating a second value.
+     *
+     * @return the value, or null if the loader returned null.
+     * @throws E if the loader failed, either on this thread or on the thread that was creating the value.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V get(K key, Loader<? super K, ? extends V, E> loader) throws E {
+        final CompletableFuture<V> future = getAsync(key, k -> {
+            try {
+                return CompletableFuture.completedFuture(loader.load(k));
+            } catch (final Exception e) {
+                final CompletableFuture<V> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        });
+
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // The loader only throws E or unchecked exceptions
+            throw (E) cause;
+        }
+    }
+
+    /**
+     * Returns the value for the key, starting its creation with the loader on a miss. The loader is called at
+     * most once for concurrent misses on the same key, and every caller receives the same future.
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, CompletableFuture<? extends V>> loader) {
+        Entry<V> entry = entries.get(key);
+
+        if (entry != null && entry.failureSeen && clock.getAsLong() - entry.failedAt >= FAILURE_RETENTION_NANOS) {
+            // Retry a failed creation, now that a caller has seen it fail
+            entries.remove(key, entry);
+            entry = entries.get(key);
+        }
+
+        if (entry == null) {
+            final Entry<V> created = new Entry<>(clock.getAsLong());
+            entry = entries.putIfAbsent(key, created);
+
+            if (entry == null) {
+                load(key, created, loader);
+                evict(key);
+                entry = created;
+            }
+        }
+
+        touch(entry);
+        if (entry.future.isCompletedExceptionally()) {
+            entry.failureSeen = true;
+        }
+        return entry.future;
+    }
+
+    private void load(K key, Entry<V> entry, Function<? super K, CompletableFuture<? extends V>> loader) {
+        final CompletableFuture<? extends V> loading;
+        try {
+            loading = Objects.requireNonNull(loader.apply(key), "The loader returned no future");
+        } catch (final RuntimeException e) {
+            entry.failedAt = clock.getAsLong();
+            entry.future.completeExceptionally(e);
+            return;
+        }
+
+        loading.whenComplete((value, failure) -> {
+            if (failure != null) {
+                entry.failedAt = clock.getAsLong();
+                entry.future.completeExceptionally(failure);
+                return;
+            }
+
+            if (value == null) {
+                entries.remove(key, entry);
+            }
+            entry.future.complete(value);
+        });
+    }
+
+    /**
+     * Removes the value for the key, if it is the given value, and closes it.
+     *
+     * @return true if the value was removed.
+     */
+    public boolean remove(K key, V value) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null || entry.getNow() != value || !entries.remove(key, entry)) {
+            return false;
+        }
+
+        close(entry);
+        return true;
+    }
+
+    /**
+     * @return the values that have been created, excluding those that are still being created.
+     */
+    public List<V> values() {
+        final List<V> values = new ArrayList<>(entries.size());
+        for (Entry<V> entry : entries.values()) {
+            final V value = entry.getNow();
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all of the values, and waits for them to be closed.
+     */
+    public void clear() {
+        final List<CompletableFuture<Void>> closing = new ArrayList<>(entries.size());
+
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (entries.remove(entry.getKey(), entry.getValue())) {
+                closing.add(close(entry.getValue()));
+            }
+        }
+
+        try {
+            CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0])).join();
+        } catch (final CompletionException e) {
+            // Failures to close are ignored, just like failures to create
+        }
+    }
+
+    /**
+     * Marks the entry as used, and evicts the idle entries if that has not been done for a while.
+     */
+    private void touch(Entry<V> entry) {
+        final long now = clock.getAsLong();
+        entry.lastAccess = now;
+
+        if (idleTimeoutNanos > 0) {
+            final long last = lastSweep.get();
+            if (now - last > idleTimeoutNanos / 2 && lastSweep.compareAndSet(last, now)) {
+                evict(null);
+            }
+        }
+    }
+
+    /**
+     * Evicts the idle entries, followed by the least recently used entries while the cache holds more than its
+     * maximum size. The entry for the given key, which was just added, is never evicted.
+     */
+    private void evict(K added) {
+        final long now = clock.getAsLong();
+
+        if (idleTimeoutNanos > 0) {
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                if (!entry.getKey().equals(added) && now - entry.getValue().lastAccess > idleTimeoutNanos
+                        && entries.remove(entry.getKey(), entry.getValue())) {
+                    close(entry.getValue());
+                }
+            }
+        }
+
+        while (entries.size() > maxSize) {
+            Map.Entry<K, Entry<V>> eldest = null;
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                if (!entry.getKey().equals(added) && (eldest == null || entry.getValue().lastAccess < eldest.getValue().lastAccess)) {
+                    eldest = entry;
+                }
+            }
+
+            if (eldest == null) {
+                return;
+            }
+            if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                close(eldest.getValue());
+            }
+        }
+    }
+
+    private CompletableFuture<Void> close(Entry<V> entry) {
+        return entry.future.thenAcceptAsync(value -> {
+            if (value == null) {
+                return;
+            }
+            try {
+                closeListener.accept(value);
+                value.close();
+            } catch (final IOException e) {
+                // The value is no longer used, so there is nothing left to do
+            }
+        }, closeExecutor);
+    }
+
+    private static class Entry<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private volatile long lastAccess;
+        // Set before the future fails
+        private volatile long failedAt;
+        private volatile boolean failureSeen;
+
+        Entry(long lastAccess) {
+            this.lastAccess = lastAccess;
+        }
+
+        /**
+         * @return the value, or null if it is still being created or its creation failed.
+         */
+        V getNow() {
+            return future.isCompletedExceptionally() ? null : future.getNow(null);
+        }
+    }
+}
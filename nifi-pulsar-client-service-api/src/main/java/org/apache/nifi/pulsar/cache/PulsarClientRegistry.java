@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A reference counted registry of Pulsar producers or consumers, that lets several processors share a single
+ * instance for the same topic and configuration.
+ * <p>
+ * Each call to {@link #acquire} returns its own handle to the shared instance. Closing a handle releases its
+ * reference rather than closing the instance, which is closed once the last handle is closed. This way a processor
+ * can cache and close the handles just as it would instances of its own.
+ * <p>
+ * The registry is typed by the wildcard of a generic interface, e.g. {@code Producer<?>}, while each acquire is
+ * typed by the parameterization that its instance was created with, e.g. {@code Producer<byte[]>}. The key must
+ * identify that parameterization, since the handles of a key share its instance.
+ */
+public class PulsarClientRegistry<V extends Closeable> {
+
+    private final Class<? super V> type;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param type - The interface that the handles implement, e.g. Producer.class.
+     */
+    public PulsarClientRegistry(Class<? super V> type) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException("'type' must be an interface");
+        }
+        this.type = type;
+    }
+
+    /**
+     * Returns a handle to the instance for the key, creating the instance on a miss. An instance that has been created
+     * but is no longer valid, e.g. a producer that lost its connection, is replaced by a new one, while the handles
+     * already acquired for it keep on working until they are closed.
+     *
+     * @param key - Identifies the topic and every configuration that the instance was created with.
+     * @return a future that completes with a handle, or fails if the instance could not be created.
+     */
+    public <T extends V> CompletableFuture<T> acquire(String key, Supplier<CompletableFuture<T>> creator, Predicate<? super T> valid) {
+        final Entry entry;
+
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.future.isDone()
+                    && (existing.future.isCompletedExceptionally() || !valid.test(existing.<T>future().join()))) {
+                // Detach the entry, it is closed when the last of its handles is
+                entries.remove(key);
+                existing = null;
+            }
+
+            if (existing == null) {
+                existing = new Entry(key, creator.get());
+                entries.put(key, existing);
+            }
+
+            existing.references++;
+            entry = existing;
+        }
+
+        return entry.<T>future().handle((value, failure) -> {
+            if (failure != null) {
+                entry.release();
+                throw new CompletionException(failure);
+            }
+            return newHandle(entry, value);
+        });
+    }
+
+    /**
+     * @return the number of shared instances.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Closes all of the instances, whether or not handles to them are still open.
+     */
+    public void clear() {
+        final List<Entry> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(entries.values());
+            cleared.forEach(entry -> entry.closed = true);
+            entries.clear();
+        }
+        cleared.forEach(Entry::close);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends V> T newHandle(Entry entry, T value) {
+        final AtomicBoolean released = new AtomicBoolean();
+
+        final InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (released.compareAndSet(false, true)) {
+                        entry.release();
+                    }
+                    return null;
+                case "closeAsync":
+                    if (released.compareAndSet(false, true)) {
+                        return CompletableFuture.runAsync(entry::release);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                default:
+                    return invoke(value, method, args);
+            }
+        };
+        // The proxy implements the interface of the instance, which is the erasure of every type it is acquired as
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class Entry {
+        private final String key;
+        private final CompletableFuture<? extends V> future;
+        // Guarded by the registry
+        private int references;
+        private boolean closed;
+
+        Entry(String key, CompletableFuture<? extends V> future) {
+            this.key = key;
+            this.future = future;
+        }
+
+        /**
+         * @return the future of the instance, as the type that the key was first acquired as.
+         */
+        @SuppressWarnings("unchecked")
+        <T extends V> CompletableFuture<T> future() {
+            return (CompletableFuture<T>) future;
+        }
+
+        void release() {
+            synchronized (PulsarClientRegistry.this) {
+                if (--references > 0 || closed) {
+                    return;
+                }
+                closed = true;
+                entries.remove(key, this);
+            }
+            close();
+        }
+
+        void close() {
+            future.thenAccept(value -> {
+                try {
+                    value.close();
+                } catch (final IOException e) {
+                    // The instance is no longer used, so there is nothing left to do
+                }
+            });
+        }
+    }
+}
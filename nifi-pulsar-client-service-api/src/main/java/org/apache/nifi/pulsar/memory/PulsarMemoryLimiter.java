@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.memory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A budget of message payload bytes, that the producers and consumers of all of the processors using a client
+ * service draw from while they hold messages in memory.
+ * <p>
+ * Producers acquire the bytes of a message before sending it, waiting for other messages to be acknowledged if the
+ * budget is exhausted, and release them once the send completes. Consumers cannot know the size of a message before
+ * receiving it, so they reserve the bytes of the messages they hold, and are paused through a {@link Listener} while
+ * the budget is exhausted, so that the brokers stop dispatching messages to them. Messages that were already prefetched
+ * into their receiver queues are not counted until they are received.
+ * A single message that is larger than the whole budget is let through once nothing else is held, so that it cannot
+ * block forever.
+ */
+public class PulsarMemoryLimiter {
+
+    /**
+     * A limiter that neither limits nor tracks the bytes held, for services that do not support a memory limit.
+     */
+    public static final PulsarMemoryLimiter UNLIMITED = new PulsarMemoryLimiter(0) {
+        @Override
+        public boolean tryAcquire(long bytes) {
+            return true;
+        }
+
+        @Override
+        public void reserve(long bytes) {
+        }
+
+        @Override
+        public void release(long bytes) {
+        }
+
+        @Override
+        public void addListener(Listener listener) {
+        }
+    };
+
+    /**
+     * Notified whenever the budget becomes exhausted, or available again. The notifications are made one at a time,
+     * on the thread that acquired or released the bytes, so they must not block.
+     */
+    public interface Listener {
+
+        void onExhausted();
+
+        void onAvailable();
+    }
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+    // Only changed while holding the monitor of the limiter
+    private volatile int waiters;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Only changed while holding the lock on the listeners
+    private volatile boolean exhausted;
+
+    /**
+     * @param limit - The maximum number of bytes held, zero or less means the bytes are only tracked.
+     */
+    public PulsarMemoryLimiter(long limit) {
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * @return the maximum number of bytes held, or zero if there is no limit.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of bytes currently held.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return true if no more bytes can be acquired until some are released.
+     */
+    public boolean isExhausted() {
+        return limit > 0 && used.get() >= limit;
+    }
+
+    /**
+     * Acquires the bytes if they fit in the budget, without waiting.
+     *
+     * @return true if the bytes were acquired, and must be released.
+     */
+    public boolean tryAcquire(long bytes) {
+        if (limit == 0) {
+            used.addAndGet(bytes);
+            return true;
+        }
+
+        long current;
+        do {
+            current = used.get();
+            if (current > 0 && current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Acquires the bytes, waiting up to the timeout for other bytes to be released if they do not fit in the budget.
+     *
+     * @return true if the bytes were acquired, and must be released.
+     */
+    public boolean acquire(long bytes, long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryAcquire(bytes)) {
+            return true;
+        }
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            waiters++;
+            try {
+                while (!tryAcquire(bytes)) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                return true;
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Adds bytes that are already held, such as those of received messages, even if they exceed the budget.
+     */
+    public void reserve(long bytes) {
+        used.addAndGet(bytes);
+        notifyListeners();
+    }
+
+    /**
+     * Releases bytes that were acquired or reserved.
+     */
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+        notifyListeners();
+
+        if (waiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Adds a listener, that is told right away if the budget is already exhausted.
+     */
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+            if (isExhausted() != exhausted) {
+                // The state is not tracked while there are no listeners
+                notifyListeners();
+            } else if (exhausted) {
+                listener.onExhausted();
+            }
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        if (listeners.isEmpty() || isExhausted() == exhausted) {
+            return;
+        }
+
+        synchronized (listeners) {
+            // Check again, the state may have changed back while waiting for the lock
+            final boolean current = isExhausted();
+            if (current == exhausted) {
+                return;
+            }
+
+            exhausted = current;
+            for (final Listener listener : listeners) {
+                if (current) {
+                    listener.onExhausted();
+                } else {
+                    listener.onAvailable();
+                }
+            }
+        }
+    }
+}
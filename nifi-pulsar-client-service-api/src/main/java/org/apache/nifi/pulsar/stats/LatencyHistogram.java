@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in milliseconds, that many threads can record into without locking.
+ * <p>
+ * Every power of two is split into 8 buckets of equal width, so any percentile is reported within 12.5% of its
+ * actual value, while the whole range of a long fits in a few hundred buckets. Recording a value only increments
+ * its bucket and the sum, and the percentiles are computed from a {@link Snapshot} of the buckets when they are read.
+ */
+public class LatencyHistogram {
+
+    /**
+     * A histogram that ignores every value, for stats that are disabled.
+     */
+    public static final LatencyHistogram DISABLED = new LatencyHistogram() {
+        @Override
+        public void record(long millis) {
+        }
+    };
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency, where negative latencies caused by clock skew between hosts are recorded as zero.
+     */
+    public void record(long millis) {
+        final long value = Math.max(0, millis);
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until either this value or a larger one is the maximum
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the largest latency recorded, or zero if none were recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile - The percentile, between 0 and 100.
+     * @return the latency that the given percentage of the latencies recorded are at or below, or zero if none were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        return snapshot().getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return a copy of the buckets, so that the values read from it are consistent with each other.
+     */
+    public Snapshot snapshot() {
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        return new Snapshot(snapshot, count, sum.get(), max.get());
+    }
+
+    /**
+     * The latencies recorded in a histogram up to some point in time.
+     */
+    public static final class Snapshot {
+
+        public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of all of the latencies recorded.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the number of latencies recorded at or below the value, which is exact if the value is one less than
+         * a power of two, and otherwise also counts latencies up to 12.5% above it.
+         */
+        public long getCountAtOrBelow(long value) {
+            if (value < 0) {
+                return 0;
+            }
+
+            final int last = index(value);
+            long seen = 0;
+            for (int i = 0; i <= last; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+
+        /**
+         * @see LatencyHistogram#getValueAtPercentile(double)
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.stats;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.impl.ConsumerBase;
+import org.apache.pulsar.client.impl.ProducerImpl;
+
+/**
+ * Collects the statistics of the producers and consumers of all of the processors that use a client service,
+ * along with the counters and latencies that the processors push for each topic.
+ * <p>
+ * The processors register their producers and consumers when they create them, and remove them once they close
+ * them. Nothing is read from them until {@link #getTopicStats()} is called, and the counters are striped so that
+ * the processors can update them from many threads without contending.
+ */
+public class PulsarClientStats {
+
+    public static final String MESSAGES_SENT = "messages.sent";
+    public static final String BYTES_SENT = "bytes.sent";
+    public static final String SEND_FAILURES = "send.failures";
+    public static final String MESSAGES_RECEIVED = "messages.received";
+    public static final String BYTES_RECEIVED = "bytes.received";
+
+    // The time in nanoseconds that the processors spent in each stage of consuming and publishing
+    public static final String CONSUME_RECEIVE_NANOS = "consume.receive.nanos";
+    public static final String CONSUME_WRITE_NANOS = "consume.write.nanos";
+    public static final String CONSUME_COMMIT_NANOS = "consume.commit.nanos";
+    public static final String CONSUME_ACK_NANOS = "consume.ack.nanos";
+    public static final String PUBLISH_READ_NANOS = "publish.read.nanos";
+    public static final String PUBLISH_SERIALIZE_NANOS = "publish.serialize.nanos";
+    public static final String PUBLISH_SEND_NANOS = "publish.send.nanos";
+    public static final String PUBLISH_ACK_WAIT_NANOS = "publish.ack.wait.nanos";
+
+    /**
+     * Stats that ignore everything, for services that do not collect stats.
+     */
+    public static final PulsarClientStats DISABLED = new PulsarClientStats() {
+        @Override
+        public void addProducer(Producer<?> producer) {
+        }
+
+        @Override
+        public void addConsumer(Consumer<?> consumer) {
+        }
+
+        @Override
+        public Counters getCounters(String topic) {
+            return Counters.DISABLED;
+        }
+
+        @Override
+        public LatencyHistogram getPublishLatency(String topic) {
+            return LatencyHistogram.DISABLED;
+        }
+
+        @Override
+        public LatencyHistogram getEventLatency(String topic) {
+            return LatencyHistogram.DISABLED;
+        }
+    };
+
+    private final Set<Producer<?>> producers = ConcurrentHashMap.newKeySet();
+    private final Set<Consumer<?>> consumers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> publishLatencies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> eventLatencies = new ConcurrentHashMap<>();
+
+    public void addProducer(Producer<?> producer) {
+        producers.add(producer);
+    }
+
+    public void removeProducer(Producer<?> producer) {
+        producers.remove(producer);
+    }
+
+    public void addConsumer(Consumer<?> consumer) {
+        consumers.add(consumer);
+    }
+
+    public void removeConsumer(Consumer<?> consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * @return the counters of the topic, which the processors should keep rather than look up for every message.
+     */
+    public Counters getCounters(String topic) {
+        final Counters existing = counters.get(topic);
+        return (existing != null) ? existing : counters.computeIfAbsent(topic, t -> new Counters());
+    }
+
+    /**
+     * @return the histogram of the time from the publishing of the messages of the topic until the consume processors
+     * handed them to the session, since the service was enabled.
+     */
+    public LatencyHistogram getPublishLatency(String topic) {
+        final LatencyHistogram existing = publishLatencies.get(topic);
+        return (existing != null) ? existing : publishLatencies.computeIfAbsent(topic, t -> new LatencyHistogram());
+    }
+
+    /**
+     * @return the histogram of the time from the event time of the messages of the topic until the consume processors
+     * handed them to the session, since the service was enabled. Messages without an event time are not recorded.
+     */
+    public LatencyHistogram getEventLatency(String topic) {
+        final LatencyHistogram existing = eventLatencies.get(topic);
+        return (existing != null) ? existing : eventLatencies.computeIfAbsent(topic, t -> new LatencyHistogram());
+    }
+
+    /**
+     * @return a snapshot of the statistics of every topic, sorted by topic.
+     */
+    public List<TopicStats> getTopicStats() {
+        final Map<String, TopicStats> topics = new TreeMap<>();
+
+        // Producers and consumers that are shared by several processors are registered once by each of them
+        final Set<String> seen = new HashSet<>();
+
+        for (Producer<?> producer : producers) {
+            if (seen.add("producer/" + producer.getTopic() + "/" + producer.getProducerName())) {
+                final int pending = (producer instanceof ProducerImpl) ? ((ProducerImpl<?>) producer).getPendingQueueSize() : 0;
+                topics.computeIfAbsent(producer.getTopic(), TopicStats::new).addProducer(producer.getStats(), pending);
+            }
+        }
+
+        for (Consumer<?> consumer : consumers) {
+            if (seen.add("consumer/" + consumer.getTopic() + "/" + consumer.getSubscription() + "/" + consumer.getConsumerName())) {
+                final int queued = (consumer instanceof ConsumerBase) ? ((ConsumerBase<?>) consumer).numMessagesInQueue() : 0;
+                topics.computeIfAbsent(consumer.getTopic(), TopicStats::new).addConsumer(consumer.getStats(), queued);
+            }
+        }
+
+        counters.forEach((topic, topicCounters) -> {
+            final TopicStats stats = topics.computeIfAbsent(topic, TopicStats::new);
+            topicCounters.values.forEach((name, value) -> stats.addCounter(name, value.sum()));
+        });
+
+        publishLatencies.forEach((topic, histogram) -> topics.computeIfAbsent(topic, TopicStats::new).setPublishLatency(histogram));
+        eventLatencies.forEach((topic, histogram) -> topics.computeIfAbsent(topic, TopicStats::new).setEventLatency(histogram));
+
+        return new ArrayList<>(topics.values());
+    }
+
+    /**
+     * The counters that the processors push for a topic, by name.
+     */
+    public static class Counters {
+
+        static final Counters DISABLED = new Counters() {
+            @Override
+            public void add(String name, long delta) {
+            }
+        };
+
+        private final ConcurrentHashMap<String, LongAdder> values = new ConcurrentHashMap<>();
+
+        public void add(String name, long delta) {
+            LongAdder value = values.get(name);
+            if (value == null) {
+                value = values.computeIfAbsent(name, n -> new LongAdder());
+            }
+            value.add(delta);
+        }
+
+        public long get(String name) {
+            final LongAdder value = values.get(name);
+            return (value == null) ? 0 : value.sum();
+        }
+    }
+}
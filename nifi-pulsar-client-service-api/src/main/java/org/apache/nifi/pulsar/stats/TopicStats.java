@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.stats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.ProducerStats;
+
+/**
+ * A snapshot of the statistics of a topic, combining those of its producers and consumers with the counters and
+ * latencies that the processors pushed for it. The send rates and latencies are those of the last stats interval of
+ * the client, and are zero if the client does not collect stats. The consume latencies cover every message recorded
+ * since the service was enabled.
+ */
+public class TopicStats {
+
+    private final String topic;
+
+    private int producers;
+    private double sendMsgsRate;
+    private double sendBytesRate;
+    private double sendLatencyMillis50pct;
+    private double sendLatencyMillis99pct;
+    private double sendLatencyMillisMax;
+    private long totalMsgsSent;
+    private long totalSendFailed;
+    private long totalAcksReceived;
+    private long pendingQueueSize;
+
+    private int consumers;
+    private double receiveMsgsRate;
+    private double receiveBytesRate;
+    private long totalMsgsReceived;
+    private long totalAcksSent;
+    private long receiverQueueSize;
+
+    private LatencyHistogram.Snapshot publishLatency = LatencyHistogram.Snapshot.EMPTY;
+    private LatencyHistogram.Snapshot eventLatency = LatencyHistogram.Snapshot.EMPTY;
+
+    private final Map<String, Long> counters = new TreeMap<>();
+
+    TopicStats(String topic) {
+        this.topic = topic;
+    }
+
+    void addProducer(ProducerStats stats, int pending) {
+        producers++;
+        pendingQueueSize += pending;
+
+        if (stats == null) {
+            return;
+        }
+        sendMsgsRate += stats.getSendMsgsRate();
+        sendBytesRate += stats.getSendBytesRate();
+        // The latencies of the producers cannot be merged, so report the worst of them
+        sendLatencyMillis50pct = Math.max(sendLatencyMillis50pct, stats.getSendLatencyMillis50pct());
+        sendLatencyMillis99pct = Math.max(sendLatencyMillis99pct, stats.getSendLatencyMillis99pct());
+        sendLatencyMillisMax = Math.max(sendLatencyMillisMax, stats.getSendLatencyMillisMax());
+        totalMsgsSent += stats.getTotalMsgsSent();
+        totalSendFailed += stats.getTotalSendFailed();
+        totalAcksReceived += stats.getTotalAcksReceived();
+    }
+
+    void addConsumer(ConsumerStats stats, int queued) {
+        consumers++;
+        receiverQueueSize += queued;
+
+        if (stats == null) {
+            return;
+        }
+        receiveMsgsRate += stats.getRateMsgsReceived();
+        receiveBytesRate += stats.getRateBytesReceived();
+        totalMsgsReceived += stats.getTotalMsgsReceived();
+        totalAcksSent += stats.getTotalAcksSent();
+    }
+
+    void setPublishLatency(LatencyHistogram histogram) {
+        publishLatency = histogram.snapshot();
+    }
+
+    void setEventLatency(LatencyHistogram histogram) {
+        eventLatency = histogram.snapshot();
+    }
+
+    void addCounter(String name, long value) {
+        counters.merge(name, value, Long::sum);
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getProducers() {
+        return producers;
+    }
+
+    public double getSendMsgsRate() {
+        return sendMsgsRate;
+    }
+
+    public double getSendBytesRate() {
+        return sendBytesRate;
+    }
+
+    public double getSendLatencyMillis50pct() {
+        return sendLatencyMillis50pct;
+    }
+
+    public double getSendLatencyMillis99pct() {
+        return sendLatencyMillis99pct;
+    }
+
+    public double getSendLatencyMillisMax() {
+        return sendLatencyMillisMax;
+    }
+
+    public long getTotalMsgsSent() {
+        return totalMsgsSent;
+    }
+
+    public long getTotalSendFailed() {
+        return totalSendFailed;
+    }
+
+    public long getTotalAcksReceived() {
+        return totalAcksReceived;
+    }
+
+    /**
+     * @return the number of messages sent but not yet acknowledged by the broker.
+     */
+    public long getPendingQueueSize() {
+        return pendingQueueSize;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public double getReceiveMsgsRate() {
+        return receiveMsgsRate;
+    }
+
+    public double getReceiveBytesRate() {
+        return receiveBytesRate;
+    }
+
+    public long getTotalMsgsReceived() {
+        return totalMsgsReceived;
+    }
+
+    public long getTotalAcksSent() {
+        return totalAcksSent;
+    }
+
+    /**
+     * @return the number of messages prefetched into the receiver queues, that the processors have yet to receive.
+     */
+    public long getReceiverQueueSize() {
+        return receiverQueueSize;
+    }
+
+    /**
+     * @return the times in milliseconds from the publishing of the messages until they were consumed, if latencies are recorded.
+     */
+    public LatencyHistogram.Snapshot getPublishLatency() {
+        return publishLatency;
+    }
+
+    /**
+     * @return the median time from the publishing of a message until it was consumed, if latencies are recorded.
+     */
+    public long getPublishLatencyMillis50pct() {
+        return publishLatency.getValueAtPercentile(50);
+    }
+
+    public long getPublishLatencyMillis99pct() {
+        return publishLatency.getValueAtPercentile(99);
+    }
+
+    public long getPublishLatencyMillisMax() {
+        return publishLatency.getMax();
+    }
+
+    /**
+     * @return the times in milliseconds from the event times of the messages until they were consumed, if latencies are recorded.
+     */
+    public LatencyHistogram.Snapshot getEventLatency() {
+        return eventLatency;
+    }
+
+    /**
+     * @return the median time from the event time of a message until it was consumed, if latencies are recorded.
+     */
+    public long getEventLatencyMillis50pct() {
+        return eventLatency.getValueAtPercentile(50);
+    }
+
+    public long getEventLatencyMillis99pct() {
+        return eventLatency.getValueAtPercentile(99);
+    }
+
+    public long getEventLatencyMillisMax() {
+        return eventLatency.getMax();
+    }
+
+    /**
+     * @return the counters pushed by the processors, by name.
+     */
+    public Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures PulsarClientCache the way the processors use it, with 8 threads looking up producers for random topics
+ * in a cache of 20. With 10 topics every lookup is a hit, with 200 topics most lookups evict a producer. Creating
+ * and closing a producer is simulated by a short pause, as both involve a round trip to the broker.
+ * <p>
+ * Run with: java -cp (test classpath) org.apache.nifi.pulsar.cache.PulsarClientCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class PulsarClientCacheBenchmark {
+
+    private static final int CACHE_SIZE = 20;
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    @Param({"10", "200"})
+    public int topicCount;
+
+    private String[] topics;
+    private PulsarClientCache<String, FakeProducer> cache;
+
+    @Setup
+    public void setup() {
+        topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = "persistent://public/default/topic-" + i;
+        }
+        cache = new PulsarClientCache<>(CACHE_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Benchmark
+    public FakeProducer concurrentCache() {
+        final String topic = topics[ThreadLocalRandom.current().nextInt(topicCount)];
+
+        final FakeProducer producer = cache.get(topic);
+        return (producer != null) ? producer : cache.get(topic, key -> new FakeProducer());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(PulsarClientCacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    public static class FakeProducer implements Closeable {
+
+        FakeProducer() {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+        }
+
+        @Override
+        public void close() {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+        }
+    }
+}
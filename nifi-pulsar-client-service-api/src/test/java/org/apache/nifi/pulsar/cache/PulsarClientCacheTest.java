@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@SuppressWarnings("rawtypes")
+public class PulsarClientCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Closes the evicted values on the calling thread, so that the tests do not have to wait for them
+     */
+    private PulsarClientCache<String, Producer> newCache(int maxSize, long idleTimeoutNanos) {
+        return new PulsarClientCache<>(maxSize, idleTimeoutNanos, TimeUnit.NANOSECONDS, Runnable::run, clock::get);
+    }
+
+    @Test
+    public void loadOnceTest() {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+        final Producer producer = mock(Producer.class);
+        final AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(producer, cache.get("A", key -> {
+                loads.incrementAndGet();
+                return producer;
+            }));
+        }
+
+        assertEquals(1, loads.get());
+        assertSame(producer, cache.get("A"));
+        assertNull(cache.get("B"));
+    }
+
+    @Test
+    public void evictionLruTest() throws PulsarClientException {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+        final Producer a = mock(Producer.class);
+        final Producer other = mock(Producer.class);
+
+        cache.get("A", key -> a);
+
+        // Load 25 other items, and use the letter 'A' in between each of them
+        for (Character i = 'B'; i <= 'Z'; i++) {
+            clock.incrementAndGet();
+            cache.get(i.toString(), key -> other);
+            clock.incrementAndGet();
+            cache.get("A");
+        }
+
+        assertEquals(5, cache.size());
+        assertSame(a, cache.get("A"));
+        for (Character i = 'W'; i <= 'Z'; i++) {
+            assertNotNull(cache.get(i.toString()));
+        }
+
+        verify(a, never()).close();
+        verify(other, times(21)).close();
+    }
+
+    @Test
+    public void idleTimeoutTest() throws PulsarClientException {
+        final PulsarClientCache<String, Producer> cache = newCache(10, 100);
+        final Producer idle = mock(Producer.class);
+        final Producer busy = mock(Producer.class);
+
+        cache.get("idle", key -> idle);
+        cache.get("busy", key -> busy);
+
+        for (int i = 0; i < 4; i++) {
+            clock.addAndGet(40);
+            cache.get("busy");
+        }
+
+        // The idle entry expired on the hits of the busy one
+        assertNull(cache.get("idle"));
+        assertSame(busy, cache.get("busy"));
+        verify(idle, times(1)).close();
+        verify(busy, never()).close();
+    }
+
+    @Test
+    public void failedLoadIsRetriedTest() {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+
+        try {
+            cache.get("A", key -> {
+                throw new PulsarClientException("unavailable");
+            });
+            fail("The loader exception should have been thrown");
+        } catch (final PulsarClientException e) {
+            assertEquals("unavailable", e.getMessage());
+        }
+
+        // The failure is kept for a short while, and the creation is retried after it
+        final Producer producer = mock(Producer.class);
+        assertTrue(cache.getAsync("A", key -> CompletableFuture.completedFuture(producer)).isCompletedExceptionally());
+        assertNull(cache.get("A"));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(PulsarClientCache.FAILURE_RETENTION_MILLIS));
+        assertSame(producer, cache.get("A", key -> producer));
+    }
+
+    @Test
+    public void failedAsyncLoadIsSeenTest() {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+        final CompletableFuture<Producer> creating = new CompletableFuture<>();
+
+        assertFalse(cache.getAsync("A", key -> creating).isDone());
+        creating.completeExceptionally(new PulsarClientException("unavailable"));
+
+        // A caller that polled the pending creation sees it fail, however long after the failure it comes back
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(PulsarClientCache.FAILURE_RETENTION_MILLIS) * 10);
+        assertTrue(cache.getAsync("A", key -> new CompletableFuture<>()).isCompletedExceptionally());
+
+        // Only then is the creation retried
+        final Producer producer = mock(Producer.class);
+        assertSame(producer, cache.getAsync("A", key -> CompletableFuture.completedFuture(producer)).join());
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+        final Producer producer = mock(Producer.class);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<Producer> first = executor.submit(() -> cache.get("A", key -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            return producer;
+        }));
+
+        loading.await();
+        final Future<Producer> second = executor.submit(() -> cache.get("A", key -> {
+            loads.incrementAndGet();
+            return mock(Producer.class);
+        }));
+
+        release.countDown();
+        assertSame(producer, first.get(10, TimeUnit.SECONDS));
+        assertSame(producer, second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void removeAndClearTest() throws PulsarClientException {
+        final PulsarClientCache<String, Producer> cache = newCache(5, 0);
+        final Producer a = mock(Producer.class);
+        final Producer b = mock(Producer.class);
+
+        cache.get("A", key -> a);
+        cache.get("B", key -> b);
+
+        // Only the cached value is removed
+        assertEquals(false, cache.remove("A", b));
+        assertEquals(true, cache.remove("A", a));
+        verify(a, times(1)).close();
+
+        cache.clear();
+        verify(b, times(1)).close();
+        assertEquals(0, cache.size());
+    }
+}
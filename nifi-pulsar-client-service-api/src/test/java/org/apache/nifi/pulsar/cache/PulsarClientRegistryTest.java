@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SuppressWarnings("rawtypes")
+public class PulsarClientRegistryTest {
+
+    private final PulsarClientRegistry<Producer> registry = new PulsarClientRegistry<>(Producer.class);
+    private final AtomicInteger creations = new AtomicInteger();
+
+    private CompletableFuture<Producer> create(Producer producer) {
+        creations.incrementAndGet();
+        return CompletableFuture.completedFuture(producer);
+    }
+
+    @Test
+    public void sharedTest() throws PulsarClientException {
+        final Producer producer = mock(Producer.class);
+        when(producer.isConnected()).thenReturn(true);
+        when(producer.getTopic()).thenReturn("my-topic");
+
+        final Producer first = registry.acquire("my-topic", () -> create(producer), Producer::isConnected).join();
+        final Producer second = registry.acquire("my-topic", () -> create(producer), Producer::isConnected).join();
+
+        assertEquals(1, creations.get());
+        assertNotSame(first, second);
+        assertEquals("my-topic", second.getTopic());
+
+        // Closing a handle twice only releases its reference once
+        first.close();
+        first.close();
+        verify(producer, never()).close();
+
+        second.close();
+        verify(producer, times(1)).close();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void separateKeysTest() {
+        final Producer a = mock(Producer.class);
+        final Producer b = mock(Producer.class);
+
+        registry.acquire("my-topic|batching", () -> create(a), p -> true).join();
+        registry.acquire("my-topic|no-batching", () -> create(b), p -> true).join();
+
+        assertEquals(2, creations.get());
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void invalidInstanceIsReplacedTest() throws PulsarClientException {
+        final Producer disconnected = mock(Producer.class);
+        final Producer connected = mock(Producer.class);
+        when(connected.isConnected()).thenReturn(true);
+
+        final Producer first = registry.acquire("my-topic", () -> create(disconnected), Producer::isConnected).join();
+        final Producer second = registry.acquire("my-topic", () -> create(connected), Producer::isConnected).join();
+
+        assertEquals(2, creations.get());
+        assertTrue(second.isConnected());
+
+        // The replaced producer is closed when its last handle is
+        verify(disconnected, never()).close();
+        first.close();
+        verify(disconnected, times(1)).close();
+        verify(connected, never()).close();
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void failedCreationIsNotSharedTest() {
+        final CompletableFuture<Producer> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new PulsarClientException("unavailable"));
+
+        assertTrue(registry.acquire("my-topic", () -> failed, p -> true).isCompletedExceptionally());
+        assertEquals(0, registry.size());
+
+        final Producer producer = mock(Producer.class);
+        registry.acquire("my-topic", () -> create(producer), p -> true).join();
+        assertEquals(1, creations.get());
+    }
+
+    @Test
+    public void clearTest() throws PulsarClientException {
+        final Producer producer = mock(Producer.class);
+        final Producer handle = registry.acquire("my-topic", () -> create(producer), p -> true).join();
+
+        registry.clear();
+        verify(producer, times(1)).close();
+
+        // The handles that are still open no longer close the producer
+        handle.close();
+        verify(producer, times(1)).close();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PulsarMemoryLimiterTest {
+
+    @Test
+    public void acquireAndReleaseTest() {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+
+        assertTrue(limiter.tryAcquire(60));
+        assertFalse(limiter.tryAcquire(60));
+        assertTrue(limiter.tryAcquire(40));
+        assertTrue(limiter.isExhausted());
+
+        limiter.release(60);
+        assertFalse(limiter.isExhausted());
+        assertEquals(40, limiter.getUsed());
+    }
+
+    @Test
+    public void oversizedMessageTest() {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+
+        // A message larger than the limit only passes when nothing else is held
+        assertTrue(limiter.tryAcquire(500));
+        assertFalse(limiter.tryAcquire(1));
+        limiter.release(500);
+        assertTrue(limiter.tryAcquire(1));
+    }
+
+    @Test
+    public void reserveTest() {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+
+        limiter.reserve(150);
+        assertTrue(limiter.isExhausted());
+        assertFalse(limiter.tryAcquire(1));
+    }
+
+    @Test
+    public void waitForReleaseTest() throws Exception {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            assertTrue(limiter.tryAcquire(100));
+            assertFalse(limiter.acquire(10, 10, TimeUnit.MILLISECONDS));
+
+            final Future<Boolean> waiting = executor.submit(() -> limiter.acquire(10, 10, TimeUnit.SECONDS));
+            limiter.release(100);
+            assertTrue(waiting.get(10, TimeUnit.SECONDS));
+            assertEquals(10, limiter.getUsed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void listenerTest() {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+        final List<String> events = new ArrayList<>();
+        final PulsarMemoryLimiter.Listener listener = new PulsarMemoryLimiter.Listener() {
+            @Override
+            public void onExhausted() {
+                events.add("exhausted");
+            }
+
+            @Override
+            public void onAvailable() {
+                events.add("available");
+            }
+        };
+
+        // A listener added while the budget is exhausted is told right away
+        limiter.reserve(100);
+        limiter.addListener(listener);
+        limiter.release(50);
+        limiter.release(10);
+        limiter.reserve(200);
+        limiter.reserve(10);
+
+        // Only the changes of state are notified
+        limiter.removeListener(listener);
+        limiter.release(270);
+        assertEquals(Arrays.asList("exhausted", "available", "exhausted"), events);
+    }
+
+    @Test
+    public void unlimitedTest() {
+        final PulsarMemoryLimiter tracking = new PulsarMemoryLimiter(0);
+        assertTrue(tracking.tryAcquire(Long.MAX_VALUE / 2));
+        assertFalse(tracking.isExhausted());
+        assertEquals(Long.MAX_VALUE / 2, tracking.getUsed());
+
+        assertTrue(PulsarMemoryLimiter.UNLIMITED.tryAcquire(100));
+        assertEquals(0, PulsarMemoryLimiter.UNLIMITED.getUsed());
+    }
+}
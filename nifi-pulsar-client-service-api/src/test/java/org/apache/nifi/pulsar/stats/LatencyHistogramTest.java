@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyTest() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void bucketsTest() {
+        // Every value falls in a bucket whose range contains it
+        for (long value = 0; value < 100_000; value++) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.highestValue(index - 1) < value);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesTest() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getValueAtPercentile(50));
+        assertWithin(990, histogram.getValueAtPercentile(99));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void snapshotTest() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        histogram.record(5);
+
+        // The snapshot is not changed by later records, and counts exactly at one less than a power of two
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(0, snapshot.getCountAtOrBelow(0));
+        assertEquals(7, snapshot.getCountAtOrBelow(7));
+        assertEquals(63, snapshot.getCountAtOrBelow(63));
+        assertEquals(100, snapshot.getCountAtOrBelow(127));
+        assertEquals(8, histogram.snapshot().getCountAtOrBelow(7));
+        assertEquals(0, LatencyHistogram.Snapshot.EMPTY.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void negativeLatencyTest() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-20);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecordTest() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i + offset);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(10_002, histogram.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected " + expected + " but was " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
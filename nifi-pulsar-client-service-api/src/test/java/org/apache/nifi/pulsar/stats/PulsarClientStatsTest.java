@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerStats;
+import org.junit.Test;
+
+public class PulsarClientStatsTest {
+
+    private final PulsarClientStats stats = new PulsarClientStats();
+
+    private static Producer<?> producer(String topic, String name, double rate, double latency99) {
+        final ProducerStats producerStats = mock(ProducerStats.class);
+        when(producerStats.getSendMsgsRate()).thenReturn(rate);
+        when(producerStats.getSendLatencyMillis99pct()).thenReturn(latency99);
+
+        final Producer<?> producer = mock(Producer.class);
+        when(producer.getTopic()).thenReturn(topic);
+        when(producer.getProducerName()).thenReturn(name);
+        when(producer.getStats()).thenReturn(producerStats);
+        return producer;
+    }
+
+    @Test
+    public void producersTest() {
+        stats.addProducer(producer("a", "p-1", 10, 5));
+        stats.addProducer(producer("a", "p-2", 20, 8));
+        stats.addProducer(producer("b", "p-3", 30, 1));
+
+        final List<TopicStats> topics = stats.getTopicStats();
+        assertEquals(2, topics.size());
+        assertEquals("a", topics.get(0).getTopic());
+        assertEquals(2, topics.get(0).getProducers());
+        assertEquals(30, topics.get(0).getSendMsgsRate(), 0.001);
+        assertEquals(8, topics.get(0).getSendLatencyMillis99pct(), 0.001);
+    }
+
+    @Test
+    public void sharedProducerIsCountedOnceTest() {
+        // Two handles to the same shared producer
+        stats.addProducer(producer("a", "p-1", 10, 5));
+        stats.addProducer(producer("a", "p-1", 10, 5));
+
+        assertEquals(1, stats.getTopicStats().get(0).getProducers());
+        assertEquals(10, stats.getTopicStats().get(0).getSendMsgsRate(), 0.001);
+    }
+
+    @Test
+    public void removedProducerTest() {
+        final Producer<?> producer = producer("a", "p-1", 10, 5);
+        stats.addProducer(producer);
+        stats.removeProducer(producer);
+
+        assertTrue(stats.getTopicStats().isEmpty());
+    }
+
+    @Test
+    public void consumersAndCountersTest() {
+        final ConsumerStats consumerStats = mock(ConsumerStats.class);
+        when(consumerStats.getTotalAcksSent()).thenReturn(7L);
+
+        final Consumer<?> consumer = mock(Consumer.class);
+        when(consumer.getTopic()).thenReturn("a");
+        when(consumer.getSubscription()).thenReturn("sub");
+        when(consumer.getConsumerName()).thenReturn("c-1");
+        when(consumer.getStats()).thenReturn(consumerStats);
+        stats.addConsumer(consumer);
+
+        stats.getCounters("a").add(PulsarClientStats.MESSAGES_RECEIVED, 3);
+        stats.getCounters("a").add(PulsarClientStats.MESSAGES_RECEIVED, 2);
+
+        final TopicStats topic = stats.getTopicStats().get(0);
+        assertEquals(1, topic.getConsumers());
+        assertEquals(7, topic.getTotalAcksSent());
+        assertEquals(Long.valueOf(5), topic.getCounters().get(PulsarClientStats.MESSAGES_RECEIVED));
+    }
+
+    @Test
+    public void disabledTest() {
+        PulsarClientStats.DISABLED.addProducer(producer("a", "p-1", 10, 5));
+        PulsarClientStats.DISABLED.getCounters("a").add(PulsarClientStats.MESSAGES_SENT, 1);
+
+        assertTrue(PulsarClientStats.DISABLED.getTopicStats().isEmpty());
+    }
+}
@@ -20,6 +20,7 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
@@ -32,10 +33,18 @@ import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.pulsar.auth.PulsarClientAuthenticationService;
+import org.apache.nifi.pulsar.cache.PulsarClientRegistry;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
 import org.apache.nifi.reporting.InitializationException;
 import org.apache.pulsar.client.api.ClientBuilder;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.PulsarClient;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.PulsarClientException.UnsupportedAuthenticationException;
@@ -162,6 +171,31 @@ public class StandardPulsarClientService extends AbstractControllerService imple
             .defaultValue("false")
             .build();
 
+    public static final PropertyDescriptor CLIENT_POOL_SIZE = new PropertyDescriptor.Builder()
+            .name("CLIENT_POOL_SIZE")
+            .displayName("Client Pool Size")
+            .description("The number of Pulsar clients to create. The producers and consumers are assigned to the clients by a hash "
+                    + "of their topic, so all of the producers of a topic use the same client. Each client has its own I/O and "
+                    + "listener threads, and its own connections to each broker, so adding clients lets the I/O scale beyond what "
+                    + "the event loops of a single client can handle.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .defaultValue("1")
+            .build();
+
+    public static final PropertyDescriptor MEMORY_LIMIT = new PropertyDescriptor.Builder()
+            .name("MEMORY_LIMIT")
+            .displayName("Memory Limit")
+            .description("The maximum number of message payload bytes that the producers and consumers of all of the processors "
+                    + "using this service hold in memory. Producers wait for sent messages to be acknowledged once it is reached, "
+                    + "and consumers are paused, so that the brokers stop dispatching messages to them, until the bytes held are "
+                    + "released. Up to the Receiver Queue Size of messages that were already prefetched by each consumer are not "
+                    + "counted until they are received. If not set, the bytes held are only tracked.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor AUTHENTICATION_SERVICE = new PropertyDescriptor.Builder()
             .name("AUTHENTICATION_SERVICE")
             .displayName("Pulsar Client Authentication Service")
@@ -171,7 +205,11 @@ public class StandardPulsarClientService extends AbstractControllerService imple
             .build();
 
     private static List<PropertyDescriptor> properties;
-    private volatile PulsarClient client;
+    private volatile PulsarClient[] clients;
+    private volatile PulsarMemoryLimiter memoryLimiter = PulsarMemoryLimiter.UNLIMITED;
+    private final PulsarClientStats stats = new PulsarClientStats();
+    private final PulsarClientRegistry<Producer<?>> sharedProducers = new PulsarClientRegistry<>(Producer.class);
+    private final PulsarClientRegistry<Consumer<?>> sharedConsumers = new PulsarClientRegistry<>(Consumer.class);
     private boolean secure = false;
     private String pulsarBrokerRootUrl;
 
@@ -189,6 +227,8 @@ public class StandardPulsarClientService extends AbstractControllerService imple
         props.add(OPERATION_TIMEOUT);
         props.add(STATS_INTERVAL);
         props.add(USE_TCP_NO_DELAY);
+        props.add(CLIENT_POOL_SIZE);
+        props.add(MEMORY_LIMIT);
         properties = Collections.unmodifiableList(props);
     }
 
@@ -204,24 +244,79 @@ public class StandardPulsarClientService extends AbstractControllerService imple
      */
     @OnEnabled
     public void onEnabled(final ConfigurationContext context) throws InitializationException, UnsupportedAuthenticationException {
+        final PulsarClient[] pool = new PulsarClient[context.getProperty(CLIENT_POOL_SIZE).evaluateAttributeExpressions().asInteger()];
         try {
-            client = getClientBuilder(context).build();
+            final ClientBuilder builder = getClientBuilder(context);
+            for (int idx = 0; idx < pool.length; idx++) {
+                pool[idx] = builder.clone().build();
+            }
         } catch (Exception e) {
+            closeAll(pool);
             throw new InitializationException("Unable to create Pulsar Client", e);
         }
+        clients = pool;
+        memoryLimiter = new PulsarMemoryLimiter(context.getProperty(MEMORY_LIMIT).isSet()
+                ? context.getProperty(MEMORY_LIMIT).asDataSize(DataUnit.B).longValue() : 0);
     }
 
     @OnDisabled
     @OnShutdown
     public void cleanup() throws PulsarClientException {
-        if (client != null) {
-           client.close();
+        sharedProducers.clear();
+        sharedConsumers.clear();
+
+        if (clients != null) {
+           closeAll(clients);
+           clients = null;
+        }
+    }
+
+    private void closeAll(PulsarClient[] pool) {
+        for (PulsarClient client : pool) {
+            if (client == null) {
+                continue;
+            }
+            try {
+                client.close();
+            } catch (PulsarClientException e) {
+                getLogger().warn("Unable to close Pulsar Client", e);
+            }
         }
     }
 
     @Override
     public PulsarClient getPulsarClient() {
-        return client;
+        final PulsarClient[] pool = clients;
+        return (pool == null) ? null : pool[0];
+    }
+
+    @Override
+    public PulsarMemoryLimiter getMemoryLimiter() {
+        return memoryLimiter;
+    }
+
+    @Override
+    public PulsarClientStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public PulsarClient getPulsarClient(String topic) {
+        final PulsarClient[] pool = clients;
+        if (pool == null) {
+            return null;
+        }
+        return (pool.length == 1 || topic == null) ? pool[0] : pool[Math.floorMod(topic.hashCode(), pool.length)];
+    }
+
+    @Override
+    public <T> CompletableFuture<Producer<T>> getSharedProducer(String key, ProducerBuilder<T> builder) {
+        return sharedProducers.acquire(key, builder::createAsync, Producer::isConnected);
+    }
+
+    @Override
+    public <T> CompletableFuture<Consumer<T>> getSharedConsumer(String key, ConsumerBuilder<T> builder) {
+        return sharedConsumers.acquire(key, builder::subscribeAsync, Consumer::isConnected);
     }
 
     @Override
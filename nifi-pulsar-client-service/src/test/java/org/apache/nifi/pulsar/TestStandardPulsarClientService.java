@@ -16,9 +16,17 @@
  */
 package org.apache.nifi.pulsar;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
 import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.apache.pulsar.client.api.PulsarClient;
 import org.junit.Test;
 
 public class TestStandardPulsarClientService {
@@ -35,6 +43,29 @@ public class TestStandardPulsarClientService {
         runner.assertValid(service);
     }
 
+    @Test
+    public void clientPoolTest() throws InitializationException {
+        final TestRunner runner = TestRunners.newTestRunner(TestProcessor.class);
+        final StandardPulsarClientService service = new StandardPulsarClientService();
+        runner.addControllerService("test-pool", service);
+
+        runner.setProperty(service, StandardPulsarClientService.PULSAR_SERVICE_URL, "localhost:6650");
+        runner.setProperty(service, StandardPulsarClientService.CLIENT_POOL_SIZE, "4");
+        runner.enableControllerService(service);
+
+        // The same topic always gets the same client, and the topics are spread over all of the clients
+        final Set<PulsarClient> clients = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            final String topic = "persistent://public/default/topic-" + i;
+            assertSame(service.getPulsarClient(topic), service.getPulsarClient(topic));
+            clients.add(service.getPulsarClient(topic));
+        }
+        assertEquals(4, clients.size());
+        assertTrue(clients.contains(service.getPulsarClient()));
+
+        runner.disableControllerService(service);
+    }
+
     @Test
     public void invalidServiceUrlTest() throws InitializationException {
         final TestRunner runner = TestRunners.newTestRunner(TestProcessor.class);
@@ -16,20 +16,31 @@
  */
 package org.apache.nifi.processors.pulsar;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
@@ -38,15 +49,22 @@ import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.expression.AttributeExpression.ResultType;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.pulsar.PulsarClientService;
-import org.apache.nifi.pulsar.cache.PulsarClientLRUCache;
+import org.apache.nifi.pulsar.cache.PulsarClientCache;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
 import org.apache.nifi.util.StringUtils;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.ConsumerBuilder;
@@ -54,8 +72,12 @@ import org.apache.pulsar.client.api.ConsumerCryptoFailureAction;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.SubscriptionType;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.client.impl.TopicMessageImpl;
 
-public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcessor {
+import io.netty.buffer.ByteBuf;
+
+public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractSessionFactoryProcessor {
 
     protected static final AllowableValue EXCLUSIVE = new AllowableValue("Exclusive", "Exclusive", "There can be only 1 consumer on the same topic with the same subscription name");
     protected static final AllowableValue SHARED = new AllowableValue("Shared", "Shared", "Multiple consumer will be able to use the same subscription name and the messages");
@@ -69,6 +91,21 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
     static final AllowableValue FAIL = new AllowableValue(ConsumerCryptoFailureAction.FAIL.name(), "Fail",
             "Report a failure condition, and then route the message contents to the FAILED relationship.");
 
+    // Bounds for the size of the buffer used to write a batch of messages to the content repository
+    protected static final int MIN_WRITE_BUFFER_SIZE = 8 * 1024;
+    protected static final int MAX_WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    public static final String KEY_ATTRIBUTE = "message.key";
+
+    public static final String LATENCY_MESSAGES_COUNTER = "Latency Recorded Messages";
+    public static final String LATENCY_TOTAL_COUNTER = "Total Publish Latency Millis";
+
+    // The stages of consuming that are timed, in the order of their counter names
+    protected static final int RECEIVE_STAGE = 0;
+    protected static final int WRITE_STAGE = 1;
+    protected static final int COMMIT_STAGE = 2;
+    protected static final int ACK_STAGE = 3;
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("FlowFiles for which all content was consumed from Pulsar.")
@@ -218,6 +255,97 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
             .build();
 
+    public static final PropertyDescriptor CONSUMER_BATCH_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("CONSUMER_BATCH_MAX_SIZE")
+            .displayName("Consumer Batch Max Size")
+            .description("The maximum number of payload bytes consumed at a time, and published to a single FlowFile. The batch "
+                    + "is closed as soon as the payloads received reach this size, even if fewer than the Consumer Message Batch Size "
+                    + "messages were received, so the FlowFile may exceed it by up to one message. If not specified, the size of a batch "
+                    + "is only limited by the number of messages in it.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    public static final PropertyDescriptor CONSUMER_BATCH_MAX_WAIT = new PropertyDescriptor.Builder()
+            .name("CONSUMER_BATCH_MAX_WAIT")
+            .displayName("Consumer Batch Max Wait")
+            .description("If specified, the consumer waits up to this long for more messages to arrive before the batch is closed, "
+                    + "rather than closing the batch as soon as no more messages are immediately available. A batch is closed when "
+                    + "any of the batch size, batch max size or batch max wait limits is reached.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    public static final PropertyDescriptor ROLLING_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("ROLLING_MAX_SIZE")
+            .displayName("Rolling FlowFile Max Size")
+            .description("If specified, the messages consumed by consecutive triggers are written to the same FlowFile, which is only "
+                    + "transferred once it reaches this size, or one of the other Rolling FlowFile thresholds is reached. All of the "
+                    + "messages in the FlowFile are acknowledged once it has been transferred. Rolling FlowFiles are only supported when "
+                    + "Async Enabled is false.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ROLLING_MAX_COUNT = new PropertyDescriptor.Builder()
+            .name("ROLLING_MAX_COUNT")
+            .displayName("Rolling FlowFile Max Count")
+            .description("If specified, the messages consumed by consecutive triggers are written to the same FlowFile, which is only "
+                    + "transferred once it holds this many messages (or records, for the record based processors), or one of the other "
+                    + "Rolling FlowFile thresholds is reached.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ROLLING_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("ROLLING_MAX_AGE")
+            .displayName("Rolling FlowFile Max Age")
+            .description("If specified, the messages consumed by consecutive triggers are written to the same FlowFile, which is only "
+                    + "transferred once it is this old, or one of the other Rolling FlowFile thresholds is reached. Any open FlowFile "
+                    + "is also transferred when the processor is stopped. Since the messages in the FlowFile are not acknowledged until "
+                    + "it is transferred, this must be less than the Acknowledgment Timeout. If not specified, a rolling FlowFile is "
+                    + "transferred once it is half as old as the Acknowledgment Timeout, so that its messages are not redelivered.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SHARE_CONSUMERS = new PropertyDescriptor.Builder()
+            .name("SHARE_CONSUMERS")
+            .displayName("Share Consumers")
+            .description("If true, the consumer is shared with the other processors that use the same Pulsar Client Service, "
+                    + "and subscribe to the same topics with the same subscription and consumer settings. The messages are "
+                    + "then spread across the processors as they receive them, through a single receiver queue. Consumers "
+                    + "are only shared for the Shared subscription type, as the other types acknowledge messages cumulatively.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor PREWARM_CONSUMER = new PropertyDescriptor.Builder()
+            .name("PREWARM_CONSUMER")
+            .displayName("Pre-warm Consumer")
+            .description("If true, the consumer subscribes to the topics when the processor is scheduled, rather than on the first "
+                    + "trigger, and the processor fails to start if the subscription cannot be created.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor RECORD_LATENCY = new PropertyDescriptor.Builder()
+            .name("RECORD_LATENCY")
+            .displayName("Record Latency")
+            .description("If true, the time from the publishing of each message until its FlowFile is handed to the session, and from "
+                    + "its event time when the producer set one, is recorded. The median, 99th percentile and maximum latencies of the "
+                    + "messages in each FlowFile are added to it as attributes, the latencies of each topic are recorded in the stats "
+                    + "of the Pulsar Client Service, and the number of messages and their total publish latency are added to the "
+                    + "processor's counters. The latencies depend on the clocks of the producers and brokers being in sync with this node.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
     protected static final List<PropertyDescriptor> PROPERTIES;
     protected static final Set<Relationship> RELATIONSHIPS;
 
@@ -235,7 +363,15 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         properties.add(RECEIVER_QUEUE_SIZE);
         properties.add(SUBSCRIPTION_TYPE);
         properties.add(CONSUMER_BATCH_SIZE);
+        properties.add(CONSUMER_BATCH_MAX_SIZE);
+        properties.add(CONSUMER_BATCH_MAX_WAIT);
         properties.add(MESSAGE_DEMARCATOR);
+        properties.add(ROLLING_MAX_SIZE);
+        properties.add(ROLLING_MAX_COUNT);
+        properties.add(ROLLING_MAX_AGE);
+        properties.add(SHARE_CONSUMERS);
+        properties.add(PREWARM_CONSUMER);
+        properties.add(RECORD_LATENCY);
 
         PROPERTIES = Collections.unmodifiableList(properties);
 
@@ -245,17 +381,177 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
     }
 
     private PulsarClientService pulsarClientService;
-    private PulsarClientLRUCache<String, Consumer<T>> consumers;
+    private volatile PulsarClientCache<String, Consumer<T>> consumers;
+    private volatile PulsarMemoryLimiter memoryLimiter = PulsarMemoryLimiter.UNLIMITED;
+    // Pauses the consumers while the memory limit is exhausted, so that the brokers stop filling their receiver queues
+    private final PulsarMemoryLimiter.Listener consumerPauser = new PulsarMemoryLimiter.Listener() {
+        @Override
+        public void onExhausted() {
+            getConsumers().values().forEach(Consumer::pause);
+        }
+
+        @Override
+        public void onAvailable() {
+            getConsumers().values().forEach(Consumer::resume);
+        }
+    };
+    private volatile PulsarClientStats stats = PulsarClientStats.DISABLED;
+    // The bytes of the messages received by the current trigger, which are released once it completes
+    private final ThreadLocal<long[]> triggerBytes = ThreadLocal.withInitial(() -> new long[1]);
+    private volatile boolean recordLatency;
+    private final StageTimings timings = new StageTimings(PulsarClientStats.CONSUME_RECEIVE_NANOS, PulsarClientStats.CONSUME_WRITE_NANOS,
+            PulsarClientStats.CONSUME_COMMIT_NANOS, PulsarClientStats.CONSUME_ACK_NANOS);
+    // The topic of the consumer that the current trigger timed a stage for, which its commit is timed under
+    private final ThreadLocal<String> triggerTopic = new ThreadLocal<>();
+    // The settings of the shared consumers, or null if consumers are not shared
+    private volatile String sharedConsumerSettings;
     private ExecutorService consumerPool;
     private ExecutorCompletionService<List<Message<T>>> consumerService;
     private ExecutorService ackPool;
     private ExecutorCompletionService<Object> ackService;
+    private volatile ProcessSessionFactory sessionFactory;
+
+    // The dynamic properties that route messages to relationships of the same name, by name
+    private volatile Map<String, Route> routes = Collections.emptyMap();
+    private volatile Set<Relationship> relationships;
+
+    // The FlowFiles that are kept open across triggers, each guarded by synchronizing on the lock of its key
+    private final Map<String, RollingFlowFile<T>> rollingFlowFiles = new ConcurrentHashMap<>();
+    private final Map<String, Object> rollingLocks = new ConcurrentHashMap<>();
 
     @Override
     public Set<Relationship> getRelationships() {
+        final Set<Relationship> relationships = this.relationships;
+        return (relationships != null) ? relationships : getBaseRelationships();
+    }
+
+    /**
+     * @return the relationships of the processor, other than the ones added by routes.
+     */
+    protected Set<Relationship> getBaseRelationships() {
         return RELATIONSHIPS;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .description("Routes the messages for which the Expression Language expression evaluates to true, against the "
+                        + "properties of the message and its key (as '" + KEY_ATTRIBUTE + "'), to the relationship of the same name.")
+                .required(false)
+                .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.BOOLEAN, false))
+                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+                .dynamic(true)
+                .build();
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (!descriptor.isDynamic()) {
+            return;
+        }
+
+        final Map<String, Route> newRoutes = new TreeMap<>(routes);
+        if (newValue == null) {
+            newRoutes.remove(descriptor.getName());
+        } else {
+            newRoutes.put(descriptor.getName(), new Route(descriptor));
+        }
+
+        final Set<Relationship> newRelationships = new HashSet<>(getBaseRelationships());
+        for (Route route : newRoutes.values()) {
+            newRelationships.add(route.relationship);
+        }
+
+        this.routes = Collections.unmodifiableMap(newRoutes);
+        this.relationships = Collections.unmodifiableSet(newRelationships);
+    }
+
+    /**
+     * @return true if any routes are configured.
+     */
+    protected boolean hasRoutes() {
+        return !routes.isEmpty();
+    }
+
+    /**
+     * Splits the messages by the first route, in the order of the route names, whose expression evaluates to true
+     * against the properties and key of the message. Messages that match none of the routes go to 'success'.
+     * Only the metadata of the messages is evaluated, never their payload.
+     *
+     * @return the messages per relationship, in the order in which they were received.
+     */
+    protected Map<Relationship, List<Message<T>>> route(final ProcessContext context, final List<Message<T>> messages) {
+        final Map<String, Route> routes = this.routes;
+        if (routes.isEmpty()) {
+            return Collections.singletonMap(REL_SUCCESS, messages);
+        }
+
+        final Map<Relationship, List<Message<T>>> routed = new LinkedHashMap<>();
+        final MessageAttributes attributes = new MessageAttributes();
+        for (Message<T> msg : messages) {
+            // The properties are only wrapped, rather than copied, when the message has a key to add to them
+            final Map<String, String> evaluated = msg.hasKey()
+                    ? attributes.of(msg.getProperties(), msg.getKey()) : msg.getProperties();
+
+            Relationship relationship = REL_SUCCESS;
+            for (Route route : routes.values()) {
+                if (context.getProperty(route.descriptor).evaluateAttributeExpressions(evaluated).asBoolean()) {
+                    relationship = route.relationship;
+                    break;
+                }
+            }
+            routed.computeIfAbsent(relationship, rel -> new ArrayList<>()).add(msg);
+        }
+        return routed;
+    }
+
+    /**
+     * A dynamic property, with the relationship of the same name that it routes messages to.
+     */
+    private static class Route {
+        private final PropertyDescriptor descriptor;
+        private final Relationship relationship;
+
+        Route(PropertyDescriptor descriptor) {
+            this.descriptor = descriptor;
+            this.relationship = new Relationship.Builder().name(descriptor.getName()).build();
+        }
+    }
+
+    /**
+     * A read only view of the properties of a message with its key added as the key attribute, which is reused
+     * across the messages that are routed. The key is looked up without copying the properties, which are only copied
+     * if the expression iterates over all of the attributes.
+     */
+    private static class MessageAttributes extends AbstractMap<String, String> {
+        private Map<String, String> properties;
+        private String key;
+
+        MessageAttributes of(Map<String, String> properties, String key) {
+            this.properties = properties;
+            this.key = key;
+            return this;
+        }
+
+        @Override
+        public String get(Object name) {
+            return KEY_ATTRIBUTE.equals(name) ? key : properties.get(name);
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return KEY_ATTRIBUTE.equals(name) || properties.containsKey(name);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            final Map<String, String> copy = new HashMap<>(properties);
+            copy.put(KEY_ATTRIBUTE, key);
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
+    }
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return PROPERTIES;
@@ -280,6 +576,24 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
                "Acknowledgment Timeout needs to be greater than 10 seconds.").build());
         }
 
+        if (isRolling(validationContext) && !routes.isEmpty()) {
+           results.add(new ValidationResult.Builder().valid(false).explanation(
+               "Routes can not be combined with Rolling FlowFiles.").build());
+        }
+
+        if (isRolling(validationContext) && validationContext.getProperty(ASYNC_ENABLED).asBoolean()) {
+           results.add(new ValidationResult.Builder().valid(false).explanation(
+               "Rolling FlowFiles can only be used when Async Enabled is false.").build());
+        }
+
+        if (validationContext.getProperty(ROLLING_MAX_AGE).isSet()
+                && validationContext.getProperty(ROLLING_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS)
+                    >= validationContext.getProperty(ACK_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)) {
+           results.add(new ValidationResult.Builder().valid(false).explanation(
+               "Rolling FlowFile Max Age needs to be less than the Acknowledgment Timeout, or the messages in the "
+               + "rolling FlowFile would be redelivered before it is transferred.").build());
+        }
+
         return results;
     }
 
@@ -293,6 +607,34 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         }
 
         setPulsarClientService(context.getProperty(PULSAR_CLIENT_SERVICE).asControllerService(PulsarClientService.class));
+        memoryLimiter = getPulsarClientService().getMemoryLimiter();
+        memoryLimiter.addListener(consumerPauser);
+        stats = getPulsarClientService().getStats();
+        getConsumers().setCloseListener(consumer -> stats.removeConsumer(consumer));
+        recordLatency = context.getProperty(RECORD_LATENCY).isSet() && context.getProperty(RECORD_LATENCY).asBoolean();
+
+        sharedConsumerSettings = (context.getProperty(SHARE_CONSUMERS).asBoolean()
+                && SHARED.getValue().equals(context.getProperty(SUBSCRIPTION_TYPE).getValue())) ? getConsumerSettings(context) : null;
+
+        if (context.getProperty(PREWARM_CONSUMER).isSet() && context.getProperty(PREWARM_CONSUMER).asBoolean()) {
+            preWarm(context);
+        }
+    }
+
+    /**
+     * Subscribes the consumer that the first trigger would otherwise create.
+     *
+     * @throws ProcessException if the consumer could not be subscribed.
+     */
+    private void preWarm(ProcessContext context) {
+        final String consumerId = getConsumerId(context, null);
+        try {
+            if (getConsumer(context, consumerId) == null) {
+                throw new ProcessException("Unable to subscribe consumer " + consumerId);
+            }
+        } catch (final PulsarClientException e) {
+            throw new ProcessException("Unable to subscribe consumer " + consumerId, e);
+        }
     }
 
     @OnUnscheduled
@@ -320,10 +662,214 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
 
     @OnStopped
     public void cleanUp(final ProcessContext context) {
+        rollAll();
         shutDown(context);
+        releaseAsync();
+        memoryLimiter.removeListener(consumerPauser);
         getConsumers().clear();
     }
 
+    /**
+     * Releases the memory of the messages that were received asynchronously, but never handled.
+     */
+    private void releaseAsync() {
+        if (getConsumerService() == null) {
+            return;
+        }
+
+        Future<List<Message<T>>> done;
+        while ((done = getConsumerService().poll()) != null) {
+            try {
+                release(done.get());
+            } catch (InterruptedException | ExecutionException e) {
+                // The receive failed, so it did not reserve any memory
+            }
+        }
+    }
+
+    @Override
+    public final void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        this.sessionFactory = sessionFactory;
+
+        // Asynchronous consumers still have to handle the messages already received, to release their memory
+        if (memoryLimiter.isExhausted() && !context.getProperty(ASYNC_ENABLED).asBoolean()) {
+            context.yield();
+            return;
+        }
+
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session);
+            reportTimings(session);
+
+            final long start = System.nanoTime();
+            session.commit();
+
+            final String topic = triggerTopic.get();
+            if (topic != null) {
+                timings.addSince(topic, COMMIT_STAGE, start);
+            }
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        } finally {
+            final long[] held = triggerBytes.get();
+            memoryLimiter.release(held[0]);
+            held[0] = 0;
+            triggerTopic.remove();
+        }
+    }
+
+    public abstract void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException;
+
+    /**
+     * Adds the time since the start of the stage to the stage timings of the topic of the consumer.
+     *
+     * @return the current time, so that the next stage can start from it.
+     */
+    protected long time(Consumer<T> consumer, int stage, long startNanos) {
+        triggerTopic.set(consumer.getTopic());
+        return timings.addSince(consumer.getTopic(), stage, startNanos);
+    }
+
+    protected void addTime(Consumer<T> consumer, int stage, long elapsedNanos) {
+        triggerTopic.set(consumer.getTopic());
+        timings.add(consumer.getTopic(), stage, elapsedNanos);
+    }
+
+    private void reportTimings(ProcessSession session) {
+        timings.report(session, stats);
+    }
+
+    /**
+     * @return true if any of the Rolling FlowFile thresholds is specified.
+     */
+    protected static boolean isRolling(PropertyContext context) {
+        return context.getProperty(ROLLING_MAX_SIZE).isSet() || context.getProperty(ROLLING_MAX_COUNT).isSet()
+            || context.getProperty(ROLLING_MAX_AGE).isSet();
+    }
+
+    /**
+     * @return true if the messages in a rolling FlowFile have to be acknowledged one by one. Cumulative acks are NOT
+     * permitted on Shared subscriptions, and concurrent triggers may append the messages of a consumer in a different
+     * order than they were received in, so that a cumulative ack could cover messages that are not written yet.
+     */
+    protected static boolean isRollingAckIndividual(ProcessContext context) {
+        return SHARED.getValue().equalsIgnoreCase(context.getProperty(SUBSCRIPTION_TYPE).getValue())
+                || context.getMaxConcurrentTasks() > 1;
+    }
+
+    /**
+     * Creates the rolling FlowFile that the messages consumed for one consumer are written to.
+     */
+    protected abstract RollingFlowFile<T> newRollingFlowFile(ProcessSession session, Consumer<T> consumer, ProcessContext context);
+
+    /**
+     * Consumes a batch of messages into the rolling FlowFile for the given key, creating it if there is none,
+     * and then transfers the FlowFile if any of its thresholds has been reached. The messages are received before
+     * taking the lock of the key, so that only the triggers appending to the same FlowFile wait for each other.
+     *
+     * @param writer - Writes the messages to the rolling FlowFile.
+     */
+    protected void consumeRolling(final String key, final Consumer<T> consumer, final ProcessContext context,
+            final RollingWriter<T> writer) throws PulsarClientException {
+
+        final List<Message<T>> messages = getMessages(consumer, context);
+
+        synchronized (rollingLocks.computeIfAbsent(key, k -> new Object())) {
+            RollingFlowFile<T> rolling = rollingFlowFiles.get(key);
+
+            if (rolling == null) {
+                if (messages.isEmpty()) {
+                    return;
+                }
+                rolling = newRollingFlowFile(sessionFactory.createSession(), consumer, context);
+                if (recordLatency) {
+                    rolling.setLatencies(new MessageLatencies());
+                }
+                rollingFlowFiles.put(key, rolling);
+            }
+
+            try {
+                final long start = System.nanoTime();
+                writer.write(rolling, messages);
+                rolling.received(messages);
+                time(consumer, WRITE_STAGE, start);
+            } catch (final IOException | ProcessException e) {
+                // None of the messages in the FlowFile have been acknowledged, so they will be redelivered
+                getLogger().error("Unable to write to the rolling FlowFile ", e);
+                rollingFlowFiles.remove(key);
+                rolling.getSession().rollback();
+                return;
+            }
+
+            if (isFull(rolling, context)) {
+                rollingFlowFiles.remove(key);
+                roll(rolling);
+            }
+        }
+    }
+
+    private boolean isFull(RollingFlowFile<T> rolling, ProcessContext context) {
+        if (context.getProperty(ROLLING_MAX_SIZE).isSet()
+                && rolling.getSize() >= context.getProperty(ROLLING_MAX_SIZE).asDataSize(DataUnit.B).longValue()) {
+            return true;
+        }
+        if (context.getProperty(ROLLING_MAX_COUNT).isSet() && rolling.getCount() >= context.getProperty(ROLLING_MAX_COUNT).asInteger()) {
+            return true;
+        }
+
+        // The messages are unacknowledged until the FlowFile is rolled, so it must be rolled before they time out
+        final long maxAgeMillis = context.getProperty(ROLLING_MAX_AGE).isSet()
+            ? context.getProperty(ROLLING_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS)
+            : context.getProperty(ACK_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS) / 2;
+        return rolling.getAgeMillis() >= maxAgeMillis;
+    }
+
+    /**
+     * Transfers the rolling FlowFile to success, and acknowledges its messages once the session has been committed.
+     */
+    private void roll(RollingFlowFile<T> rolling) {
+        final ProcessSession session = rolling.getSession();
+
+        try {
+            FlowFile flowFile = rolling.finish();
+            if (flowFile != null) {
+                flowFile = recordLatency(session, flowFile, rolling.getConsumer(), rolling.getLatencies());
+                session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + rolling.getConsumer().getTopic());
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+            reportTimings(session);
+
+            final long start = System.nanoTime();
+            session.commit();
+            time(rolling.getConsumer(), COMMIT_STAGE, start);
+        } catch (final IOException | ProcessException e) {
+            getLogger().error("Unable to transfer the rolling FlowFile ", e);
+            session.rollback();
+            return;
+        }
+
+        try {
+            final long start = System.nanoTime();
+            rolling.acknowledge();
+            time(rolling.getConsumer(), ACK_STAGE, start);
+        } catch (final PulsarClientException e) {
+            getLogger().error("Unable to acknowledge the messages in the rolling FlowFile ", e);
+        }
+    }
+
+    private void rollAll() {
+        for (final Map.Entry<String, Object> lock : rollingLocks.entrySet()) {
+            synchronized (lock.getValue()) {
+                final RollingFlowFile<T> rolling = rollingFlowFiles.remove(lock.getKey());
+                if (rolling != null) {
+                    roll(rolling);
+                }
+            }
+        }
+    }
+
     /**
      * Method returns a string that uniquely identifies a consumer by concatenating
      * the topic name and subscription properties together.
@@ -351,18 +897,23 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
 
     protected void consumeAsync(final Consumer<T> consumer, ProcessContext context, ProcessSession session) throws PulsarClientException {
         try {
-            final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                    .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
+            final int maxMessages = getMaxMessages(context);
+            final long maxBytes = getMaxBytes(context);
+            final long maxWaitMillis = getMaxWaitMillis(context);
+
+            // Stop receiving while the memory is exhausted, the messages already received are still handled
+            if (memoryLimiter.isExhausted()) {
+                return;
+            }
 
             getConsumerService().submit(() -> {
-                List<Message<T>> messages = new LinkedList<Message<T>>();
-                Message<T> msg = null;
-                AtomicInteger msgCount = new AtomicInteger(0);
+                final long start = System.nanoTime();
+                final List<Message<T>> messages = getMessages(consumer, maxMessages, maxBytes, maxWaitMillis);
+                time(consumer, RECEIVE_STAGE, start);
+                final long bytes = getPayloadSize(messages);
 
-                while (((msg = consumer.receive(0, TimeUnit.SECONDS)) != null) && msgCount.get() < maxMessages) {
-                    messages.add(msg);
-                    msgCount.incrementAndGet();
-                }
+                memoryLimiter.reserve(bytes);
+                countReceived(consumer, messages.size(), bytes);
                 return messages;
             });
         } catch (final RejectedExecutionException ex) {
@@ -371,7 +922,211 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         }
     }
 
-    protected synchronized Consumer<T> getConsumer(ProcessContext context, String topic) throws PulsarClientException {
+    /**
+     * Retrieve a batch of messages for processing, which is closed when any of the batch limits is reached.
+     *
+     * @throws PulsarClientException in the event we cannot communicate with the Pulsar broker.
+     */
+    protected List<Message<T>> getMessages(final Consumer<T> consumer, ProcessContext context) throws PulsarClientException {
+        final long start = System.nanoTime();
+        final List<Message<T>> messages = getMessages(consumer, getMaxMessages(context), getMaxBytes(context), getMaxWaitMillis(context));
+        time(consumer, RECEIVE_STAGE, start);
+        final long bytes = getPayloadSize(messages);
+
+        memoryLimiter.reserve(bytes);
+        triggerBytes.get()[0] += bytes;
+        countReceived(consumer, messages.size(), bytes);
+        return messages;
+    }
+
+    private void countReceived(Consumer<T> consumer, int messages, long bytes) {
+        if (messages > 0) {
+            final PulsarClientStats.Counters counters = stats.getCounters(consumer.getTopic());
+            counters.add(PulsarClientStats.MESSAGES_RECEIVED, messages);
+            counters.add(PulsarClientStats.BYTES_RECEIVED, bytes);
+        }
+    }
+
+    /**
+     * @return true if Record Latency is enabled, so that the publish and event times of messages are needed.
+     */
+    protected boolean isRecordingLatency() {
+        return recordLatency;
+    }
+
+    /**
+     * Adds the latencies of the messages to the FlowFile as attributes, and records them in the stats of the topic,
+     * if Record Latency is enabled. The latencies end now, so this is called once the FlowFile is complete.
+     *
+     * @return the FlowFile with the latency attributes.
+     */
+    protected FlowFile recordLatency(ProcessSession session, FlowFile flowFile, Consumer<T> consumer, List<? extends Message<?>> messages) {
+        if (!recordLatency) {
+            return flowFile;
+        }
+
+        final MessageLatencies latencies = new MessageLatencies();
+        latencies.addAll(messages);
+        return recordLatency(session, flowFile, consumer, latencies);
+    }
+
+    protected FlowFile recordLatency(ProcessSession session, FlowFile flowFile, Consumer<T> consumer, MessageLatencies latencies) {
+        if (!recordLatency || latencies == null || latencies.getCount() == 0) {
+            return flowFile;
+        }
+
+        final long now = System.currentTimeMillis();
+        final String topic = consumer.getTopic();
+        final Map<String, String> attributes = latencies.record(now, stats.getPublishLatency(topic), stats.getEventLatency(topic));
+
+        session.adjustCounter(LATENCY_MESSAGES_COUNTER, latencies.getCount(), false);
+        session.adjustCounter(LATENCY_TOTAL_COUNTER, latencies.getTotalPublishLatency(now), false);
+        return session.putAllAttributes(flowFile, attributes);
+    }
+
+    /**
+     * Releases the memory of messages that were received asynchronously, once they have been handled.
+     */
+    protected void release(List<Message<T>> messages) {
+        if (messages != null) {
+            memoryLimiter.release(getPayloadSize(messages));
+        }
+    }
+
+    /**
+     * Retrieve a batch of up to maxMessages, or as many messages as fit in maxBytes. If maxWaitMillis is not negative,
+     * wait up to that long in total for messages to arrive, otherwise only take the messages that are already available.
+     *
+     * @throws PulsarClientException in the event we cannot communicate with the Pulsar broker.
+     */
+    protected List<Message<T>> getMessages(final Consumer<T> consumer, int maxMessages, long maxBytes, long maxWaitMillis)
+            throws PulsarClientException {
+        final List<Message<T>> messages = new LinkedList<Message<T>>();
+        final long deadline = (maxWaitMillis < 0) ? -1L : System.currentTimeMillis() + maxWaitMillis;
+        long bytes = 0;
+        Message<T> msg = null;
+
+        // A full batch is closed before receiving another message, which would otherwise be dropped
+        while (bytes < maxBytes && messages.size() < maxMessages && ((msg = receive(consumer, deadline)) != null)) {
+            messages.add(msg);
+            bytes += getPayloadSize(msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Receive the next message, waiting until the deadline if there is one.
+     *
+     * @param deadline - The time in milliseconds to wait until, or a negative number to not wait at all.
+     */
+    protected Message<T> receive(final Consumer<T> consumer, long deadline) throws PulsarClientException {
+        if (deadline < 0) {
+            return consumer.receive(0, TimeUnit.SECONDS);
+        }
+
+        final long remaining = deadline - System.currentTimeMillis();
+        return (remaining > 0) ? consumer.receive((int) Math.min(remaining, Integer.MAX_VALUE), TimeUnit.MILLISECONDS) : null;
+    }
+
+    protected int getMaxMessages(ProcessContext context) {
+        return context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
+                .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
+    }
+
+    protected long getMaxBytes(ProcessContext context) {
+        return context.getProperty(CONSUMER_BATCH_MAX_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_MAX_SIZE)
+                .evaluateAttributeExpressions().asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the maximum time to wait for a batch in milliseconds, or -1 if the batch should not wait for messages.
+     */
+    protected long getMaxWaitMillis(ProcessContext context) {
+        return context.getProperty(CONSUMER_BATCH_MAX_WAIT).isSet() ? context.getProperty(CONSUMER_BATCH_MAX_WAIT)
+                .evaluateAttributeExpressions().asTimePeriod(TimeUnit.MILLISECONDS) : -1L;
+    }
+
+    /**
+     * Writes the payloads of the given messages to the FlowFile, each followed by the demarcator, using a single
+     * buffered stream that is sized from the total number of bytes in the batch. Where the Pulsar client exposes
+     * the buffer that a message was received into, the payload is written straight from that buffer rather than
+     * being copied into a new array first.
+     *
+     * @throws ProcessException if the content could not be written.
+     */
+    protected FlowFile writeMessages(ProcessSession session, FlowFile flowFile, List<Message<byte[]>> messages, byte[] demarcatorBytes) {
+        final byte[] demarcator = (demarcatorBytes == null) ? new byte[0] : demarcatorBytes;
+        long totalBytes = 0;
+
+        for (Message<byte[]> msg : messages) {
+            totalBytes += getPayloadSize(msg) + demarcator.length;
+        }
+
+        final int bufferSize = (int) Math.max(MIN_WRITE_BUFFER_SIZE, Math.min(MAX_WRITE_BUFFER_SIZE, totalBytes));
+
+        return session.write(flowFile, rawOut -> {
+            final OutputStream out = new BufferedOutputStream(rawOut, bufferSize);
+            for (Message<byte[]> msg : messages) {
+                writePayload(msg, out);
+                out.write(demarcator);
+            }
+            out.flush();
+        });
+    }
+
+    /**
+     * @return the number of bytes in the message payload, or 0 if the message has no payload.
+     */
+    protected static long getPayloadSize(List<? extends Message<?>> messages) {
+        long bytes = 0;
+        for (Message<?> msg : messages) {
+            bytes += getPayloadSize(msg);
+        }
+        return bytes;
+    }
+
+    protected static int getPayloadSize(Message<?> msg) {
+        final ByteBuf buffer = getDataBuffer(msg);
+        if (buffer != null) {
+            return buffer.readableBytes();
+        }
+
+        final Object value = msg.getValue();
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return (msg.getData() == null) ? 0 : msg.getData().length;
+    }
+
+    protected static void writePayload(Message<byte[]> msg, OutputStream out) throws IOException {
+        final ByteBuf buffer = getDataBuffer(msg);
+
+        if (buffer != null) {
+            buffer.getBytes(buffer.readerIndex(), out, buffer.readableBytes());
+        } else if (msg.getValue() != null) {
+            out.write(msg.getValue());
+        }
+    }
+
+    private static ByteBuf getDataBuffer(Message<?> msg) {
+        Message<?> inner = msg;
+
+        // Messages received from multiple topics are wrapped in a TopicMessageImpl
+        if (inner instanceof TopicMessageImpl) {
+            inner = ((TopicMessageImpl<?>) inner).getMessage();
+        }
+        return (inner instanceof MessageImpl) ? ((MessageImpl<?>) inner).getDataBuffer() : null;
+    }
+
+    /**
+     * Writes a batch of messages to a rolling FlowFile.
+     */
+    @FunctionalInterface
+    protected interface RollingWriter<T> {
+        void write(RollingFlowFile<T> rolling, List<Message<T>> messages) throws IOException;
+    }
+
+    protected Consumer<T> getConsumer(ProcessContext context, String topic) throws PulsarClientException {
 
         /* Avoid creating producers for non-existent topics */
         if (StringUtils.isBlank(topic)) {
@@ -384,24 +1139,63 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
            return consumer;
         }
 
-        // Create a new consumer and validate that it is connected before returning it.
-        consumer = getConsumerBuilder(context).subscribe();
-        if (consumer != null && consumer.isConnected()) {
-           getConsumers().put(topic, consumer);
+        if (consumer != null) {
+           // Close the disconnected consumer, so that a new one is subscribed in its place
+           getConsumers().remove(topic, consumer);
         }
 
+        // Create a new consumer and validate that it is connected before returning it.
+        consumer = getConsumers().get(topic, t -> subscribe(context, t));
+
         return (consumer != null && consumer.isConnected()) ? consumer : null;
     }
 
+    private Consumer<T> subscribe(ProcessContext context, String consumerId) throws PulsarClientException {
+        final ConsumerBuilder<T> builder = getConsumerBuilder(context);
+        final String settings = sharedConsumerSettings;
+
+        final Consumer<T> consumer;
+        if (settings == null) {
+            consumer = builder.subscribe();
+        } else {
+            try {
+                consumer = getPulsarClientService().getSharedConsumer(consumerId + "|" + settings, builder).join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof PulsarClientException) {
+                    throw (PulsarClientException) e.getCause();
+                }
+                throw new PulsarClientException(e.getCause());
+            }
+        }
+
+        stats.addConsumer(consumer);
+        return consumer;
+    }
+
+    /**
+     * @return the values of all of the properties that the consumers are built with, other than those in the consumer id.
+     */
+    private static String getConsumerSettings(ProcessContext context) {
+        return String.join("|",
+                context.getProperty(ACK_TIMEOUT).getValue(),
+                context.getProperty(PRIORITY_LEVEL).getValue(),
+                context.getProperty(RECEIVER_QUEUE_SIZE).getValue(),
+                context.getProperty(SUBSCRIPTION_TYPE).getValue());
+    }
+
     protected synchronized ConsumerBuilder<T> getConsumerBuilder(ProcessContext context) throws PulsarClientException {
 
-        ConsumerBuilder<T> builder = (ConsumerBuilder<T>) getPulsarClientService().getPulsarClient().newConsumer();
+        ConsumerBuilder<T> builder;
 
         if (context.getProperty(TOPICS).isSet()) {
-            builder = builder.topic(Arrays.stream(context.getProperty(TOPICS).evaluateAttributeExpressions().getValue().split("[, ]"))
-                    .map(String::trim).toArray(String[]::new));
+            final String topics = context.getProperty(TOPICS).evaluateAttributeExpressions().getValue();
+            builder = ((ConsumerBuilder<T>) getPulsarClientService().getPulsarClient(topics).newConsumer())
+                    .topic(Arrays.stream(topics.split("[, ]")).map(String::trim).toArray(String[]::new));
         } else if (context.getProperty(TOPICS_PATTERN).isSet()) {
-            builder = builder.topicsPattern(context.getProperty(TOPICS_PATTERN).getValue());
+            final String pattern = context.getProperty(TOPICS_PATTERN).getValue();
+            builder = ((ConsumerBuilder<T>) getPulsarClientService().getPulsarClient(pattern).newConsumer()).topicsPattern(pattern);
+        } else {
+            builder = (ConsumerBuilder<T>) getPulsarClientService().getPulsarClient().newConsumer();
         }
 
         if (context.getProperty(CONSUMER_NAME).isSet()) {
@@ -455,14 +1249,20 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
        this.pulsarClientService = pulsarClientService;
     }
 
-    protected synchronized PulsarClientLRUCache<String, Consumer<T>> getConsumers() {
-        if (consumers == null) {
-           consumers = new PulsarClientLRUCache<String, Consumer<T>>(20);
+    protected PulsarClientCache<String, Consumer<T>> getConsumers() {
+        PulsarClientCache<String, Consumer<T>> cache = consumers;
+        if (cache == null) {
+           synchronized (this) {
+              if (consumers == null) {
+                 consumers = new PulsarClientCache<String, Consumer<T>>(PulsarClientCache.DEFAULT_MAX_SIZE);
+              }
+              cache = consumers;
+           }
         }
-        return consumers;
+        return cache;
     }
 
-    protected void setConsumers(PulsarClientLRUCache<String, Consumer<T>> consumers) {
+    protected void setConsumers(PulsarClientCache<String, Consumer<T>> consumers) {
         this.consumers = consumers;
     }
 }
@@ -16,21 +16,28 @@
  */
 package org.apache.nifi.processors.pulsar;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
@@ -38,19 +45,26 @@ import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processors.pulsar.util.PreWarmTopics;
 import org.apache.nifi.pulsar.PulsarClientService;
-import org.apache.nifi.pulsar.cache.PulsarClientLRUCache;
+import org.apache.nifi.pulsar.cache.PulsarClientCache;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
 import org.apache.nifi.util.StringUtils;
 import org.apache.pulsar.client.api.CompressionType;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.MessageRoutingMode;
 import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
 
 public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcessor {
 
@@ -66,6 +80,16 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
                                                                                                                        + "partitions in a round robin manner");
     static final AllowableValue MESSAGE_ROUTING_MODE_SINGLE_PARTITION = new AllowableValue("SinglePartition", "Single Partition", "Route messages to a single partition");
 
+    // The message properties that identify a message across retries of its FlowFile, when deduplication is enabled
+    public static final String FLOWFILE_UUID_PROPERTY = "nifi.flowfile.uuid";
+    public static final String MESSAGE_OFFSET_PROPERTY = "nifi.message.offset";
+
+    // The stages of publishing that are timed, in the order of their counter names
+    protected static final int READ_STAGE = 0;
+    protected static final int SERIALIZE_STAGE = 1;
+    protected static final int SEND_STAGE = 2;
+    protected static final int ACK_WAIT_STAGE = 3;
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("FlowFiles for which all content was sent to Pulsar.")
@@ -100,7 +124,8 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
                     + " synchronously will be acknowledged immediately before processing the next message, while"
                     + " asynchronous messages will be acknowledged after the Pulsar broker responds. Running the"
                     + " processor with async enabled will result in increased the throughput at the risk of potential"
-                    + " duplicate data being sent to the Pulsar broker.")
+                    + " duplicate data being sent to the Pulsar broker, unless 'Deduplication Enabled' is set and"
+                    + " deduplication is enabled on the Pulsar namespace.")
             .required(true)
             .allowableValues("true", "false")
             .defaultValue("false")
@@ -207,6 +232,75 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
             .defaultValue("1000")
             .build();
 
+    public static final PropertyDescriptor DEDUPLICATION_ENABLED = new PropertyDescriptor.Builder()
+            .name("DEDUPLICATION_ENABLED")
+            .displayName("Deduplication Enabled")
+            .description("Control whether the messages are sent in a way that allows the Pulsar broker to discard duplicates. "
+                    + "When enabled, each producer is given a stable name derived from this processor's identifier, the NiFi "
+                    + "node and the topic, so that the Pulsar client gives its messages increasing sequence ids, continuing from "
+                    + "the last one that the broker persisted for the producer. The broker then discards the messages that the producer re-sends "
+                    + "after a reconnection, if it already persisted them. This requires deduplication to be enabled on the Pulsar "
+                    + "namespace. A FlowFile that is retried after a failure is sent as new messages, so each message also carries "
+                    + "the '" + FLOWFILE_UUID_PROPERTY + "' and '" + MESSAGE_OFFSET_PROPERTY + "' properties, the FlowFile's UUID "
+                    + "and the offset of the message within it, by which consumers can discard the messages they already received.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor ATTRIBUTES_AS_PROPERTIES = new PropertyDescriptor.Builder()
+            .name("ATTRIBUTES_AS_PROPERTIES")
+            .displayName("Attributes to Send as Properties")
+            .description("A regular expression that is matched against the names of the FlowFile attributes. Each attribute whose "
+                    + "name matches is sent as a property of every message published from the FlowFile, with the attribute name "
+                    + "as the property key. If not set, no attributes are sent.")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PRODUCER_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("PRODUCER_CACHE_SIZE")
+            .displayName("Producer Cache Size")
+            .description("The maximum number of producers that are kept open, one for each topic published to. When the Topic "
+                    + "Name evaluates to more topics than this, the least recently used producers are closed.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(PulsarClientCache.DEFAULT_MAX_SIZE))
+            .build();
+
+    public static final PropertyDescriptor PRODUCER_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("PRODUCER_IDLE_TIMEOUT")
+            .displayName("Producer Idle Timeout")
+            .description("How long a producer may go without publishing a message before it is closed. Zero means that "
+                    + "producers are only closed when the cache is full.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 mins")
+            .build();
+
+    public static final PropertyDescriptor SHARE_PRODUCERS = new PropertyDescriptor.Builder()
+            .name("SHARE_PRODUCERS")
+            .displayName("Share Producers")
+            .description("If true, the producers are shared with the other processors that use the same Pulsar Client Service, "
+                    + "and publish to the same topics with the same producer settings. Sharing a producer fills its batches "
+                    + "faster, and reduces the number of pending queues and the state kept by the brokers. Producers are never "
+                    + "shared when Deduplication Enabled is true, as every processor needs its own sequence ids.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor PREWARM_TOPICS = new PropertyDescriptor.Builder()
+            .name("PREWARM_TOPICS")
+            .displayName("Pre-warm Topics")
+            .description("A comma separated list of topics to create producers for when the processor is scheduled, so that the "
+                    + "first FlowFiles do not wait for the topic lookup and producer creation. An entry ending in /* stands for all "
+                    + "of the persistent topics in that namespace, e.g. public/default/*. The processor fails to start if any of "
+                    + "the producers cannot be created. At most Producer Cache Size producers are created.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
     protected static final List<PropertyDescriptor> PROPERTIES;
     protected static final Set<Relationship> RELATIONSHIPS;
 
@@ -224,6 +318,12 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         properties.add(MESSAGE_ROUTING_MODE);
         properties.add(MESSAGE_DEMARCATOR);
         properties.add(PENDING_MAX_MESSAGES);
+        properties.add(DEDUPLICATION_ENABLED);
+        properties.add(ATTRIBUTES_AS_PROPERTIES);
+        properties.add(PRODUCER_CACHE_SIZE);
+        properties.add(PRODUCER_IDLE_TIMEOUT);
+        properties.add(SHARE_PRODUCERS);
+        properties.add(PREWARM_TOPICS);
         PROPERTIES = Collections.unmodifiableList(properties);
 
         final Set<Relationship> relationships = new HashSet<>();
@@ -243,7 +343,7 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
     }
 
     private PulsarClientService pulsarClientService;
-    private PulsarClientLRUCache<String, Producer<T>> producers;
+    private volatile PulsarClientCache<String, Producer<T>> producers;
     private ExecutorService publisherPool;
 
     // Used to sync between onTrigger method and shutdown code block.
@@ -253,24 +353,57 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
     protected AtomicBoolean trackFailures = new AtomicBoolean();
 
     private int maxRequests = 1;
-
-    protected BlockingQueue<Pair<String,T>> workQueue;
-    protected BlockingQueue<Pair<String,T>> failureQueue;
+    private volatile boolean deduplicationEnabled = false;
+    private volatile String nodeName;
+    private volatile Pattern attributePattern;
+    private volatile PulsarMemoryLimiter memoryLimiter = PulsarMemoryLimiter.UNLIMITED;
+    private volatile PulsarClientStats stats = PulsarClientStats.DISABLED;
+    private final StageTimings timings = new StageTimings(PulsarClientStats.PUBLISH_READ_NANOS, PulsarClientStats.PUBLISH_SERIALIZE_NANOS,
+            PulsarClientStats.PUBLISH_SEND_NANOS, PulsarClientStats.PUBLISH_ACK_WAIT_NANOS);
+    // The settings of the shared producers, or null if producers are not shared
+    private volatile String sharedProducerSettings;
+
+    protected BlockingQueue<OutgoingMessage<T>> workQueue;
+    protected BlockingQueue<OutgoingMessage<T>> failureQueue;
     protected List<AsyncPublisher> asyncPublishers;
 
     @OnScheduled
     public void init(ProcessContext context) {
         maxRequests = context.getProperty(MAX_ASYNC_REQUESTS).asInteger();
         setPulsarClientService(context.getProperty(PULSAR_CLIENT_SERVICE).asControllerService(PulsarClientService.class));
+        memoryLimiter = getPulsarClientService().getMemoryLimiter();
+        stats = getPulsarClientService().getStats();
+        if (producers != null) {
+            // Producers created with the previous configuration
+            producers.clear();
+        }
+        setProducers(new PulsarClientCache<String, Producer<T>>(context.getProperty(PRODUCER_CACHE_SIZE).asInteger(),
+                context.getProperty(PRODUCER_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS));
+        getProducers().setCloseListener(producer -> stats.removeProducer(producer));
+
+        deduplicationEnabled = context.getProperty(DEDUPLICATION_ENABLED).isSet() && context.getProperty(DEDUPLICATION_ENABLED).asBoolean();
+        if (deduplicationEnabled) {
+            nodeName = getNodeName();
+        }
+
+        sharedProducerSettings = (context.getProperty(SHARE_PRODUCERS).asBoolean() && !deduplicationEnabled)
+                ? getProducerSettings(context) : null;
+
+        attributePattern = context.getProperty(ATTRIBUTES_AS_PROPERTIES).isSet()
+                ? Pattern.compile(context.getProperty(ATTRIBUTES_AS_PROPERTIES).getValue()) : null;
+
+        if (context.getProperty(PREWARM_TOPICS).isSet()) {
+            preWarm(context, PreWarmTopics.resolve(getPulsarClientService(), context.getProperty(PREWARM_TOPICS).getValue()));
+        }
 
         if (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean()) {
             setPublisherPool(Executors.newFixedThreadPool(maxRequests));
             setAsyncPublishers(new LinkedList<AsyncPublisher>());
             // Limit the depth of the work queue to 500 per worker, to prevent long shutdown times.
-            workQueue = new LinkedBlockingQueue<Pair<String,T>>(500 * maxRequests);
+            workQueue = new LinkedBlockingQueue<OutgoingMessage<T>>(500 * maxRequests);
 
             if (context.hasConnection(REL_FAILURE)) {
-                failureQueue = new LinkedBlockingQueue<Pair<String,T>>();
+                failureQueue = new LinkedBlockingQueue<OutgoingMessage<T>>();
                 trackFailures.set(true);
             } else {
                 trackFailures.set(false);
@@ -285,6 +418,37 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         }
     }
 
+    /**
+     * Creates the producers for the topics in parallel, and waits for all of them.
+     *
+     * @throws ProcessException if any of the producers could not be created.
+     */
+    private void preWarm(ProcessContext context, List<String> topics) {
+        final int limit = context.getProperty(PRODUCER_CACHE_SIZE).asInteger();
+        if (topics.size() > limit) {
+            getLogger().warn("Only pre-warming {} of the {} topics, as that is the Producer Cache Size",
+                    new Object[] {limit, topics.size()});
+            topics = topics.subList(0, limit);
+        }
+
+        final Map<String, CompletableFuture<Producer<T>>> futures = new LinkedHashMap<>();
+        for (String topic : topics) {
+            futures.put(topic, getProducerAsync(context, topic));
+        }
+
+        final List<String> failed = new ArrayList<>();
+        futures.forEach((topic, future) -> {
+            if (getProducer(future) == null) {
+                failed.add(topic);
+            }
+        });
+
+        if (!failed.isEmpty()) {
+            throw new ProcessException("Unable to create producers for topics " + failed);
+        }
+        getLogger().info("Pre-warmed producers for {} topics", new Object[] {futures.size()});
+    }
+
     @OnUnscheduled
     public void shutDown(final ProcessContext context) {
         /*
@@ -345,7 +509,7 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
            return;
         }
 
-        Pair<String,T> failure = failureQueue.poll();
+        OutgoingMessage<T> failure = failureQueue.poll();
 
         while (failure != null) {
             FlowFile flowFile = session.create();
@@ -353,12 +517,191 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
             flowFile = session.write(flowFile, out -> {
                  out.write(value);
             });
-            session.putAttribute(flowFile, TOPIC_NAME, failure.getKey());
+            session.putAttribute(flowFile, TOPIC_NAME, failure.getTopic());
             session.transfer(flowFile, REL_FAILURE);
             failure = failureQueue.poll();
         }
     }
 
+    /**
+     * Collects the FlowFile attributes that are to be sent as message properties. The map is built once
+     * per FlowFile, and shared by all of the messages that are published from it.
+     *
+     * @return the message properties, or an empty map if no attributes are sent.
+     */
+    protected Map<String, String> getMessageProperties(FlowFile flowFile) {
+        final Pattern pattern = attributePattern;
+        if (pattern == null) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, String> properties = new HashMap<>();
+        for (Map.Entry<String, String> attribute : flowFile.getAttributes().entrySet()) {
+            if (attribute.getValue() != null && pattern.matcher(attribute.getKey()).matches()) {
+                properties.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return properties.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * Creates the message for the given value, found at the given offset within the FlowFile.
+     * If deduplication is enabled, the message carries the FlowFile UUID and the offset as properties,
+     * so that consumers can recognize the messages of a FlowFile that was re-sent.
+     *
+     * @param properties - The message properties, as returned by {@link #getMessageProperties(FlowFile)}.
+     */
+    protected OutgoingMessage<T> createMessage(String topic, T value, FlowFile flowFile, long offset, Map<String, String> properties) {
+        if (!deduplicationEnabled) {
+            return new OutgoingMessage<T>(topic, value).setProperties(properties);
+        }
+
+        final Map<String, String> identified = new HashMap<>(properties.size() + 2);
+        identified.putAll(properties);
+        identified.put(FLOWFILE_UUID_PROPERTY, flowFile.getAttribute(CoreAttributes.UUID.key()));
+        identified.put(MESSAGE_OFFSET_PROPERTY, String.valueOf(offset));
+        return new OutgoingMessage<T>(topic, value).setProperties(identified);
+    }
+
+    /**
+     * Sends the message synchronously, using a TypedMessageBuilder only when the message carries metadata.
+     */
+    protected MessageId send(Producer<T> producer, OutgoingMessage<T> message) throws PulsarClientException {
+        final long bytes;
+        try {
+            bytes = acquireMemory(message);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        }
+
+        final PulsarClientStats.Counters counters = stats.getCounters(message.getTopic());
+        try {
+            // A synchronous send waits for the acknowledgement, so it is timed as a whole
+            final long start = System.nanoTime();
+            final MessageId messageId = message.hasMetadata() ? newMessage(producer, message).send() : producer.send(message.getValue());
+            time(message.getTopic(), SEND_STAGE, start);
+            count(counters, messageId, bytes);
+            return messageId;
+        } catch (final PulsarClientException | RuntimeException e) {
+            counters.add(PulsarClientStats.SEND_FAILURES, 1);
+            throw e;
+        } finally {
+            memoryLimiter.release(bytes);
+        }
+    }
+
+    /**
+     * Sends the message asynchronously, using a TypedMessageBuilder only when the message carries metadata.
+     */
+    protected CompletableFuture<MessageId> sendAsync(Producer<T> producer, OutgoingMessage<T> message) {
+        final long bytes;
+        try {
+            bytes = acquireMemory(message);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final CompletableFuture<MessageId> interrupted = new CompletableFuture<>();
+            interrupted.completeExceptionally(e);
+            return interrupted;
+        }
+
+        final CompletableFuture<MessageId> future;
+        final long sent;
+        try {
+            final long start = System.nanoTime();
+            future = message.hasMetadata() ? newMessage(producer, message).sendAsync() : producer.sendAsync(message.getValue());
+            sent = time(message.getTopic(), SEND_STAGE, start);
+        } catch (final RuntimeException e) {
+            memoryLimiter.release(bytes);
+            throw e;
+        }
+        final PulsarClientStats.Counters counters = stats.getCounters(message.getTopic());
+        return future.whenComplete((messageId, failure) -> {
+            time(message.getTopic(), ACK_WAIT_STAGE, sent);
+            memoryLimiter.release(bytes);
+            count(counters, (failure == null) ? messageId : null, bytes);
+        });
+    }
+
+    /**
+     * Adds the time since the start of the stage to the stage timings of the topic.
+     *
+     * @return the current time, so that the next stage can start from it.
+     */
+    protected long time(String topic, int stage, long startNanos) {
+        return timings.addSince(topic, stage, startNanos);
+    }
+
+    /**
+     * Adds the stage timings since the last report to the counters of the session and of each topic. The timings of
+     * a trigger are reported by the next one, as the acknowledgements of asynchronous sends arrive later.
+     */
+    protected void reportTimings(ProcessSession session) {
+        timings.report(session, stats);
+    }
+
+    private static void count(PulsarClientStats.Counters counters, MessageId messageId, long bytes) {
+        if (messageId != null) {
+            counters.add(PulsarClientStats.MESSAGES_SENT, 1);
+            counters.add(PulsarClientStats.BYTES_SENT, bytes);
+        } else {
+            counters.add(PulsarClientStats.SEND_FAILURES, 1);
+        }
+    }
+
+    /**
+     * Acquires the memory for the payload of the message, waiting for the messages in flight to be acknowledged
+     * if the memory limit of the client service has been reached.
+     *
+     * @return the number of bytes acquired, which must be released once the message is sent.
+     */
+    private long acquireMemory(OutgoingMessage<T> message) throws InterruptedException {
+        final long bytes = (message.getValue() instanceof byte[]) ? ((byte[]) message.getValue()).length : 0;
+        memoryLimiter.acquire(bytes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return bytes;
+    }
+
+    /**
+     * @return true if the memory limit of the client service has been reached, in which case no more FlowFiles
+     * should be read until the messages in flight have been acknowledged.
+     */
+    protected boolean isMemoryExhausted() {
+        return memoryLimiter.isExhausted();
+    }
+
+    private TypedMessageBuilder<T> newMessage(Producer<T> producer, OutgoingMessage<T> message) {
+        TypedMessageBuilder<T> builder = producer.newMessage().value(message.getValue());
+
+        if (message.getKey() != null) {
+            builder = builder.key(message.getKey());
+        }
+
+        if (message.getEventTime() > 0) {
+            builder = builder.eventTime(message.getEventTime());
+        }
+
+        if (!message.getProperties().isEmpty()) {
+            builder = builder.properties(message.getProperties());
+        }
+        return builder;
+    }
+
+    /**
+     * Returns a producer name that stays the same across restarts of this processor, which is
+     * required for the broker to track the last sequence id persisted for the producer.
+     */
+    protected String getProducerName(String topic) {
+        return getIdentifier() + "-" + nodeName + "-" + topic;
+    }
+
+    private static String getNodeName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
     private synchronized List<AbstractPulsarProducerProcessor<T>.AsyncPublisher> getAsyncPublishers() {
         return asyncPublishers;
     }
@@ -367,34 +710,93 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
        asyncPublishers = list;
     }
 
-    protected synchronized Producer<T> getProducer(ProcessContext context, String topic) {
+    /**
+     * Returns the producer for the topic, waiting for it to be created if necessary.
+     *
+     * @return the producer, or null if it could not be created or is not connected.
+     */
+    protected Producer<T> getProducer(ProcessContext context, String topic) {
+        return getProducer(getProducerAsync(context, topic));
+    }
+
+    /**
+     * Returns the producer for the topic, starting its creation if necessary. Producers are created with
+     * createAsync(), and only once for concurrent requests for the same topic, so a slow topic lookup does
+     * not hold up the tasks that publish to topics whose producers already exist.
+     *
+     * @return a future that completes with the producer, or with null if the topic is blank.
+     */
+    protected CompletableFuture<Producer<T>> getProducerAsync(ProcessContext context, String topic) {
 
         /* Avoid creating producers for non-existent topics */
         if (StringUtils.isBlank(topic)) {
-           return null;
+           return CompletableFuture.completedFuture(null);
         }
 
-        Producer<T> producer = getProducers().get(topic);
+        final Producer<T> producer = getProducers().get(topic);
 
-        try {
-            if (producer != null && producer.isConnected()) {
-              return producer;
-            }
+        if (producer != null && producer.isConnected()) {
+           return CompletableFuture.completedFuture(producer);
+        }
 
-            producer = getBuilder(context, topic).create();
+        if (producer != null) {
+           // Close the disconnected producer, so that a new one is created in its place
+           getProducers().remove(topic, producer);
+        }
 
-            if (producer != null && producer.isConnected()) {
-              getProducers().put(topic, producer);
-            }
-        } catch (PulsarClientException e) {
-            getLogger().error("Unable to create Pulsar Producer ", e);
-            producer = null;
+        return getProducers().getAsync(topic, t -> createProducer(context, t));
+    }
+
+    private CompletableFuture<Producer<T>> createProducer(ProcessContext context, String topic) {
+        final ProducerBuilder<T> builder = getBuilder(context, topic);
+        final String settings = sharedProducerSettings;
+
+        final CompletableFuture<Producer<T>> producer = (settings == null) ? builder.createAsync()
+                : getPulsarClientService().getSharedProducer(topic + "|" + settings, builder);
+
+        return producer.thenApply(created -> {
+            stats.addProducer(created);
+            return created;
+        });
+    }
+
+    /**
+     * @return the values of all of the properties that the producers are built with, other than the topic.
+     */
+    private static String getProducerSettings(ProcessContext context) {
+        return String.join("|",
+                context.getProperty(BATCHING_ENABLED).getValue(),
+                context.getProperty(BATCHING_MAX_MESSAGES).evaluateAttributeExpressions().getValue(),
+                context.getProperty(BATCH_INTERVAL).evaluateAttributeExpressions().getValue(),
+                context.getProperty(BLOCK_IF_QUEUE_FULL).getValue(),
+                context.getProperty(COMPRESSION_TYPE).getValue(),
+                context.getProperty(PENDING_MAX_MESSAGES).evaluateAttributeExpressions().getValue(),
+                context.getProperty(MESSAGE_ROUTING_MODE).getValue());
+    }
+
+    /**
+     * Waits for the producer to be created.
+     *
+     * @return the producer, or null if it could not be created or is not connected.
+     */
+    protected Producer<T> getProducer(CompletableFuture<Producer<T>> future) {
+        final Producer<T> producer;
+        try {
+            producer = future.join();
+        } catch (CompletionException e) {
+            getLogger().error("Unable to create Pulsar Producer ", e.getCause());
+            return null;
         }
         return (producer != null && producer.isConnected()) ? producer : null;
     }
 
     private synchronized ProducerBuilder<T> getBuilder(ProcessContext context, String topic) {
-        ProducerBuilder<T> builder = (ProducerBuilder<T>) getPulsarClientService().getPulsarClient().newProducer();
+        ProducerBuilder<T> builder = (ProducerBuilder<T>) getPulsarClientService().getPulsarClient(topic).newProducer();
+
+        if (deduplicationEnabled) {
+            builder = builder.producerName(getProducerName(topic));
+        }
+
         return builder.topic(topic)
                       .enableBatching(context.getProperty(BATCHING_ENABLED).asBoolean())
                       .batchingMaxMessages(context.getProperty(BATCHING_MAX_MESSAGES).evaluateAttributeExpressions().asInteger())
@@ -413,14 +815,20 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
        this.pulsarClientService = pulsarClientService;
     }
 
-    protected synchronized PulsarClientLRUCache<String, Producer<T>> getProducers() {
-       if (producers == null) {
-         producers = new PulsarClientLRUCache<String, Producer<T>>(20);
+    protected PulsarClientCache<String, Producer<T>> getProducers() {
+       PulsarClientCache<String, Producer<T>> cache = producers;
+       if (cache == null) {
+         synchronized (this) {
+           if (producers == null) {
+             producers = new PulsarClientCache<String, Producer<T>>(PulsarClientCache.DEFAULT_MAX_SIZE);
+           }
+           cache = producers;
+         }
        }
-       return producers;
+       return cache;
     }
 
-    protected synchronized void setProducers(PulsarClientLRUCache<String, Producer<T>> producers) {
+    protected void setProducers(PulsarClientCache<String, Producer<T>> producers) {
        this.producers = producers;
     }
 
@@ -456,19 +864,19 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
 
         private void process() {
             try {
-                Pair<String,T> item = workQueue.take();
-                Producer<T> producer = getProducers().get(item.getLeft());
+                OutgoingMessage<T> item = workQueue.take();
+                Producer<T> producer = getProducers().get(item.getTopic());
 
                 if (!trackFailures.get()) {
                     // We don't care about failures, so just fire & forget
-                    producer.sendAsync(item.getValue());
+                    sendAsync(producer, item);
                 } else if (producer == null || !producer.isConnected()) {
                     // We cannot get a valid producer, so add the item to the failure queue
                     failureQueue.put(item);
                 } else {
                     try {
                         // Send the item asynchronously and confirm we get a messageId back from Pulsar.
-                        if (producer.sendAsync(item.getValue()).join() == null) {
+                        if (sendAsync(producer, item).join() == null) {
                             // No messageId indicates failure
                             failureQueue.put(item);
                         }
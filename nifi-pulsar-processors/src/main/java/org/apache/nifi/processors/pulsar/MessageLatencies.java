@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.pulsar.stats.LatencyHistogram;
+import org.apache.pulsar.client.api.Message;
+
+/**
+ * The publish and event times of the messages written to a FlowFile, from which the latencies of the messages are
+ * computed once the FlowFile is complete. Only the times are kept, so that the messages themselves can be released.
+ */
+public class MessageLatencies {
+
+    public static final String PUBLISH_LATENCY_PREFIX = "latency.publish.";
+    public static final String EVENT_LATENCY_PREFIX = "latency.event.";
+
+    private long[] publishTimes = new long[16];
+    private int publishCount;
+    private long[] eventTimes = new long[16];
+    private int eventCount;
+
+    public void add(Message<?> msg) {
+        if (publishCount == publishTimes.length) {
+            publishTimes = Arrays.copyOf(publishTimes, publishCount * 2);
+        }
+        publishTimes[publishCount++] = msg.getPublishTime();
+
+        // The event time is zero when the producer did not set it
+        if (msg.getEventTime() > 0) {
+            if (eventCount == eventTimes.length) {
+                eventTimes = Arrays.copyOf(eventTimes, eventCount * 2);
+            }
+            eventTimes[eventCount++] = msg.getEventTime();
+        }
+    }
+
+    public void addAll(List<? extends Message<?>> messages) {
+        for (Message<?> msg : messages) {
+            add(msg);
+        }
+    }
+
+    public int getCount() {
+        return publishCount;
+    }
+
+    /**
+     * Records the latencies of the messages up to the given time into the histograms.
+     *
+     * @return the median, 99th percentile and maximum latencies of the messages in milliseconds, as FlowFile attributes.
+     */
+    public Map<String, String> record(long now, LatencyHistogram publishLatency, LatencyHistogram eventLatency) {
+        final Map<String, String> attributes = new HashMap<>();
+        record(now, publishTimes, publishCount, publishLatency, PUBLISH_LATENCY_PREFIX, attributes);
+        record(now, eventTimes, eventCount, eventLatency, EVENT_LATENCY_PREFIX, attributes);
+        return attributes;
+    }
+
+    /**
+     * @return the sum of the publish latencies of the messages up to the given time in milliseconds.
+     */
+    public long getTotalPublishLatency(long now) {
+        long total = 0;
+        for (int i = 0; i < publishCount; i++) {
+            total += Math.max(0, now - publishTimes[i]);
+        }
+        return total;
+    }
+
+    private static void record(long now, long[] times, int count, LatencyHistogram histogram, String prefix, Map<String, String> attributes) {
+        if (count == 0) {
+            return;
+        }
+
+        final long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = Math.max(0, now - times[i]);
+            histogram.record(latencies[i]);
+        }
+        Arrays.sort(latencies);
+
+        attributes.put(prefix + "p50", String.valueOf(latencies[(int) Math.ceil(count * 0.50) - 1]));
+        attributes.put(prefix + "p99", String.valueOf(latencies[(int) Math.ceil(count * 0.99) - 1]));
+        attributes.put(prefix + "max", String.valueOf(latencies[count - 1]));
+    }
+}
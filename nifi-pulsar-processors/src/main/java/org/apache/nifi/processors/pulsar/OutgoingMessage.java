@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A single message waiting to be sent to Pulsar, along with the topic it is destined for
+ * and any per-message metadata that has to be set on the Pulsar message builder.
+ */
+public class OutgoingMessage<T> {
+
+    private final String topic;
+    private final T value;
+    private String key;
+    private long eventTime;
+    private Map<String, String> properties = Collections.emptyMap();
+
+    public OutgoingMessage(String topic, T value) {
+        this.topic = topic;
+        this.value = value;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public OutgoingMessage<T> setKey(String key) {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * @return the event time in milliseconds since the epoch, or 0 if the message has none.
+     */
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public OutgoingMessage<T> setEventTime(long eventTime) {
+        this.eventTime = eventTime;
+        return this;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public OutgoingMessage<T> setProperties(Map<String, String> properties) {
+        this.properties = properties;
+        return this;
+    }
+
+    /**
+     * @return true if the message carries metadata, and therefore needs to be sent using a
+     * TypedMessageBuilder rather than the plain Producer.send(value) methods.
+     */
+    public boolean hasMetadata() {
+        return key != null || eventTime > 0 || !properties.isEmpty();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.PulsarClientException;
+
+/**
+ * A FlowFile that stays open across calls to onTrigger, so that the messages consumed by several triggers
+ * end up in a single FlowFile. The FlowFile belongs to a ProcessSession of its own, which is only committed
+ * when the FlowFile is rolled, after which all of the messages written to it are acknowledged at once.
+ */
+public class RollingFlowFile<T> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ProcessSession session;
+    private final Consumer<T> consumer;
+    private final boolean individualAcks;
+    private final String countAttribute;
+    private final long createdAt = System.currentTimeMillis();
+
+    // The ids of all of the messages, if they are acknowledged one by one
+    private final List<MessageId> messageIds = new ArrayList<>();
+    private Message<T> lastMessage;
+    // The times of the messages, if their latencies are recorded
+    private MessageLatencies latencies;
+
+    private FlowFile flowFile;
+    private ByteCountingOutputStream out;
+    private long count;
+
+    /**
+     * @param individualAcks - True if every message has to be acknowledged, rather than only the last one cumulatively.
+     * @param countAttribute - The attribute that the number of messages or records in the FlowFile is written to.
+     */
+    public RollingFlowFile(ProcessSession session, Consumer<T> consumer, boolean individualAcks, String countAttribute) {
+        this.session = session;
+        this.consumer = consumer;
+        this.individualAcks = individualAcks;
+        this.countAttribute = countAttribute;
+    }
+
+    public ProcessSession getSession() {
+        return session;
+    }
+
+    public Consumer<T> getConsumer() {
+        return consumer;
+    }
+
+    /**
+     * @return the stream to write the FlowFile content to, creating the FlowFile on first use.
+     */
+    public OutputStream getOutputStream() {
+        if (out == null) {
+            flowFile = session.create();
+            out = new ByteCountingOutputStream(new BufferedOutputStream(session.write(flowFile), BUFFER_SIZE));
+        }
+        return out;
+    }
+
+    /**
+     * Records that the messages were consumed, and are to be acknowledged once the FlowFile has been committed.
+     */
+    public void received(List<Message<T>> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        if (latencies != null) {
+            latencies.addAll(messages);
+        }
+
+        if (individualAcks) {
+            for (Message<T> msg : messages) {
+                messageIds.add(msg.getMessageId());
+            }
+        }
+        lastMessage = messages.get(messages.size() - 1);
+    }
+
+    public MessageLatencies getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Records the times of the messages consumed into this FlowFile, to compute their latencies once it is finished.
+     */
+    public void setLatencies(MessageLatencies latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Adds to the number of messages or records written to the FlowFile.
+     */
+    public void increment(long delta) {
+        count += delta;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSize() {
+        return (out == null) ? 0 : out.getBytesWritten();
+    }
+
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - createdAt;
+    }
+
+    public boolean hasMessages() {
+        return lastMessage != null;
+    }
+
+    /**
+     * Closes the content of the FlowFile, and adds the count attribute to it.
+     *
+     * @return the completed FlowFile, or null if no messages or records were written to it.
+     */
+    public FlowFile finish() throws IOException {
+        if (out == null) {
+            return null;
+        }
+
+        out.close();
+
+        if (count < 1) {
+            session.remove(flowFile);
+            return null;
+        }
+        return session.putAttribute(flowFile, countAttribute, String.valueOf(count));
+    }
+
+    /**
+     * Acknowledges all of the messages that were consumed into this FlowFile.
+     */
+    public void acknowledge() throws PulsarClientException {
+        if (individualAcks) {
+            for (MessageId id : messageIds) {
+                consumer.acknowledge(id);
+            }
+        } else if (lastMessage != null) {
+            consumer.acknowledgeCumulative(lastMessage);
+        }
+    }
+}
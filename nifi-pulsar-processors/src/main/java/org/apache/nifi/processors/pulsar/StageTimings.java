@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
+
+/**
+ * The total time in nanoseconds that the threads of a processor spent in each stage of handling the messages of
+ * each topic.
+ * <p>
+ * The stages are timed with System.nanoTime(), and the times are added to striped counters, so that the
+ * concurrent triggers of a processor, and the threads that complete its sends, do not contend. The time added
+ * since the last report is pushed to the counters of the processor, and to the counters of its topic in the
+ * client service, by whichever trigger reports next, so the time of a stage that completes after a session was
+ * committed shows up in the following report.
+ */
+public class StageTimings {
+
+    private final String[] names;
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /**
+     * @param names - The counter names of the stages, in the order of their indexes.
+     */
+    public StageTimings(String... names) {
+        this.names = names.clone();
+    }
+
+    /**
+     * Adds the time since the start of the stage to the topic.
+     *
+     * @return the current time, so that the next stage can start from it.
+     */
+    public long addSince(String topic, int stage, long startNanos) {
+        final long now = System.nanoTime();
+        getTopic(topic).nanos[stage].add(now - startNanos);
+        return now;
+    }
+
+    public void add(String topic, int stage, long elapsedNanos) {
+        getTopic(topic).nanos[stage].add(elapsedNanos);
+    }
+
+    /**
+     * @return the total time of the stage for the topic, whether or not it has been reported.
+     */
+    public long getNanos(String topic, int stage) {
+        final Topic timings = topics.get(topic);
+        return (timings == null) ? 0 : timings.nanos[stage].sum();
+    }
+
+    /**
+     * Adds the time of each stage since the last report to the counters of the session, and to the counters of
+     * each topic in the stats of the client service.
+     */
+    public void report(ProcessSession session, PulsarClientStats stats) {
+        topics.forEach((topic, timings) -> {
+            final PulsarClientStats.Counters counters = stats.getCounters(topic);
+            for (int i = 0; i < names.length; i++) {
+                final long delta = timings.takeDelta(i);
+                if (delta > 0) {
+                    session.adjustCounter(names[i], delta, false);
+                    counters.add(names[i], delta);
+                }
+            }
+        });
+    }
+
+    private Topic getTopic(String topic) {
+        // Topics that are not known yet, such as those of failed lookups, are timed under an empty name
+        final String key = (topic == null) ? "" : topic;
+        final Topic existing = topics.get(key);
+        return (existing != null) ? existing : topics.computeIfAbsent(key, k -> new Topic(names.length));
+    }
+
+    private static class Topic {
+        private final LongAdder[] nanos;
+        // The totals that were already reported, guarded by synchronizing on this
+        private final long[] reported;
+
+        Topic(int stages) {
+            nanos = new LongAdder[stages];
+            reported = new long[stages];
+            for (int i = 0; i < stages; i++) {
+                nanos[i] = new LongAdder();
+            }
+        }
+
+        synchronized long takeDelta(int stage) {
+            final long total = nanos[stage].sum();
+            final long delta = total - reported[stage];
+            reported[stage] = total;
+            return delta;
+        }
+    }
+}
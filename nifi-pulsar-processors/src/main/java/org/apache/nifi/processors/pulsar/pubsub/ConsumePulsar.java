@@ -19,27 +19,47 @@ package org.apache.nifi.processors.pulsar.pubsub;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarConsumerProcessor;
+import org.apache.nifi.processors.pulsar.MessageLatencies;
+import org.apache.nifi.processors.pulsar.RollingFlowFile;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.commons.io.IOUtils;
 
@@ -47,17 +67,160 @@ import org.apache.commons.io.IOUtils;
 @Tags({"Pulsar", "Get", "Ingest", "Ingress", "Topic", "PubSub", "Consume"})
 @CapabilityDescription("Consumes messages from Apache Pulsar. The complementary NiFi processor for sending messages is PublishPulsar.")
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@DynamicProperty(name = "Name of the relationship to route messages to",
+    value = "An Expression Language expression over the message properties and key (as 'message.key') that returns a boolean",
+    expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
+    description = "Messages for which the expression is true are written to a separate FlowFile that is routed to the relationship "
+        + "of the same name. When several expressions are true, the first route by name is used. The message payloads are never read.")
+@DynamicRelationship(name = "Name from Dynamic Property", description = "FlowFiles of the messages that match the Dynamic Property's expression")
 @WritesAttributes({
-    @WritesAttribute(attribute = "message.count", description = "The number of messages received from Pulsar")
+    @WritesAttribute(attribute = "message.count", description = "The number of messages received from Pulsar"),
+    @WritesAttribute(attribute = "chunk.count", description = "The number of chunks that were reassembled into the FlowFile, "
+        + "only written when Reassemble Chunked Messages is enabled"),
+    @WritesAttribute(attribute = "chunk.id", description = "The chunk id of a FlowFile routed to 'chunk_failure'"),
+    @WritesAttribute(attribute = "chunk.index", description = "The index of the first chunk in a FlowFile routed to 'chunk_failure'"),
+    @WritesAttribute(attribute = "message.key", description = "The key of the messages in the FlowFile, when grouping by Key"),
+    @WritesAttribute(attribute = "message.topic", description = "The topic partition of the messages in the FlowFile, when grouping by Topic"),
+    @WritesAttribute(attribute = "message.property.<name>", description = "The value of the message property, when grouping by Message Property"),
+    @WritesAttribute(attribute = "latency.publish.p50, latency.publish.p99, latency.publish.max", description = "The median, 99th percentile "
+        + "and maximum time in milliseconds from the publishing of the messages in the FlowFile until it was created, "
+        + "only written when Record Latency is enabled"),
+    @WritesAttribute(attribute = "latency.event.p50, latency.event.p99, latency.event.max", description = "The same latencies from the "
+        + "event time of the messages, only written when Record Latency is enabled and the messages have an event time")
 })
 public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
 
     public static final String MSG_COUNT = "message.count";
+    public static final String CHUNK_COUNT = "chunk.count";
+    public static final String CHUNK_ID_ATTRIBUTE = "chunk.id";
+    public static final String CHUNK_INDEX_ATTRIBUTE = "chunk.index";
+    public static final String TOPIC_ATTRIBUTE = "message.topic";
+    public static final String PROPERTY_ATTRIBUTE_PREFIX = "message.property.";
+
+    public static final PropertyDescriptor REASSEMBLE_CHUNKS = new PropertyDescriptor.Builder()
+            .name("REASSEMBLE_CHUNKS")
+            .displayName("Reassemble Chunked Messages")
+            .description("If true, messages that were published in chunks by PublishPulsar are streamed back into a single FlowFile "
+                + "per chunked FlowFile, rather than being written to the batch FlowFile. All other messages are handled as usual. "
+                + "If a chunk is missing, duplicated, arrives out of order or has no valid chunk count, each run of consecutive chunks "
+                + "received for that FlowFile is routed to 'chunk_failure' with a warning, since redelivering them could never complete "
+                + "the FlowFile. Reassembly is only supported when Async Enabled is false, and with an Exclusive or Failover subscription, "
+                + "as a Shared subscription hands the chunks of a FlowFile out to several consumers.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor CHUNK_WAIT_TIME = new PropertyDescriptor.Builder()
+            .name("CHUNK_WAIT_TIME")
+            .displayName("Chunk Wait Time")
+            .description("While a chunked FlowFile is being reassembled, the maximum amount of time to wait for the next message "
+                + "before the chunks received so far are routed to 'chunk_failure'.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 sec")
+            .build();
+
+    public static final AllowableValue GROUP_BY_NONE = new AllowableValue("None", "None",
+            "All of the messages of a batch are written to the same FlowFile.");
+    public static final AllowableValue GROUP_BY_KEY = new AllowableValue("Key", "Key",
+            "The messages are written to a FlowFile per message key, which is added as the 'message.key' attribute.");
+    public static final AllowableValue GROUP_BY_TOPIC = new AllowableValue("Topic", "Topic",
+            "The messages are written to a FlowFile per topic partition, which is added as the 'message.topic' attribute.");
+    public static final AllowableValue GROUP_BY_MESSAGE_PROPERTY = new AllowableValue("Message Property", "Message Property",
+            "The messages are written to a FlowFile per value of the message property named by Group By Property, which is added "
+            + "as the 'message.property.<name>' attribute.");
+
+    public static final PropertyDescriptor GROUP_BY = new PropertyDescriptor.Builder()
+            .name("GROUP_BY")
+            .displayName("Group By")
+            .description("The message metadata by which the messages of a batch are split into separate FlowFiles, with the value "
+                + "of the metadata as a FlowFile attribute. Grouping only looks at the metadata of the messages, never their payload.")
+            .required(true)
+            .allowableValues(GROUP_BY_NONE, GROUP_BY_KEY, GROUP_BY_TOPIC, GROUP_BY_MESSAGE_PROPERTY)
+            .defaultValue(GROUP_BY_NONE.getValue())
+            .build();
+
+    public static final PropertyDescriptor GROUP_BY_PROPERTY = new PropertyDescriptor.Builder()
+            .name("GROUP_BY_PROPERTY")
+            .displayName("Group By Property")
+            .description("The name of the message property to group the messages by, when Group By is 'Message Property'.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final Relationship REL_CHUNK_FAILURE = new Relationship.Builder()
+            .name("chunk_failure")
+            .description("The chunks of a chunked FlowFile that could not be reassembled, one FlowFile per run of consecutive chunks.")
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES;
+    private static final Set<Relationship> RELATIONSHIPS;
+
+    static {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.addAll(AbstractPulsarConsumerProcessor.PROPERTIES);
+        properties.add(REASSEMBLE_CHUNKS);
+        properties.add(CHUNK_WAIT_TIME);
+        properties.add(GROUP_BY);
+        properties.add(GROUP_BY_PROPERTY);
+        PROPERTIES = Collections.unmodifiableList(properties);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.addAll(AbstractPulsarConsumerProcessor.RELATIONSHIPS);
+        relationships.add(REL_CHUNK_FAILURE);
+        RELATIONSHIPS = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    protected Set<Relationship> getBaseRelationships() {
+        return RELATIONSHIPS;
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final Collection<ValidationResult> results = super.customValidate(validationContext);
+
+        if (validationContext.getProperty(REASSEMBLE_CHUNKS).asBoolean() && validationContext.getProperty(ASYNC_ENABLED).asBoolean()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Reassemble Chunked Messages can only be enabled when Async Enabled is false.").build());
+        }
+
+        if (validationContext.getProperty(REASSEMBLE_CHUNKS).asBoolean() && isRolling(validationContext)) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Reassemble Chunked Messages cannot be combined with Rolling FlowFiles.").build());
+        }
+
+        final String subscriptionType = validationContext.getProperty(SUBSCRIPTION_TYPE).getValue();
+        if (validationContext.getProperty(REASSEMBLE_CHUNKS).asBoolean()
+                && !EXCLUSIVE.getValue().equals(subscriptionType) && !FAILOVER.getValue().equals(subscriptionType)) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Reassemble Chunked Messages requires an Exclusive or Failover Subscription Type.").build());
+        }
+
+        if (validationContext.getProperty(REASSEMBLE_CHUNKS).asBoolean() && hasRoutes()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Reassemble Chunked Messages cannot be combined with routes.").build());
+        }
+
+        if (GROUP_BY_MESSAGE_PROPERTY.getValue().equals(validationContext.getProperty(GROUP_BY).getValue())
+                && !validationContext.getProperty(GROUP_BY_PROPERTY).isSet()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Group By Property is required when grouping by a message property.").build());
+        }
+        return results;
+    }
 
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         try {
-            Consumer<byte[]> consumer = getConsumer(context, getConsumerId(context, session.get()));
+            final String consumerId = getConsumerId(context, session.get());
+            Consumer<byte[]> consumer = getConsumer(context, consumerId);
 
             if (consumer == null) {
                 context.yield();
@@ -67,6 +230,12 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
             if (context.getProperty(ASYNC_ENABLED).asBoolean()) {
                 consumeAsync(consumer, context, session);
                 handleAsync(consumer, context, session);
+            } else if (isRolling(context)) {
+                final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
+                        .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
+                consumeRolling(consumerId, consumer, context, (rolling, messages) -> writeRolling(rolling, messages, demarcatorBytes));
+            } else if (context.getProperty(REASSEMBLE_CHUNKS).asBoolean()) {
+                reassemble(consumer, context, session);
             } else {
                 consume(consumer, context, session);
             }
@@ -89,33 +258,26 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
                 List<Message<byte[]>> messages = done.get();
 
                 if (CollectionUtils.isNotEmpty(messages)) {
-                    FlowFile flowFile = session.create();
-                    OutputStream out = session.write(flowFile);
-                    AtomicInteger msgCount = new AtomicInteger(0);
-
-                    messages.forEach(msg -> {
-                        try {
-                            out.write(msg.getValue());
-                            out.write(demarcatorBytes);
-                            msgCount.getAndIncrement();
-                        } catch (final IOException ioEx) {
-                            session.rollback();
-                            return;
-                        }
-                    });
-
-                    IOUtils.closeQuietly(out);
-
-                    session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                    session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                    session.transfer(flowFile, REL_SUCCESS);
-                    session.commit();
+                    try {
+                        final long start = System.nanoTime();
+                        transferMessages(context, session, consumer, messages, demarcatorBytes);
+                        time(consumer, WRITE_STAGE, start);
+                        session.commit();
+                    } catch (final ProcessException pe) {
+                        getLogger().error("Unable to create flow file ", pe);
+                        session.rollback();
+                    } finally {
+                        release(messages);
+                    }
                 }
                 // Acknowledge consuming the message
                 getAckService().submit(new Callable<Object>() {
                     @Override
                     public Object call() throws Exception {
-                       return consumer.acknowledgeCumulativeAsync(messages.get(messages.size()-1)).get();
+                       final long start = System.nanoTime();
+                       final Object acked = consumer.acknowledgeCumulativeAsync(messages.get(messages.size()-1)).get();
+                       time(consumer, ACK_STAGE, start);
+                       return acked;
                     }
                 });
             }
@@ -127,9 +289,6 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
     private void consume(Consumer<byte[]> consumer, ProcessContext context, ProcessSession session) throws PulsarClientException {
  
         try {
-            final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                    .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
-
             final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
                     .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
             
@@ -137,55 +296,46 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
             final boolean shared = context.getProperty(SUBSCRIPTION_TYPE).getValue()
                     .equalsIgnoreCase(SHARED.getValue());
 
-            FlowFile flowFile = session.create();
-            OutputStream out = session.write(flowFile);
-            Message<byte[]> msg = null;
-            Message<byte[]> lastMsg = null;
-            AtomicInteger msgCount = new AtomicInteger(0);
-            AtomicInteger loopCounter = new AtomicInteger(0);
-
-            while (((msg = consumer.receive(0, TimeUnit.SECONDS)) != null) && loopCounter.get() < maxMessages) {
-                try {
-                    lastMsg = msg;
-                    loopCounter.incrementAndGet();
-                    
-                    if (shared) {
-                    	consumer.acknowledge(msg);
-                    }
+            // Gather the whole batch first, so that it can be written to the content repository in one go
+            final List<Message<byte[]>> received = getMessages(consumer, context);
+            final List<Message<byte[]>> messages = new ArrayList<>(received.size());
+            final Message<byte[]> lastMsg = received.isEmpty() ? null : received.get(received.size() - 1);
 
-                    // Skip empty messages, as they cause NPE's when we write them to the OutputStream
-                    if (msg.getValue() == null || msg.getValue().length < 1) {
-                      continue;
-                    }
-                    out.write(msg.getValue());
-                    out.write(demarcatorBytes);
-                    msgCount.getAndIncrement();
-
-                } catch (final IOException ioEx) {
-                  getLogger().error("Unable to create flow file ", ioEx);
-                  session.rollback();
-                  if (!shared) {
-                     consumer.acknowledgeCumulative(lastMsg);
-                  }
-                  return;
+            long ackNanos = 0;
+            for (Message<byte[]> msg : received) {
+                if (shared) {
+                    final long start = System.nanoTime();
+                	consumer.acknowledge(msg);
+                    ackNanos += System.nanoTime() - start;
+                }
+
+                // Skip empty messages, as they would only add a demarcator
+                if (getPayloadSize(msg) < 1) {
+                  continue;
                 }
+                messages.add(msg);
             }
-            
-            IOUtils.closeQuietly(out);
 
             if (!shared && lastMsg != null)  {
+                final long start = System.nanoTime();
                 consumer.acknowledgeCumulative(lastMsg);
+                ackNanos += System.nanoTime() - start;
             }
+            addTime(consumer, ACK_STAGE, ackNanos);
 
-            if (msgCount.get() < 1) {
-                session.remove(flowFile);
+            if (messages.isEmpty()) {
                 session.commit();
-            } else {
-                session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                session.transfer(flowFile, REL_SUCCESS);
-                getLogger().debug("Created {} from {} messages received from Pulsar Server and transferred to 'success'",
-                   new Object[]{flowFile, msgCount.toString()});
+                return;
+            }
+
+            try {
+                final long start = System.nanoTime();
+                transferMessages(context, session, consumer, messages, demarcatorBytes);
+                time(consumer, WRITE_STAGE, start);
+            } catch (final ProcessException pe) {
+                getLogger().error("Unable to create flow file ", pe);
+                session.rollback();
+                return;
             }
 
         } catch (PulsarClientException e) {
@@ -194,4 +344,300 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
             session.rollback();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the messages to a FlowFile per route, and per value of the Group By metadata within each route.
+     */
+    private void transferMessages(ProcessContext context, ProcessSession session, Consumer<byte[]> consumer,
+            List<Message<byte[]>> messages, byte[] demarcatorBytes) throws ProcessException {
+
+        final String groupBy = context.getProperty(GROUP_BY).getValue();
+        final String propertyName = context.getProperty(GROUP_BY_PROPERTY).getValue();
+
+        // The attribute name is the same for every group, so it is only built once per batch
+        final String groupAttribute = GROUP_BY_KEY.getValue().equals(groupBy) ? KEY_ATTRIBUTE
+                : GROUP_BY_TOPIC.getValue().equals(groupBy) ? TOPIC_ATTRIBUTE
+                : GROUP_BY_MESSAGE_PROPERTY.getValue().equals(groupBy) ? PROPERTY_ATTRIBUTE_PREFIX + propertyName
+                : null;
+
+        for (Map.Entry<Relationship, List<Message<byte[]>>> route : route(context, messages).entrySet()) {
+            final Map<String, List<Message<byte[]>>> groups = (groupAttribute == null)
+                    ? Collections.singletonMap(null, route.getValue()) : group(route.getValue(), groupBy, propertyName);
+
+            for (Map.Entry<String, List<Message<byte[]>>> group : groups.entrySet()) {
+                final List<Message<byte[]>> grouped = group.getValue();
+                FlowFile flowFile = session.create();
+                flowFile = writeMessages(session, flowFile, grouped, demarcatorBytes);
+                flowFile = session.putAttribute(flowFile, MSG_COUNT, String.valueOf(grouped.size()));
+                flowFile = recordLatency(session, flowFile, consumer, grouped);
+
+                if (group.getKey() != null) {
+                    flowFile = session.putAttribute(flowFile, groupAttribute, group.getKey());
+                }
+
+                session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
+                session.transfer(flowFile, route.getKey());
+                getLogger().debug("Created {} from {} messages received from Pulsar Server and transferred to '{}'",
+                   new Object[]{flowFile, grouped.size(), route.getKey().getName()});
+            }
+        }
+    }
+
+    /**
+     * Splits the messages by the value of the given metadata, keeping the order of the messages within each group.
+     * Messages without the metadata are grouped under null.
+     */
+    private static Map<String, List<Message<byte[]>>> group(List<Message<byte[]>> messages, String groupBy, String propertyName) {
+        final Map<String, List<Message<byte[]>>> groups = new LinkedHashMap<>();
+
+        for (Message<byte[]> msg : messages) {
+            final String value;
+            if (GROUP_BY_KEY.getValue().equals(groupBy)) {
+                value = msg.hasKey() ? msg.getKey() : null;
+            } else if (GROUP_BY_TOPIC.getValue().equals(groupBy)) {
+                value = msg.getTopicName();
+            } else {
+                value = msg.getProperty(propertyName);
+            }
+            groups.computeIfAbsent(value, v -> new ArrayList<>()).add(msg);
+        }
+        return groups;
+    }
+
+    @Override
+    protected RollingFlowFile<byte[]> newRollingFlowFile(ProcessSession session, Consumer<byte[]> consumer, ProcessContext context) {
+        return new RollingFlowFile<>(session, consumer, isRollingAckIndividual(context), MSG_COUNT);
+    }
+
+    /**
+     * Appends the non-empty messages to the rolling FlowFile, each one followed by the demarcator.
+     */
+    private void writeRolling(RollingFlowFile<byte[]> rolling, List<Message<byte[]>> messages, byte[] demarcatorBytes) throws IOException {
+        for (Message<byte[]> msg : messages) {
+            if (getPayloadSize(msg) < 1) {
+                continue;
+            }
+
+            final OutputStream out = rolling.getOutputStream();
+            writePayload(msg, out);
+            if (demarcatorBytes != null) {
+                out.write(demarcatorBytes);
+            }
+            rolling.increment(1);
+        }
+    }
+
+    /**
+     * Consumes like consume(), except that messages published in chunks by PublishPulsar are streamed into a
+     * FlowFile of their own. Chunks of the same FlowFile are published synchronously and in order, under a chunk id
+     * that is unique to the send attempt, so any gap in the chunk indexes means that the group can never be completed.
+     * Each run of consecutive chunks of such a group is routed to 'chunk_failure' rather than redelivered, as redelivery
+     * would only fail the same way. Only the ids of the chunks are kept until their group is complete, and every message
+     * is acknowledged individually.
+     */
+    private void reassemble(Consumer<byte[]> consumer, ProcessContext context, ProcessSession session) throws PulsarClientException {
+        final int maxMessages = getMaxMessages(context);
+        final long maxBytes = getMaxBytes(context);
+        final long maxWaitMillis = getMaxWaitMillis(context);
+        final long deadline = (maxWaitMillis < 0) ? -1L : System.currentTimeMillis() + maxWaitMillis;
+
+        final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
+                .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
+
+        final int chunkWaitMillis = context.getProperty(CHUNK_WAIT_TIME).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+        final String transitUri = getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic();
+
+        final Map<String, ChunkedFlowFile> chunked = new HashMap<>();
+        final List<Message<byte[]>> received = new ArrayList<>();
+
+        FlowFile flowFile = session.create();
+        OutputStream out = session.write(flowFile);
+        Message<byte[]> msg;
+        int msgCount = 0;
+        int loopCounter = 0;
+        long bytes = 0;
+
+        try {
+            // Keep receiving past the batch limits while a chunked FlowFile is still incomplete
+            while ((loopCounter < maxMessages && bytes < maxBytes) || !chunked.isEmpty()) {
+                msg = chunked.isEmpty() ? receive(consumer, deadline) : consumer.receive(chunkWaitMillis, TimeUnit.MILLISECONDS);
+
+                if (msg == null) {
+                    break;
+                }
+                loopCounter++;
+                bytes += getPayloadSize(msg);
+
+                final String chunkId = msg.getProperty(PublishPulsar.CHUNK_ID);
+
+                if (chunkId == null) {
+                    received.add(msg);
+
+                    // Skip empty messages, as they would only add a demarcator
+                    if (getPayloadSize(msg) < 1) {
+                        continue;
+                    }
+                    writePayload(msg, out);
+                    out.write(demarcatorBytes);
+                    msgCount++;
+                    continue;
+                }
+
+                final long index = getLongProperty(msg, PublishPulsar.CHUNK_INDEX);
+                ChunkedFlowFile group = chunked.get(chunkId);
+
+                if (group != null && index != group.nextIndex) {
+                    getLogger().warn("Routing chunks of {} to chunk_failure since chunk {} was received when chunk {} was expected",
+                        new Object[] {chunkId, index, group.nextIndex});
+                    chunked.remove(chunkId);
+                    fail(group, consumer, session, transitUri);
+                    group = null;
+                }
+
+                if (group == null) {
+                    final FlowFile chunkFlowFile = session.create();
+                    group = new ChunkedFlowFile(chunkId, chunkFlowFile, session.write(chunkFlowFile), index,
+                        getLongProperty(msg, PublishPulsar.CHUNK_COUNT), isRecordingLatency() ? new MessageLatencies() : null);
+                    chunked.put(chunkId, group);
+
+                    if (!group.isReassembling()) {
+                        // The start of this FlowFile was lost, belongs to a group that already failed, or the chunk count was not readable
+                        getLogger().warn("Routing chunks of {} from chunk {} to chunk_failure since they do not start a chunked FlowFile "
+                            + "of a valid chunk count", new Object[] {chunkId, index});
+                    }
+                }
+
+                group.add(msg);
+                writePayload(msg, group.out);
+                group.nextIndex = index + 1;
+
+                if (group.count > 0 && group.nextIndex >= group.count) {
+                    chunked.remove(chunkId);
+
+                    if (!group.isReassembling()) {
+                        fail(group, consumer, session, transitUri);
+                        continue;
+                    }
+                    IOUtils.closeQuietly(group.out);
+
+                    FlowFile complete = session.putAttribute(group.flowFile, CHUNK_COUNT, String.valueOf(group.count));
+                    complete = recordLatency(session, complete, consumer, group.latencies);
+                    session.getProvenanceReporter().receive(complete, transitUri);
+                    session.transfer(complete, REL_SUCCESS);
+
+                    for (MessageId chunk : group.messageIds) {
+                        consumer.acknowledge(chunk);
+                    }
+                }
+            }
+        } catch (final IOException ioEx) {
+            getLogger().error("Unable to create flow file ", ioEx);
+            session.rollback();
+
+            for (Message<byte[]> m : received) {
+                consumer.negativeAcknowledge(m);
+            }
+            for (ChunkedFlowFile group : chunked.values()) {
+                for (MessageId chunk : group.messageIds) {
+                    consumer.negativeAcknowledge(chunk);
+                }
+            }
+            return;
+        }
+
+        // Any chunked FlowFile that is still incomplete timed out waiting for its next chunk
+        for (Iterator<Map.Entry<String, ChunkedFlowFile>> itr = chunked.entrySet().iterator(); itr.hasNext();) {
+            final Map.Entry<String, ChunkedFlowFile> entry = itr.next();
+            getLogger().warn("Routing chunks of {} to chunk_failure since chunk {} was not received within the Chunk Wait Time",
+                new Object[] {entry.getKey(), entry.getValue().nextIndex});
+            itr.remove();
+            fail(entry.getValue(), consumer, session, transitUri);
+        }
+
+        IOUtils.closeQuietly(out);
+
+        final long start = System.nanoTime();
+        for (Message<byte[]> m : received) {
+            consumer.acknowledge(m);
+        }
+        time(consumer, ACK_STAGE, start);
+
+        if (msgCount < 1) {
+            session.remove(flowFile);
+        } else {
+            flowFile = session.putAttribute(flowFile, MSG_COUNT, String.valueOf(msgCount));
+            flowFile = recordLatency(session, flowFile, consumer, received);
+            session.getProvenanceReporter().receive(flowFile, transitUri);
+            session.transfer(flowFile, REL_SUCCESS);
+        }
+    }
+
+    /**
+     * Routes the chunks of a group that can never be completed to 'chunk_failure', acknowledging them so that they are
+     * not redelivered.
+     */
+    private void fail(ChunkedFlowFile group, Consumer<byte[]> consumer, ProcessSession session, String transitUri) throws PulsarClientException {
+        IOUtils.closeQuietly(group.out);
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(CHUNK_ID_ATTRIBUTE, group.chunkId);
+        attributes.put(CHUNK_INDEX_ATTRIBUTE, String.valueOf(group.firstIndex));
+        attributes.put(CHUNK_COUNT, String.valueOf(group.messageIds.size()));
+
+        final FlowFile failed = session.putAllAttributes(group.flowFile, attributes);
+        session.getProvenanceReporter().receive(failed, transitUri);
+        session.transfer(failed, REL_CHUNK_FAILURE);
+
+        for (MessageId chunk : group.messageIds) {
+            consumer.acknowledge(chunk);
+        }
+    }
+
+    private static long getLongProperty(Message<byte[]> msg, String name) {
+        try {
+            return Long.parseLong(msg.getProperty(name));
+        } catch (final NumberFormatException nfEx) {
+            return -1L;
+        }
+    }
+
+    /**
+     * A FlowFile that a run of consecutive chunks is being written to, along with the ids of the chunk messages that
+     * have been written to it, and their publish and event times when latencies are recorded. The payloads of the
+     * chunks are not kept.
+     */
+    private static class ChunkedFlowFile {
+        private final String chunkId;
+        private final FlowFile flowFile;
+        private final OutputStream out;
+        private final long firstIndex;
+        private final long count;
+        private final List<MessageId> messageIds = new ArrayList<>();
+        private final MessageLatencies latencies;
+        private long nextIndex;
+
+        ChunkedFlowFile(String chunkId, FlowFile flowFile, OutputStream out, long firstIndex, long count, MessageLatencies latencies) {
+            this.chunkId = chunkId;
+            this.flowFile = flowFile;
+            this.out = out;
+            this.firstIndex = firstIndex;
+            this.count = count;
+            this.latencies = latencies;
+            this.nextIndex = firstIndex;
+        }
+
+        /**
+         * @return true if the chunks can still be reassembled into the FlowFile, false if they can only be routed to failure.
+         */
+        boolean isReassembling() {
+            return firstIndex == 0 && count > 0;
+        }
+
+        void add(Message<byte[]> msg) {
+            messageIds.add(msg.getMessageId());
+            if (latencies != null) {
+                latencies.add(msg);
+            }
+        }
+    }
+}
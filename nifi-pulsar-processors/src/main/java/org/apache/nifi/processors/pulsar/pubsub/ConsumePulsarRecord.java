@@ -21,27 +21,44 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
@@ -51,14 +68,20 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarConsumerProcessor;
+import org.apache.nifi.processors.pulsar.RollingFlowFile;
+import org.apache.nifi.processors.pulsar.util.OrderedTaskPipeline;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.MalformedRecordException;
 import org.apache.nifi.serialization.RecordReader;
 import org.apache.nifi.serialization.RecordReaderFactory;
 import org.apache.nifi.serialization.RecordSetWriter;
 import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
 import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
 import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
@@ -74,14 +97,42 @@ import org.apache.pulsar.client.api.PulsarClientException;
         + "FlowFile. No two Pulsar messages will be placed into the same FlowFile if they have different schemas.")
 @Tags({"Pulsar", "Get", "Record", "csv", "avro", "json", "Ingest", "Ingress", "Topic", "PubSub", "Consume"})
 @WritesAttributes({
-    @WritesAttribute(attribute = "record.count", description = "The number of records received")
+    @WritesAttribute(attribute = "record.count", description = "The number of records received"),
+    @WritesAttribute(attribute = "latency.publish.p50, latency.publish.p99, latency.publish.max", description = "The median, 99th percentile "
+        + "and maximum time in milliseconds from the publishing of the messages in the FlowFile until it was created, "
+        + "only written when Record Latency is enabled"),
+    @WritesAttribute(attribute = "latency.event.p50, latency.event.p99, latency.event.max", description = "The same latencies from the "
+        + "event time of the messages, only written when Record Latency is enabled and the messages have an event time")
 })
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@DynamicProperty(name = "Name of the relationship to route messages to",
+    value = "An Expression Language expression over the message properties and key (as 'message.key') that returns a boolean",
+    expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
+    description = "The records of the messages for which the expression is true are written to a separate FlowFile that is routed to "
+        + "the relationship of the same name. When several expressions are true, the first route by name is used.")
+@DynamicRelationship(name = "Name from Dynamic Property", description = "FlowFiles of the messages that match the Dynamic Property's expression")
 @SeeAlso({PublishPulsar.class, ConsumePulsar.class, PublishPulsarRecord.class})
 public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]> {
 
     public static final String MSG_COUNT = "record.count";
     private static final String RECORD_SEPARATOR = "\n";
+    private static final String AVRO_MIME_TYPE = "application/avro-binary";
+    private static final String AVRO_SCHEMA_FORMAT = "avro";
+
+    public static final String KEY_FIELD = "pulsar_key";
+    public static final String TOPIC_FIELD = "pulsar_topic";
+    public static final String MESSAGE_ID_FIELD = "pulsar_message_id";
+    public static final String PUBLISH_TIME_FIELD = "pulsar_publish_time";
+    public static final String EVENT_TIME_FIELD = "pulsar_event_time";
+    public static final String PROPERTIES_FIELD = "pulsar_properties";
+
+    private static final List<RecordField> METADATA_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            new RecordField(KEY_FIELD, RecordFieldType.STRING.getDataType(), true),
+            new RecordField(TOPIC_FIELD, RecordFieldType.STRING.getDataType(), true),
+            new RecordField(MESSAGE_ID_FIELD, RecordFieldType.STRING.getDataType(), true),
+            new RecordField(PUBLISH_TIME_FIELD, RecordFieldType.LONG.getDataType(), true),
+            new RecordField(EVENT_TIME_FIELD, RecordFieldType.LONG.getDataType(), true),
+            new RecordField(PROPERTIES_FIELD, RecordFieldType.MAP.getMapDataType(RecordFieldType.STRING.getDataType()), true)));
 
     public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
             .name("Record Reader")
@@ -109,6 +160,55 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
 
+    public static final PropertyDescriptor AVRO_PASSTHROUGH = new PropertyDescriptor.Builder()
+            .name("AVRO_PASSTHROUGH")
+            .displayName("Avro Passthrough")
+            .description("If true, and the messages are single Avro datums whose schema, as determined by the Record Reader, is "
+                    + "identical to the schema of an Avro Record Writer, then the encoded datums are copied into the Avro container "
+                    + "file as they are, rather than being decoded into records and encoded again. The messages are not validated "
+                    + "in this case, so a malformed message is not routed to 'parse.failure'. Batches that contain messages which "
+                    + "are Avro container files themselves, or for which the schemas differ, are always decoded. So are messages "
+                    + "that start with a schema reference, as read by a Schema Access Strategy that uses a content-encoded schema "
+                    + "reference, since only the datum itself can be copied. Not applied to Rolling FlowFiles.")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor SINGLE_RECORD_READER = new PropertyDescriptor.Builder()
+            .name("SINGLE_RECORD_READER")
+            .displayName("Single Record Reader")
+            .description("If true, all of the messages in a batch are read by a single Record Reader, as one stream of messages "
+                    + "separated by the Message Demarcator, rather than creating a Record Reader for every message. This is much "
+                    + "cheaper for line oriented formats such as JSON lines or CSV without a header, but requires every message "
+                    + "to hold exactly one record, so that a record that cannot be parsed can be traced back to its message.")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor DECODE_THREADS = new PropertyDescriptor.Builder()
+            .name("DECODE_THREADS")
+            .displayName("Record Decode Threads")
+            .description("The number of threads used to parse the messages of a batch into records. If greater than one, the "
+                    + "messages are split into chunks that are parsed concurrently, while the records are still written to the "
+                    + "FlowFile in the order the messages were received. Not used when Single Record Reader is true.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+
+    public static final PropertyDescriptor ADD_METADATA_FIELDS = new PropertyDescriptor.Builder()
+            .name("ADD_METADATA_FIELDS")
+            .displayName("Add Metadata Fields")
+            .description("If true, the metadata of the message that a record was read from is appended to the record as the fields "
+                    + "pulsar_key, pulsar_topic, pulsar_message_id, pulsar_publish_time, pulsar_event_time and pulsar_properties. "
+                    + "Fields of the same name that the record already has are overwritten. Avro Passthrough is not used when true.")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
     public static final Relationship REL_PARSE_FAILURE = new Relationship.Builder()
             .name("parse_failure")
             .description("FlowFiles for which the content cannot be parsed.")
@@ -117,11 +217,25 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
     private static final List<PropertyDescriptor> PROPERTIES;
     private static final Set<Relationship> RELATIONSHIPS;
 
+    // The most recently parsed Avro schema, as the messages of a topic generally share the same schema
+    private volatile Pair<String, Schema> avroSchemaCache;
+
+    // The schema of the records with the metadata fields appended, keyed by the schema that the records were read with
+    private volatile Pair<RecordSchema, RecordSchema> metadataSchemaCache;
+
+    private volatile ExecutorService decodePool;
+    private volatile int decodeThreads;
+    private volatile boolean addMetadataFields;
+
     static {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(RECORD_READER);
         properties.add(RECORD_WRITER);
         properties.add(MAX_WAIT_TIME);
+        properties.add(AVRO_PASSTHROUGH);
+        properties.add(SINGLE_RECORD_READER);
+        properties.add(DECODE_THREADS);
+        properties.add(ADD_METADATA_FIELDS);
         properties.addAll(AbstractPulsarConsumerProcessor.PROPERTIES);
         PROPERTIES = Collections.unmodifiableList(properties);
 
@@ -132,7 +246,7 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
     }
 
     @Override
-    public Set<Relationship> getRelationships() {
+    protected Set<Relationship> getBaseRelationships() {
         return RELATIONSHIPS;
     }
 
@@ -141,6 +255,27 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
         return PROPERTIES;
     }
 
+    @OnScheduled
+    public void initDecodePool(ProcessContext context) {
+        decodeThreads = context.getProperty(DECODE_THREADS).asInteger();
+        if (decodeThreads > 1) {
+            decodePool = Executors.newFixedThreadPool(decodeThreads);
+        }
+    }
+
+    @OnScheduled
+    public void initMetadataFields(ProcessContext context) {
+        addMetadataFields = context.getProperty(ADD_METADATA_FIELDS).asBoolean();
+    }
+
+    @OnStopped
+    public void shutDownDecodePool() {
+        if (decodePool != null) {
+            decodePool.shutdownNow();
+            decodePool = null;
+        }
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
@@ -149,14 +284,16 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
         final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
                 .asControllerService(RecordSetWriterFactory.class);
 
-        final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
-
         final byte[] demarcator = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
             .evaluateAttributeExpressions().getValue().getBytes() : RECORD_SEPARATOR.getBytes();
 
+        // The datums are copied as they are, so there is no way to add the metadata to them
+        final boolean avroPassthrough = context.getProperty(AVRO_PASSTHROUGH).asBoolean() && !addMetadataFields;
+        final boolean singleReader = context.getProperty(SINGLE_RECORD_READER).asBoolean();
+
         try {
-            Consumer<byte[]> consumer = getConsumer(context, getConsumerId(context, session.get()));
+            final String consumerId = getConsumerId(context, session.get());
+            Consumer<byte[]> consumer = getConsumer(context, consumerId);
 
             if (consumer == null) { /* If we aren't connected to Pulsar, then just yield */
                 context.yield();
@@ -165,9 +302,13 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
 
             if (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean()) {
                consumeAsync(consumer, context, session);
-               handleAsync(context, session, consumer, readerFactory, writerFactory, demarcator);
+               handleAsync(context, session, consumer, readerFactory, writerFactory, demarcator, avroPassthrough, singleReader);
+            } else if (isRolling(context)) {
+               consumeRolling(consumerId, consumer, context,
+                   (rolling, messages) -> writeRolling((RollingRecordFlowFile) rolling, messages, readerFactory, writerFactory, demarcator, singleReader));
             } else {
-               consumeMessages(session, consumer, getMessages(consumer, maxMessages), readerFactory, writerFactory, demarcator);
+               final List<Message<byte[]>> messages = getMessages(consumer, context);
+               consumeRoutes(context, session, consumer, messages, readerFactory, writerFactory, demarcator, avroPassthrough, singleReader);
             }
         } catch (PulsarClientException e) {
             getLogger().error("Unable to consume from Pulsar Topic ", e);
@@ -177,45 +318,56 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
     }
 
     /**
-     * Retrieve a batch of up to maxMessages for processing.
-     *
-     * @param consumer - The Pulsar consumer.
-     * @param maxMessages - The maximum number of messages to consume from Pulsar.
-     * @return A List of Messages
-     * @throws PulsarClientException in the event we cannot communicate with the Pulsar broker.
+     * Writes the messages of each route to a FlowFile of its own, and acknowledges all of the messages once every
+     * route has been written, as the acknowledgement is cumulative over the messages of all routes.
      */
-    private List<Message<byte[]>> getMessages(final Consumer<byte[]> consumer, int maxMessages) throws PulsarClientException {
-        List<Message<byte[]>> messages = new LinkedList<Message<byte[]>>();
-        Message<byte[]> msg = null;
-        AtomicInteger msgCount = new AtomicInteger(0);
+    private void consumeRoutes(ProcessContext context, ProcessSession session, final Consumer<byte[]> consumer, final List<Message<byte[]>> messages,
+            final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, final byte[] demarcator,
+            final boolean avroPassthrough, final boolean singleReader) throws PulsarClientException {
 
-        while (((msg = consumer.receive(0, TimeUnit.SECONDS)) != null) && msgCount.get() < maxMessages) {
-           messages.add(msg);
-           msgCount.incrementAndGet();
-        }
-        return messages;
+       if (CollectionUtils.isEmpty(messages)) {
+          return;
+       }
+
+       for (Map.Entry<Relationship, List<Message<byte[]>>> route : route(context, messages).entrySet()) {
+          consumeMessages(session, consumer, route.getValue(), route.getKey(), readerFactory, writerFactory, demarcator,
+              avroPassthrough, singleReader);
+       }
+       acknowledge(consumer, messages, System.nanoTime());
     }
 
     /**
      * Perform the actual processing of the messages, by parsing the messages and writing them out to a FlowFile.
-     * All of the messages passed in shall be routed to either SUCCESS or PARSE_FAILURE, allowing us to acknowledge
-     * the receipt of the messages to Pulsar, so they are not re-sent.
+     * All of the messages passed in shall be routed to either the relationship or PARSE_FAILURE, allowing the caller
+     * to acknowledge the receipt of the messages to Pulsar, so they are not re-sent.
      *
      * @param session - The current ProcessSession.
      * @param consumer - The Pulsar consumer.
      * @param messages - A list of messages.
+     * @param relationship - The relationship that the FlowFile of the records is routed to.
      * @param readerFactory - The factory used to read the messages.
      * @param writerFactory - The factory used to write the messages.
+     * @param avroPassthrough - Whether Avro datums may be copied to the FlowFile without decoding them.
+     * @param singleReader - Whether the messages are read with a single RecordReader.
      * @throws PulsarClientException if there is an issue communicating with Apache Pulsar.
      */
     private void consumeMessages(ProcessSession session, final Consumer<byte[]> consumer, final List<Message<byte[]>> messages,
-            final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, final byte[] demarcator) throws PulsarClientException {
+            final Relationship relationship, final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, final byte[] demarcator,
+            final boolean avroPassthrough, final boolean singleReader) throws PulsarClientException {
 
        if (CollectionUtils.isEmpty(messages)) {
           return;
        }
 
+       final long start = System.nanoTime();
        RecordSchema schema = getSchema(readerFactory, messages.get(0));
+
+       final Schema avroSchema = avroPassthrough ? getPassthroughSchema(readerFactory, writerFactory, schema, messages) : null;
+       if (avroSchema != null) {
+          writeAvroDatums(session, consumer, messages, relationship, avroSchema);
+          time(consumer, WRITE_STAGE, start);
+          return;
+       }
        final BlockingQueue<Message<byte[]>> parseFailures = new LinkedBlockingQueue<Message<byte[]>>();
        FlowFile flowFile = session.create();
        OutputStream rawOut = session.write(flowFile);
@@ -232,30 +384,21 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
        } else {
            try {
                writer.beginRecordSet();
-               messages.forEach(msg ->{
-                   final InputStream in = new ByteArrayInputStream(msg.getValue());
-                   try {
-                       RecordReader r = readerFactory.createRecordReader(Collections.emptyMap(), in, getLogger());
-                       for (Record record = r.nextRecord(); record != null; record = r.nextRecord()) {
-                          writer.write(record);
-                       }
-                   } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
-                      parseFailures.add(msg);
-                   }
-               });
+               readRecords(messages, readerFactory, writer, parseFailures, demarcator, singleReader);
 
                WriteResult result = writer.finishRecordSet();
                IOUtils.closeQuietly(writer);
                IOUtils.closeQuietly(rawOut);
 
                if (result != WriteResult.EMPTY) {
+                   flowFile = recordLatency(session, flowFile, consumer, messages);
                    session.putAllAttributes(flowFile, result.getAttributes());
                    session.putAttribute(flowFile, MSG_COUNT, result.getRecordCount() + "");
                    session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                   session.transfer(flowFile, REL_SUCCESS);
+                   session.transfer(flowFile, relationship);
                } else {
-                   // We were able to parse the records, but unable to write them to the FlowFile
-                   session.rollback();
+                   // None of the records could be written, so only this FlowFile is dropped, as the session holds those of the other routes
+                   session.remove(flowFile);
                }
 
            } catch (IOException e) {
@@ -264,7 +407,419 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
        }
 
        handleFailures(session, parseFailures, demarcator);
+       time(consumer, WRITE_STAGE, start);
+    }
+
+    private void acknowledge(Consumer<byte[]> consumer, List<Message<byte[]>> messages, long start) throws PulsarClientException {
        consumer.acknowledgeCumulative(messages.get(messages.size()-1));
+       time(consumer, ACK_STAGE, start);
+    }
+
+    /**
+     * Determines whether the messages can be copied into an Avro container file as they are. This is only the case if the
+     * Record Writer writes Avro with exactly the schema that the messages were read with, and none of the messages is an
+     * Avro container file itself, i.e. each message holds a single encoded datum. The Schema Access Strategy of the
+     * Record Reader is not visible to the processor, so a reader that takes the schema from a content-encoded reference
+     * is recognized by it consuming the reference before the first record, and such messages are decoded instead.
+     *
+     * @return the Avro schema of the messages, or null if they have to be decoded.
+     */
+    private Schema getPassthroughSchema(RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, RecordSchema schema,
+            List<Message<byte[]>> messages) {
+        if (schema == null || !AVRO_SCHEMA_FORMAT.equals(schema.getSchemaFormat().orElse(null)) || !schema.getSchemaText().isPresent()) {
+            return null;
+        }
+
+        try {
+            final RecordSchema writeSchema = writerFactory.getSchema(Collections.emptyMap(), schema);
+            if (writeSchema == null || !AVRO_SCHEMA_FORMAT.equals(writeSchema.getSchemaFormat().orElse(null))
+                    || !writeSchema.getSchemaText().isPresent()) {
+                return null;
+            }
+
+            final Schema avroSchema = parseAvroSchema(schema.getSchemaText().get());
+            if (!avroSchema.equals(parseAvroSchema(writeSchema.getSchemaText().get()))) {
+                return null;
+            }
+
+            try (final RecordSetWriter probe = writerFactory.createWriter(getLogger(), writeSchema, new NullOutputStream())) {
+                if (!AVRO_MIME_TYPE.equals(probe.getMimeType())) {
+                    return null;
+                }
+            }
+
+            for (Message<byte[]> msg : messages) {
+                if (isAvroContainer(msg.getValue())) {
+                    return null;
+                }
+            }
+
+            if (readsSchemaReference(readerFactory, messages.get(0))) {
+                return null;
+            }
+            return avroSchema;
+
+        } catch (SchemaNotFoundException | MalformedRecordException | IOException | RuntimeException e) {
+            getLogger().debug("Unable to copy the Avro datums, decoding the messages instead", e);
+            return null;
+        }
+    }
+
+    private Schema parseAvroSchema(String text) {
+        final Pair<String, Schema> cached = avroSchemaCache;
+        if (cached != null && cached.getLeft().equals(text)) {
+            return cached.getRight();
+        }
+
+        final Schema parsed = new Schema.Parser().parse(text);
+        avroSchemaCache = Pair.of(text, parsed);
+        return parsed;
+    }
+
+    /**
+     * @return true if the Record Reader consumed part of the message before reading its first record, which is the
+     *         schema reference that a content-encoded Schema Access Strategy puts in front of the datum.
+     */
+    private boolean readsSchemaReference(RecordReaderFactory readerFactory, Message<byte[]> msg)
+            throws SchemaNotFoundException, MalformedRecordException, IOException {
+        final byte[] value = msg.getValue();
+        final ByteArrayInputStream in = new ByteArrayInputStream(value);
+        try (final RecordReader reader = readerFactory.createRecordReader(Collections.emptyMap(), in, getLogger())) {
+            return in.available() < value.length;
+        }
+    }
+
+    private static boolean isAvroContainer(byte[] value) {
+        if (value == null || value.length < DataFileConstants.MAGIC.length) {
+            return false;
+        }
+        for (int idx = 0; idx < DataFileConstants.MAGIC.length; idx++) {
+            if (value[idx] != DataFileConstants.MAGIC[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the encoded datums to an Avro container file with a single header, leaving it to the DataFileWriter to add
+     * a sync marker after each block.
+     */
+    private void writeAvroDatums(ProcessSession session, Consumer<byte[]> consumer, List<Message<byte[]>> messages, Relationship relationship,
+            Schema avroSchema) {
+        FlowFile flowFile = session.create();
+        int count = 0;
+
+        try (final OutputStream rawOut = session.write(flowFile)) {
+            final DataFileWriter<Object> dataFileWriter = new DataFileWriter<>(new GenericDatumWriter<>(avroSchema));
+            dataFileWriter.create(avroSchema, rawOut);
+
+            for (Message<byte[]> msg : messages) {
+                if (msg.getValue() != null && msg.getValue().length > 0) {
+                    dataFileWriter.appendEncoded(ByteBuffer.wrap(msg.getValue()));
+                    count++;
+                }
+            }
+            dataFileWriter.flush();
+        } catch (IOException e) {
+            getLogger().error("Unable to consume from Pulsar topic ", e);
+            session.remove(flowFile);
+            return;
+        }
+
+        if (count < 1) {
+            session.remove(flowFile);
+            return;
+        }
+
+        flowFile = session.putAttribute(flowFile, MSG_COUNT, String.valueOf(count));
+        flowFile = recordLatency(session, flowFile, consumer, messages);
+        session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
+        session.transfer(flowFile, relationship);
+    }
+
+    @Override
+    protected RollingFlowFile<byte[]> newRollingFlowFile(ProcessSession session, Consumer<byte[]> consumer, ProcessContext context) {
+        return new RollingRecordFlowFile(session, consumer, isRollingAckIndividual(context));
+    }
+
+    /**
+     * Appends the records in the messages to the rolling FlowFile. The record writer is created from the schema of
+     * the first message, and messages that cannot be parsed are routed to 'parse.failure' in the same session.
+     */
+    private void writeRolling(RollingRecordFlowFile rolling, List<Message<byte[]>> messages, RecordReaderFactory readerFactory,
+            RecordSetWriterFactory writerFactory, byte[] demarcator, boolean singleReader) throws IOException {
+
+        if (CollectionUtils.isEmpty(messages)) {
+            return;
+        }
+
+        final BlockingQueue<Message<byte[]>> parseFailures = new LinkedBlockingQueue<Message<byte[]>>();
+
+        if (rolling.writer == null) {
+            final RecordSchema schema = getSchema(readerFactory, messages.get(0));
+            rolling.writer = (schema == null) ? null : getRecordWriter(writerFactory, schema, rolling.getOutputStream());
+
+            if (rolling.writer != null) {
+                rolling.writer.beginRecordSet();
+            }
+        }
+
+        if (rolling.writer == null) {
+            getLogger().error("Unable create a record writer to consume from the Pulsar topic");
+            parseFailures.addAll(messages);
+        } else {
+            rolling.increment(readRecords(messages, readerFactory, rolling.writer, parseFailures, demarcator, singleReader));
+        }
+
+        handleFailures(rolling.getSession(), parseFailures, demarcator);
+    }
+
+    /**
+     * Reads the records in the messages and writes them with the given writer, adding the messages that could
+     * not be parsed to the parse failures.
+     *
+     * @return the number of records written.
+     */
+    private int readRecords(List<Message<byte[]>> messages, RecordReaderFactory readerFactory, RecordSetWriter writer,
+            Collection<Message<byte[]>> parseFailures, byte[] demarcator, boolean singleReader) {
+
+        final MetadataRecord metadata = addMetadataFields ? new MetadataRecord() : null;
+
+        if (singleReader) {
+            return readRecordStream(messages, readerFactory, writer, metadata, parseFailures, demarcator);
+        }
+
+        final ExecutorService pool = decodePool;
+        if (pool != null && messages.size() > 1) {
+            return readRecordsParallel(pool, messages, readerFactory, writer, metadata, parseFailures);
+        }
+
+        int count = 0;
+        for (Message<byte[]> msg : messages) {
+            final InputStream in = new ByteArrayInputStream(msg.getValue());
+            try {
+                setMessage(metadata, msg);
+                RecordReader r = readerFactory.createRecordReader(Collections.emptyMap(), in, getLogger());
+                for (Record record = r.nextRecord(); record != null; record = r.nextRecord()) {
+                   write(writer, record, metadata);
+                   count++;
+                }
+            } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
+               parseFailures.add(msg);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the messages into records on the decode pool, in chunks of consecutive messages, and writes the records
+     * on the calling thread in the order of the messages. At most two chunks per thread are decoded ahead of the writer.
+     *
+     * @return the number of records written.
+     */
+    private int readRecordsParallel(ExecutorService pool, List<Message<byte[]>> messages, RecordReaderFactory readerFactory,
+            RecordSetWriter writer, MetadataRecord metadata, Collection<Message<byte[]>> parseFailures) {
+
+        final int threads = decodeThreads;
+        final int chunkSize = Math.max(1, (messages.size() + threads * 4 - 1) / (threads * 4));
+        final AtomicInteger count = new AtomicInteger();
+
+        final OrderedTaskPipeline<List<DecodedMessage>> pipeline = new OrderedTaskPipeline<>(pool, threads * 2, decoded -> {
+            for (DecodedMessage msg : decoded) {
+                if (msg.records == null) {
+                    parseFailures.add(msg.message);
+                    continue;
+                }
+                try {
+                    setMessage(metadata, msg.message);
+                    for (Record record : msg.records) {
+                        write(writer, record, metadata);
+                        count.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    parseFailures.add(msg.message);
+                }
+            }
+        });
+
+        try {
+            for (int start = 0; start < messages.size(); start += chunkSize) {
+                final List<Message<byte[]>> chunk = messages.subList(start, Math.min(messages.size(), start + chunkSize));
+                pipeline.submit(() -> decode(chunk, readerFactory));
+            }
+            pipeline.finish();
+        } catch (IOException e) {
+            // The sink handles its own write failures
+            throw new ProcessException(e);
+        }
+        return count.get();
+    }
+
+    private List<DecodedMessage> decode(List<Message<byte[]>> messages, RecordReaderFactory readerFactory) {
+        final List<DecodedMessage> decoded = new ArrayList<>(messages.size());
+
+        for (Message<byte[]> msg : messages) {
+            final InputStream in = new ByteArrayInputStream(msg.getValue());
+            try {
+                final List<Record> records = new ArrayList<>();
+                RecordReader r = readerFactory.createRecordReader(Collections.emptyMap(), in, getLogger());
+                for (Record record = r.nextRecord(); record != null; record = r.nextRecord()) {
+                    records.add(record);
+                }
+                decoded.add(new DecodedMessage(msg, records));
+            } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
+                decoded.add(new DecodedMessage(msg, null));
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * The records decoded from a message, or null records if the message could not be parsed.
+     */
+    private static class DecodedMessage {
+        private final Message<byte[]> message;
+        private final List<Record> records;
+
+        DecodedMessage(Message<byte[]> message, List<Record> records) {
+            this.message = message;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Reads all of the messages with a single RecordReader, over one stream of the messages separated by the
+     * demarcator. Each message is expected to hold a single record, so a failure to read the n-th record is
+     * attributed to the n-th message, and reading restarts with a new RecordReader after that message.
+     *
+     * @return the number of records written.
+     */
+    private int readRecordStream(List<Message<byte[]>> messages, RecordReaderFactory readerFactory, RecordSetWriter writer,
+            MetadataRecord metadata, Collection<Message<byte[]>> parseFailures, byte[] demarcator) {
+
+        // Empty messages hold no record, and would throw off the mapping of records to messages
+        final List<Message<byte[]>> nonEmpty = new ArrayList<>(messages.size());
+        for (Message<byte[]> msg : messages) {
+            if (msg.getValue() != null && msg.getValue().length > 0) {
+                nonEmpty.add(msg);
+            }
+        }
+
+        int count = 0;
+        int start = 0;
+
+        while (start < nonEmpty.size()) {
+            int index = start;
+
+            try (final InputStream in = toInputStream(nonEmpty.subList(start, nonEmpty.size()), demarcator)) {
+                RecordReader r = readerFactory.createRecordReader(Collections.emptyMap(), in, getLogger());
+                for (Record record = r.nextRecord(); record != null; record = r.nextRecord()) {
+                    setMessage(metadata, nonEmpty.get(Math.min(index, nonEmpty.size() - 1)));
+                    write(writer, record, metadata);
+                    index++;
+                    count++;
+                }
+                return count;
+            } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
+                final int failed = Math.min(index, nonEmpty.size() - 1);
+                parseFailures.add(nonEmpty.get(failed));
+                start = failed + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the record, with the metadata fields appended to it if the metadata fields are added.
+     */
+    private static void write(RecordSetWriter writer, Record record, MetadataRecord metadata) throws IOException {
+        writer.write(metadata == null ? record : metadata.enrich(record));
+    }
+
+    private static void setMessage(MetadataRecord metadata, Message<byte[]> msg) {
+        if (metadata != null) {
+            metadata.setMessage(msg);
+        }
+    }
+
+    /**
+     * The metadata fields of the message that records are being read from, which are collected once per message and
+     * appended to each of its records. Every record is written as a new record, as writers may hold on to the records
+     * they are given, e.g. to infer a schema or to write them in batches.
+     */
+    private class MetadataRecord {
+        private final Map<String, Object> metadata = new HashMap<>();
+
+        void setMessage(Message<byte[]> msg) {
+            metadata.put(KEY_FIELD, msg.hasKey() ? msg.getKey() : null);
+            metadata.put(TOPIC_FIELD, msg.getTopicName());
+            metadata.put(MESSAGE_ID_FIELD, msg.getMessageId().toString());
+            metadata.put(PUBLISH_TIME_FIELD, msg.getPublishTime());
+            // Pulsar reports an event time of 0 for messages that were published without one
+            metadata.put(EVENT_TIME_FIELD, msg.getEventTime() > 0 ? msg.getEventTime() : null);
+            metadata.put(PROPERTIES_FIELD, msg.getProperties());
+        }
+
+        Record enrich(Record source) {
+            final RecordSchema schema = getMetadataSchema(source.getSchema());
+            final Map<String, Object> values = new HashMap<>((schema.getFieldCount() * 4 + 2) / 3);
+
+            // The metadata fields are appended to those of the source, so the ones before them are from the source
+            final int sourceFields = schema.getFieldCount() - METADATA_FIELDS.size();
+            for (int i = 0; i < sourceFields; i++) {
+                final RecordField field = schema.getField(i);
+                values.put(field.getFieldName(), source.getValue(field));
+            }
+            values.putAll(metadata);
+            return new MapRecord(schema, values);
+        }
+    }
+
+    /**
+     * @return the schema with the metadata fields appended, replacing any fields of the same name.
+     */
+    private RecordSchema getMetadataSchema(RecordSchema schema) {
+        if (schema == null) {
+            return null;
+        }
+
+        final Pair<RecordSchema, RecordSchema> cached = metadataSchemaCache;
+        if (cached != null && (cached.getLeft() == schema || cached.getLeft().equals(schema))) {
+            return cached.getRight();
+        }
+
+        final List<RecordField> fields = new ArrayList<>(schema.getFieldCount() + METADATA_FIELDS.size());
+        for (RecordField field : schema.getFields()) {
+            if (!isMetadataField(field.getFieldName())) {
+                fields.add(field);
+            }
+        }
+        fields.addAll(METADATA_FIELDS);
+
+        final RecordSchema metadataSchema = new SimpleRecordSchema(fields);
+        metadataSchemaCache = Pair.of(schema, metadataSchema);
+        return metadataSchema;
+    }
+
+    private static boolean isMetadataField(String name) {
+        for (RecordField field : METADATA_FIELDS) {
+            if (field.getFieldName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static InputStream toInputStream(List<Message<byte[]>> messages, byte[] demarcator) {
+        final List<InputStream> streams = new ArrayList<>(messages.size() * 2);
+        for (Message<byte[]> msg : messages) {
+            if (!streams.isEmpty() && demarcator != null) {
+                streams.add(new ByteArrayInputStream(demarcator));
+            }
+            streams.add(new ByteArrayInputStream(msg.getValue()));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
     }
 
     private void handleFailures(ProcessSession session, BlockingQueue<Message<byte[]>> parseFailures, byte[] demarcator) {
@@ -296,9 +851,12 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
     /**
      * Pull messages off of the CompletableFuture's held in the consumerService and process them in a batch.
      * @param demarcator - The bytes used to demarcate the individual messages.
+     * @param avroPassthrough - Whether Avro datums may be copied to the FlowFile without decoding them.
+     * @param singleReader - Whether the messages are read with a single RecordReader.
      */
     protected void handleAsync(ProcessContext context, ProcessSession session, final Consumer<byte[]> consumer,
-         final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, byte[] demarcator) throws PulsarClientException {
+         final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, byte[] demarcator,
+         boolean avroPassthrough, boolean singleReader) throws PulsarClientException {
 
         final Integer queryTimeout = context.getProperty(MAX_WAIT_TIME).evaluateAttributeExpressions().asTimePeriod(TimeUnit.SECONDS).intValue();
 
@@ -310,7 +868,11 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
                  if (done != null) {
                     List<Message<byte[]>> messages = done.get();
                     if (CollectionUtils.isNotEmpty(messages)) {
-                      consumeMessages(session, consumer, messages, readerFactory, writerFactory, demarcator);
+                      try {
+                        consumeRoutes(context, session, consumer, messages, readerFactory, writerFactory, demarcator, avroPassthrough, singleReader);
+                      } finally {
+                        release(messages);
+                      }
                     }
                  }
              } while (done != null);
@@ -320,6 +882,32 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
         }
     }
 
+    /**
+     * A rolling FlowFile that the records are written to through a single record set, spanning all of the triggers.
+     */
+    private static class RollingRecordFlowFile extends RollingFlowFile<byte[]> {
+        private RecordSetWriter writer;
+
+        RollingRecordFlowFile(ProcessSession session, Consumer<byte[]> consumer, boolean individualAcks) {
+            super(session, consumer, individualAcks, MSG_COUNT);
+        }
+
+        @Override
+        public FlowFile finish() throws IOException {
+            WriteResult result = null;
+            if (writer != null) {
+                result = writer.finishRecordSet();
+                writer.flush();
+            }
+
+            FlowFile flowFile = super.finish();
+            if (flowFile != null && result != null) {
+                flowFile = getSession().putAllAttributes(flowFile, result.getAttributes());
+            }
+            return flowFile;
+        }
+    }
+
     private RecordSchema getSchema(RecordReaderFactory readerFactory, Message<byte[]> msg) {
         RecordSchema schema = null;
         InputStream in = null;
@@ -338,7 +926,8 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<byte[]>
 
     private RecordSetWriter getRecordWriter(RecordSetWriterFactory writerFactory, RecordSchema srcSchema, OutputStream out) {
         try {
-            RecordSchema writeSchema = writerFactory.getSchema(Collections.emptyMap(), srcSchema);
+            final RecordSchema readSchema = addMetadataFields ? getMetadataSchema(srcSchema) : srcSchema;
+            RecordSchema writeSchema = writerFactory.getSchema(Collections.emptyMap(), readSchema);
             return writerFactory.createWriter(getLogger(), writeSchema, out);
         } catch (SchemaNotFoundException | IOException e) {
            return null;
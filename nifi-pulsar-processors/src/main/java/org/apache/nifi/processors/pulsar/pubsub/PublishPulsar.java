@@ -19,21 +19,38 @@ package org.apache.nifi.processors.pulsar.pubsub;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
-import org.apache.nifi.stream.io.util.StreamDemarcator;
+import org.apache.nifi.processors.pulsar.OutgoingMessage;
+import org.apache.nifi.processors.pulsar.util.DemarcatorTokenizer;
+import org.apache.nifi.stream.io.StreamUtils;
 import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 
@@ -48,18 +65,94 @@ import org.apache.pulsar.client.api.PulsarClientException;
 @TriggerWhenEmpty
 public class PublishPulsar extends AbstractPulsarProducerProcessor<byte[]> {
 
+    /*
+     * Message properties that are added to every chunk of a FlowFile that is sent in chunks,
+     * and used by ConsumePulsar to reassemble the chunks into the original content.
+     */
+    public static final String CHUNK_ID = "nifi.chunk.id";
+    public static final String CHUNK_INDEX = "nifi.chunk.index";
+    public static final String CHUNK_COUNT = "nifi.chunk.count";
+    public static final String CHUNK_TOTAL_SIZE = "nifi.chunk.total.size";
+
+    public static final PropertyDescriptor MESSAGE_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("MESSAGE_CHUNK_SIZE")
+            .displayName("Message Chunk Size")
+            .description("If specified, the content of each FlowFile is streamed to Pulsar as a sequence of messages "
+                + "of at most this size, instead of being sent as a single message. Only one chunk is held in memory at a "
+                + "time, so this allows FlowFiles that are larger than the maximum message size of the broker to be sent. Each "
+                + "chunk carries the '" + CHUNK_ID + "', '" + CHUNK_INDEX + "', '" + CHUNK_COUNT + "' and '" + CHUNK_TOTAL_SIZE
+                + "' message properties, which ConsumePulsar uses to reassemble the content. The chunk id is unique to each attempt "
+                + "to send the FlowFile, and is also the message key of the chunks unless a Message Key is configured, so that all chunks "
+                + "of a FlowFile are routed to the same partition. Chunks are always sent synchronously, so that they reach the topic "
+                + "in order. This property cannot be used together with the Message Demarcator.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_MESSAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_MESSAGE_SIZE")
+            .displayName("Max Message Size")
+            .description("The maximum size of a single message. FlowFiles that contain a message that is larger than this "
+                + "are routed to failure, without reading the rest of the message into memory. If not specified, there is no limit "
+                + "other than the one enforced by the Pulsar broker. Does not apply when the Message Chunk Size is specified.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES;
+
+    static {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.addAll(AbstractPulsarProducerProcessor.PROPERTIES);
+        properties.add(MESSAGE_CHUNK_SIZE);
+        properties.add(MAX_MESSAGE_SIZE);
+        PROPERTIES = Collections.unmodifiableList(properties);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final Set<ValidationResult> results = new HashSet<>();
+
+        if (validationContext.getProperty(MESSAGE_CHUNK_SIZE).isSet() && validationContext.getProperty(MESSAGE_DEMARCATOR).isSet()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Only one of the two properties ('Message Chunk Size' and 'Message Demarcator') can be specified.").build());
+        }
+        return results;
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
         handleFailures(session);
 
+        if (isMemoryExhausted()) {
+            // Leave the FlowFiles queued until the messages in flight have been acknowledged
+            context.yield();
+            return;
+        }
+
         final FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
         }
 
         final String topic = context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue();
-        final Producer<byte[]> producer = getProducer(context, topic);
+        reportTimings(session);
+
+        final CompletableFuture<Producer<byte[]>> pending = getProducerAsync(context, topic);
+
+        if (!pending.isDone()) {
+            // The producer for the topic is still being created, so try again later rather than waiting for it
+            session.transfer(session.penalize(flowFile));
+            return;
+        }
+
+        final Producer<byte[]> producer = getProducer(pending);
 
         /* If we are unable to create a producer, then we know we won't be able
          * to send the message successfully, so go ahead and route to failure now.
@@ -75,25 +168,44 @@ public class PublishPulsar extends AbstractPulsarProducerProcessor<byte[]> {
             return;
         }
 
+        final Map<String, String> properties = getMessageProperties(flowFile);
+
+        if (context.getProperty(MESSAGE_CHUNK_SIZE).isSet()) {
+            try {
+                sendChunks(producer, session, flowFile, topic, context.getProperty(MESSAGE_CHUNK_SIZE).asDataSize(DataUnit.B).intValue(), properties);
+            } catch (final PulsarClientException e) {
+                getLogger().error("Failed to connect to Pulsar Server due to {}", new Object[]{e});
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return;
+        }
+
         final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
                 .evaluateAttributeExpressions(flowFile).getValue().getBytes(StandardCharsets.UTF_8) : null;
 
+        final int maxMessageSize = context.getProperty(MAX_MESSAGE_SIZE).isSet()
+                ? context.getProperty(MAX_MESSAGE_SIZE).asDataSize(DataUnit.B).intValue() : Integer.MAX_VALUE;
+
         if (!context.getProperty(ASYNC_ENABLED).asBoolean()) {
             try {
-                send(producer, session, flowFile, demarcatorBytes);
+                send(producer, session, flowFile, demarcatorBytes, maxMessageSize, properties);
             } catch (final PulsarClientException e) {
                 getLogger().error("Failed to connect to Pulsar Server due to {}", new Object[]{e});
                 session.transfer(flowFile, REL_FAILURE);
             }
         } else if (canPublish.get()) {
-            byte[] messageContent;
+            long offset = 0;
 
             try (final InputStream in = session.read(flowFile);
-                 final StreamDemarcator demarcator = new StreamDemarcator(in, demarcatorBytes, Integer.MAX_VALUE)) {
-                while ((messageContent = demarcator.nextToken()) != null) {
-                   workQueue.put(Pair.of(topic, messageContent));
+                 final DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(in, demarcatorBytes, maxMessageSize)) {
+                long start = System.nanoTime();
+                while (tokenizer.next()) {
+                   start = time(topic, READ_STAGE, start);
+                   final OutgoingMessage<byte[]> message = createMessage(topic, tokenizer.copyToken(), flowFile, offset++, properties);
+                   time(topic, SERIALIZE_STAGE, start);
+                   workQueue.put(message);
+                   start = System.nanoTime();
                 }
-                demarcator.close();
                 session.transfer(flowFile, REL_SUCCESS);
             } catch (Throwable t) {
                 getLogger().error("Unable to process session due to ", t);
@@ -105,22 +217,30 @@ public class PublishPulsar extends AbstractPulsarProducerProcessor<byte[]> {
     /**
      * Sends the FlowFile content using the demarcator.
      */
-    private void send(Producer<byte[]> producer, ProcessSession session, FlowFile flowFile, byte[] demarcatorBytes) throws PulsarClientException {
+    private void send(Producer<byte[]> producer, ProcessSession session, FlowFile flowFile, byte[] demarcatorBytes, int maxMessageSize,
+            Map<String, String> properties) throws PulsarClientException {
         AtomicInteger successCounter = new AtomicInteger(0);
         AtomicInteger failureCounter = new AtomicInteger(0);
-        byte[] messageContent;
+        long offset = 0;
+
+        try (final InputStream in = session.read(flowFile);
+             final DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(in, demarcatorBytes, maxMessageSize)) {
+           long start = System.nanoTime();
+           while (tokenizer.next()) {
+              start = time(producer.getTopic(), READ_STAGE, start);
+              final OutgoingMessage<byte[]> message = createMessage(producer.getTopic(), tokenizer.copyToken(), flowFile, offset++, properties);
+              time(producer.getTopic(), SERIALIZE_STAGE, start);
 
-        try (final InputStream in = session.read(flowFile); final StreamDemarcator demarcator = new StreamDemarcator(in, demarcatorBytes, Integer.MAX_VALUE)) {
-           while ((messageContent = demarcator.nextToken()) != null) {
-              if (producer.send(messageContent) != null) {
+              if (send(producer, message) != null) {
                  successCounter.incrementAndGet();
               } else {
                  failureCounter.incrementAndGet();
                  break;  // Quit sending messages if we encounter a failure.
               }
+              start = System.nanoTime();
             }
-        } catch (final IOException ioEx) {
-            getLogger().error("Unable to publish message to Pulsar broker " + getPulsarClientService().getPulsarBrokerRootURL(), ioEx);
+        } catch (final IOException | ProcessException ex) {
+            getLogger().error("Unable to publish message to Pulsar broker " + getPulsarClientService().getPulsarBrokerRootURL(), ex);
             session.transfer(flowFile, REL_FAILURE);
             return;
         }
@@ -144,4 +264,62 @@ public class PublishPulsar extends AbstractPulsarProducerProcessor<byte[]> {
            session.transfer(flowFile, REL_FAILURE);
         }
     }
+
+    /**
+     * Streams the FlowFile content to Pulsar in chunks of at most chunkSize bytes. The chunks are sent
+     * synchronously, one at a time, so the read buffer can be re-used for every chunk but the last.
+     * A new chunk id is used for every attempt, so that the chunks of a retry are never mixed up with
+     * the chunks left over from an attempt that failed part way.
+     */
+    private void sendChunks(Producer<byte[]> producer, ProcessSession session, FlowFile flowFile, String topic, int chunkSize,
+            Map<String, String> attributeProperties) throws PulsarClientException {
+        final long chunkCount = Math.max(1L, (flowFile.getSize() + chunkSize - 1) / chunkSize);
+        final byte[] buffer = new byte[(int) Math.min(chunkSize, flowFile.getSize())];
+        final String chunkId = UUID.randomUUID().toString();
+        final String totalSize = String.valueOf(flowFile.getSize());
+        long sent = 0;
+
+        try (final InputStream in = session.read(flowFile)) {
+            for (long index = 0; index < chunkCount; index++) {
+                long start = System.nanoTime();
+                final int length = StreamUtils.fillBuffer(in, buffer, false);
+                start = time(topic, READ_STAGE, start);
+                final byte[] chunk = (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+
+                final Map<String, String> properties = new HashMap<>(attributeProperties.size() + 8);
+                properties.putAll(attributeProperties);
+                properties.put(CHUNK_ID, chunkId);
+                properties.put(CHUNK_INDEX, String.valueOf(index));
+                properties.put(CHUNK_COUNT, String.valueOf(chunkCount));
+                properties.put(CHUNK_TOTAL_SIZE, totalSize);
+                final OutgoingMessage<byte[]> message = createMessage(topic, chunk, flowFile, index, properties);
+                if (message.getKey() == null) {
+                    // Keyed messages are routed by the hash of their key, which keeps all chunks on one partition
+                    message.setKey(chunkId);
+                }
+                time(topic, SERIALIZE_STAGE, start);
+
+                if (send(producer, message) == null) {
+                    break;  // Quit sending chunks if we encounter a failure.
+                }
+                sent++;
+            }
+        } catch (final IOException | ProcessException ex) {
+            getLogger().error("Unable to publish message to Pulsar broker " + getPulsarClientService().getPulsarBrokerRootURL(), ex);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        if (sent > 0) {
+            session.adjustCounter("Messages Sent", sent, true);
+            session.getProvenanceReporter().send(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + topic,
+                 "Sent " + sent + " chunks");
+        }
+
+        if (sent == chunkCount) {
+           session.transfer(session.putAttribute(flowFile, MSG_COUNT, String.valueOf(sent)), REL_SUCCESS);
+        } else {
+           session.transfer(flowFile, REL_FAILURE);
+        }
+    }
 }
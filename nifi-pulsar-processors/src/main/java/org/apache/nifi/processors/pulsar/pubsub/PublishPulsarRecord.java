@@ -19,25 +19,38 @@ package org.apache.nifi.processors.pulsar.pubsub;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
+import org.apache.nifi.processors.pulsar.OutgoingMessage;
+import org.apache.nifi.processors.pulsar.util.OrderedTaskPipeline;
+import org.apache.nifi.processors.pulsar.util.RecordFieldPath;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.MalformedRecordException;
 import org.apache.nifi.serialization.RecordReader;
@@ -47,19 +60,32 @@ import org.apache.nifi.serialization.RecordSetWriterFactory;
 import org.apache.nifi.serialization.record.Record;
 import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
 import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
 
 @Tags({"Apache", "Pulsar", "Record", "csv", "json", "avro", "logs", "Put", "Send", "Message", "PubSub", "1.0"})
 @CapabilityDescription("Sends the contents of a FlowFile as individual records to Apache Pulsar using the Pulsar 1.x client API. "
     + "The contents of the FlowFile are expected to be record-oriented data that can be read by the configured Record Reader. "
-    + "The complementary NiFi processor for fetching messages is ConsumePulsarRecord.")
+    + "The complementary NiFi processor for fetching messages is ConsumePulsarRecord. If a record cannot be read, or cannot be sent "
+    + "when sending synchronously, sending stops at that record. The original FlowFile is then routed to 'success' once any records "
+    + "were sent, and a copy of it that starts sending at the first record that was not sent is routed to 'failure'.")
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
-@WritesAttribute(attribute = "msg.count", description = "The number of messages that were sent to Pulsar for this FlowFile. This attribute is added only to "
-        + "FlowFiles that are routed to success.")
+@ReadsAttribute(attribute = "record.offset", description = "If present, the records before this offset are skipped, as they were already sent "
+    + "by a previous attempt.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "msg.count", description = "The number of messages that were sent to Pulsar for this FlowFile. This attribute is added only to "
+        + "FlowFiles that are routed to success."),
+    @WritesAttribute(attribute = "record.offset", description = "The offset of the first record that was not sent. This attribute is added only to "
+        + "the copies of FlowFiles whose records could not all be sent, after some of them were sent.")
+})
 @SeeAlso({PublishPulsar.class, ConsumePulsar.class, ConsumePulsarRecord.class})
 @TriggerWhenEmpty
 public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]> {
 
+    public static final String RECORD_OFFSET = "record.offset";
+
     public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
             .name("RECORD_READER")
             .displayName("Record Reader")
@@ -76,33 +102,135 @@ public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]>
             .required(true)
             .build();
 
+    public static final PropertyDescriptor SERIALIZE_THREADS = new PropertyDescriptor.Builder()
+            .name("SERIALIZE_THREADS")
+            .displayName("Record Serialize Threads")
+            .description("The number of threads used to serialize the records into messages. If greater than one, the records "
+                    + "are read in chunks that are serialized concurrently, while the messages are still sent in the order of the "
+                    + "records in the FlowFile. At most two chunks per thread are read ahead of the messages being sent.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+
+    public static final PropertyDescriptor MESSAGE_KEY_FIELD = new PropertyDescriptor.Builder()
+            .name("MESSAGE_KEY_FIELD")
+            .displayName("Message Key Field")
+            .description("The names of the record field and of the records or maps it is nested in, separated by slashes such as "
+                    + "/customer/id, whose value is used as the key of the message that the record is sent as. Unlike a RecordPath, "
+                    + "no functions, predicates, wildcards or array indexes are supported. The key determines the partition of the "
+                    + "message when the Message Routing Mode is not Custom Partition. Records for which the field is missing or "
+                    + "null are sent without a key.")
+            .required(false)
+            .addValidator(RecordFieldPath.VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor EVENT_TIME_FIELD = new PropertyDescriptor.Builder()
+            .name("EVENT_TIME_FIELD")
+            .displayName("Event Time Field")
+            .description("The slash separated names of the record field, as for the Message Key Field, whose value in milliseconds "
+                    + "since the epoch or as a timestamp is used as the event time of the message that the record is sent as. "
+                    + "Records for which the field is missing or null are sent without an event time.")
+            .required(false)
+            .addValidator(RecordFieldPath.VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROPERTIES_FIELD = new PropertyDescriptor.Builder()
+            .name("PROPERTIES_FIELD")
+            .displayName("Properties Field")
+            .description("The slash separated names of a map or record field, as for the Message Key Field, whose entries are sent "
+                    + "as the properties of the message that the record is sent as. These are added to the properties taken from "
+                    + "the FlowFile attributes, and take precedence over them.")
+            .required(false)
+            .addValidator(RecordFieldPath.VALIDATOR)
+            .build();
+
+    // The number of records that are serialized by a single task
+    private static final int SERIALIZE_CHUNK_SIZE = 256;
+
     private static final List<PropertyDescriptor> PROPERTIES;
 
     static {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(RECORD_READER);
         properties.add(RECORD_WRITER);
+        properties.add(SERIALIZE_THREADS);
+        properties.add(MESSAGE_KEY_FIELD);
+        properties.add(EVENT_TIME_FIELD);
+        properties.add(PROPERTIES_FIELD);
         properties.addAll(AbstractPulsarProducerProcessor.PROPERTIES);
         PROPERTIES = Collections.unmodifiableList(properties);
     }
 
+    private volatile ExecutorService serializePool;
+    private volatile int serializeThreads;
+
+    private volatile RecordFieldPath keyPath;
+    private volatile RecordFieldPath eventTimePath;
+    private volatile RecordFieldPath propertiesPath;
+    private volatile boolean hasFieldPaths;
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return PROPERTIES;
     }
 
+    @OnScheduled
+    public void initSerializePool(ProcessContext context) {
+        serializeThreads = context.getProperty(SERIALIZE_THREADS).asInteger();
+        if (serializeThreads > 1) {
+            serializePool = Executors.newFixedThreadPool(serializeThreads);
+        }
+    }
+
+    @OnScheduled
+    public void compileFieldPaths(ProcessContext context) {
+        keyPath = compile(context, MESSAGE_KEY_FIELD);
+        eventTimePath = compile(context, EVENT_TIME_FIELD);
+        propertiesPath = compile(context, PROPERTIES_FIELD);
+        hasFieldPaths = keyPath != null || eventTimePath != null || propertiesPath != null;
+    }
+
+    private static RecordFieldPath compile(ProcessContext context, PropertyDescriptor descriptor) {
+        return context.getProperty(descriptor).isSet() ? RecordFieldPath.compile(context.getProperty(descriptor).getValue()) : null;
+    }
+
+    @OnStopped
+    public void shutDownSerializePool() {
+        if (serializePool != null) {
+            serializePool.shutdownNow();
+            serializePool = null;
+        }
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
         handleFailures(session);
 
+        if (isMemoryExhausted()) {
+            // Leave the FlowFiles queued until the messages in flight have been acknowledged
+            context.yield();
+            return;
+        }
+
         final FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
         }
 
         final String topic = context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue();
-        final Producer<byte[]> producer = getProducer(context, topic);
+        reportTimings(session);
+
+        final CompletableFuture<Producer<byte[]>> pending = getProducerAsync(context, topic);
+
+        if (!pending.isDone()) {
+            // The producer for the topic is still being created, so try again later rather than waiting for it
+            session.transfer(session.penalize(flowFile));
+            return;
+        }
+
+        final Producer<byte[]> producer = getProducer(pending);
 
         /* If we are unable to create a producer, then we know we won't be able
          * to send the message successfully, so go ahead and route to failure now.
@@ -125,61 +253,252 @@ public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]>
                 .asControllerService(RecordSetWriterFactory.class);
 
         final Map<String, String> attributes = flowFile.getAttributes();
-        final AtomicLong messagesSent = new AtomicLong(0L);
+        final long firstOffset = getFirstOffset(flowFile);
+        // The records that were either sent or queued to be sent
+        final AtomicLong processed = new AtomicLong(0L);
         final InputStream in = session.read(flowFile);
+        RecordSchema schema = null;
+        boolean incomplete = false;
 
         try {
             final RecordReader reader = readerFactory.createRecordReader(attributes, in, getLogger());
             final RecordSet recordSet = reader.createRecordSet();
-            final RecordSchema schema = writerFactory.getSchema(attributes, recordSet.getSchema());
+            schema = writerFactory.getSchema(attributes, recordSet.getSchema());
             final boolean asyncFlag = (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean());
 
-            try {
-                messagesSent.addAndGet(send(producer, writerFactory, schema, reader, topic, asyncFlag));
-                session.putAttribute(flowFile, MSG_COUNT, messagesSent.get() + "");
-                session.putAttribute(flowFile, TOPIC_NAME, topic);
-                session.adjustCounter("Messages Sent", messagesSent.get(), true);
-                session.getProvenanceReporter().send(flowFile, getPulsarClientService().getPulsarBrokerRootURL(), "Sent " + messagesSent.get() + " records");
-                session.transfer(flowFile, REL_SUCCESS);
-            } catch (InterruptedException e) {
-              session.transfer(flowFile, REL_FAILURE);
-            }
+            final Map<String, String> properties = getMessageProperties(flowFile);
 
-        } catch (final SchemaNotFoundException | MalformedRecordException | IOException e) {
-            session.transfer(flowFile, REL_FAILURE);
+            send(producer, writerFactory, schema, reader, flowFile, topic, properties, asyncFlag, firstOffset, processed);
+
+        } catch (final SchemaNotFoundException | MalformedRecordException | IOException | ProcessException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            getLogger().error("Unable to publish the records of {} to topic {} after {} records were processed",
+                new Object[] {flowFile, topic, processed.get()}, e);
+            incomplete = true;
         } finally {
             try {
                 in.close();
             } catch (final IOException ioEx) { /* Ignore */ }
         }
+
+        final long messagesSent = processed.get();
+
+        // If none of the records could be sent, then the FlowFile can be retried as a whole
+        if (messagesSent == 0 && incomplete) {
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        if (incomplete) {
+            // Retrying the original would send its records again, so the retry starts at the first record that was not processed
+            FlowFile remainder = session.clone(flowFile);
+            remainder = session.putAttribute(remainder, RECORD_OFFSET, String.valueOf(firstOffset + processed.get()));
+            remainder = session.putAttribute(remainder, TOPIC_NAME, topic);
+            session.transfer(remainder, REL_FAILURE);
+        }
+
+        session.putAttribute(flowFile, MSG_COUNT, messagesSent + "");
+        session.putAttribute(flowFile, TOPIC_NAME, topic);
+        session.adjustCounter("Messages Sent", messagesSent, true);
+        session.getProvenanceReporter().send(flowFile, getPulsarClientService().getPulsarBrokerRootURL(), "Sent " + messagesSent + " records");
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    private static long getFirstOffset(FlowFile flowFile) {
+        final String offset = flowFile.getAttribute(RECORD_OFFSET);
+        try {
+            return (offset == null) ? 0L : Math.max(0L, Long.parseLong(offset));
+        } catch (final NumberFormatException nfEx) {
+            return 0L;
+        }
     }
 
-    private int send(final Producer<byte[]> producer, final RecordSetWriterFactory writerFactory, final RecordSchema schema, final RecordReader reader,
-            String topic, boolean asyncFlag) throws IOException, SchemaNotFoundException, InterruptedException {
+    /**
+     * Sends the records from the given offset on. The count of processed records is kept up to date as the records are
+     * handed to the producer, so that it is still accurate when the records cannot be read, or a synchronous send fails,
+     * before the end.
+     *
+     * @param properties - The message properties shared by all of the records of the FlowFile.
+     * @param firstOffset - The offset of the first record to send, skipping the records that a previous attempt sent.
+     * @param processed - Counts the records that were sent or queued to be sent.
+     * @throws PulsarClientException if a record cannot be sent synchronously, as the records after it would most likely
+     *          fail the same way, each after the full send timeout.
+     */
+    private void send(final Producer<byte[]> producer, final RecordSetWriterFactory writerFactory, final RecordSchema schema, final RecordReader reader,
+            final FlowFile flowFile, String topic, Map<String, String> properties, boolean asyncFlag, long firstOffset, AtomicLong processed)
+            throws IOException, SchemaNotFoundException, InterruptedException {
 
         final RecordSet recordSet = reader.createRecordSet();
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-        Record record;
-        int recordCount = 0;
+        long offset = 0;
 
         try {
+            while (offset < firstOffset && recordSet.next() != null) {
+                offset++;
+            }
+
+            final ExecutorService pool = serializePool;
+            if (pool != null) {
+                sendParallel(pool, producer, writerFactory, schema, recordSet, flowFile, topic, properties, asyncFlag, offset, processed);
+                return;
+            }
+
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+            Record record;
+            long start = System.nanoTime();
             while ((record = recordSet.next()) != null) {
-                recordCount++;
+                start = time(topic, READ_STAGE, start);
                 baos.reset();
 
                 try (final RecordSetWriter writer = writerFactory.createWriter(getLogger(), schema, baos)) {
                     writer.write(record);
                     writer.flush();
                 }
+                final OutgoingMessage<byte[]> message = createMessage(topic, baos.toByteArray(), flowFile, offset++, properties, record);
+                time(topic, SERIALIZE_STAGE, start);
+
                 if (asyncFlag) {
-                   workQueue.put(Pair.of(topic, baos.toByteArray()));
+                   workQueue.put(message);
                 } else {
-                  producer.send(baos.toByteArray());
+                  send(producer, message);
                 }
+                processed.incrementAndGet();
+                start = System.nanoTime();
             }
-            return recordCount;
         } finally {
             reader.close();
         }
     }
+
+    /**
+     * Creates the message for the record, with the key, event time and properties selected by the field paths.
+     *
+     * @throws ProcessException if the value of the event time field cannot be converted to a timestamp.
+     */
+    private OutgoingMessage<byte[]> createMessage(String topic, byte[] value, FlowFile flowFile, long offset,
+            Map<String, String> properties, Record record) {
+
+        final OutgoingMessage<byte[]> message = createMessage(topic, value, flowFile, offset, properties);
+
+        if (!hasFieldPaths) {
+            return message;
+        }
+
+        final Object key = (keyPath == null) ? null : keyPath.evaluate(record);
+        if (key != null) {
+            message.setKey(DataTypeUtils.toString(key, (String) null));
+        }
+
+        final Object eventTime = (eventTimePath == null) ? null : eventTimePath.evaluate(record);
+        if (eventTime != null) {
+            try {
+                message.setEventTime(DataTypeUtils.toLong(eventTime, eventTimePath.toString()));
+            } catch (IllegalTypeConversionException | NumberFormatException e) {
+                throw new ProcessException("Unable to use the value of " + eventTimePath + " as the event time of a message", e);
+            }
+        }
+
+        final Object recordProperties = (propertiesPath == null) ? null : propertiesPath.evaluate(record);
+        if (recordProperties instanceof Map || recordProperties instanceof Record) {
+            message.setProperties(mergeProperties(properties, recordProperties));
+        }
+        return message;
+    }
+
+    private static Map<String, String> mergeProperties(Map<String, String> properties, Object recordProperties) {
+        final Map<String, String> merged = new HashMap<>(properties);
+
+        if (recordProperties instanceof Record) {
+            final Record record = (Record) recordProperties;
+            for (String fieldName : record.getSchema().getFieldNames()) {
+                final String value = record.getAsString(fieldName);
+                if (value != null) {
+                    merged.put(fieldName, value);
+                }
+            }
+        } else {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) recordProperties).entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    merged.put(entry.getKey().toString(), entry.getValue().toString());
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads the records in chunks that are serialized on the serialize pool, and sends the resulting messages on the
+     * calling thread in the order of the records.
+     */
+    private void sendParallel(final ExecutorService pool, final Producer<byte[]> producer, final RecordSetWriterFactory writerFactory,
+            final RecordSchema schema, final RecordSet recordSet, final FlowFile flowFile, String topic, Map<String, String> properties,
+            boolean asyncFlag, long firstOffset, AtomicLong processed) throws IOException, InterruptedException {
+
+        final OrderedTaskPipeline<Pair<List<Record>, List<byte[]>>> pipeline = new OrderedTaskPipeline<>(pool, serializeThreads * 2, chunk -> {
+            final List<Record> records = chunk.getLeft();
+            final List<byte[]> messages = chunk.getRight();
+
+            for (int idx = 0; idx < messages.size(); idx++) {
+                final OutgoingMessage<byte[]> msg = createMessage(topic, messages.get(idx), flowFile, firstOffset + processed.get(), properties, records.get(idx));
+                if (asyncFlag) {
+                    try {
+                        workQueue.put(msg);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while queueing a message");
+                    }
+                } else {
+                    send(producer, msg);
+                }
+                processed.incrementAndGet();
+            }
+        });
+
+        try {
+            List<Record> chunk = new ArrayList<>(SERIALIZE_CHUNK_SIZE);
+            Record record;
+            long start = System.nanoTime();
+
+            while ((record = recordSet.next()) != null) {
+                time(topic, READ_STAGE, start);
+                chunk.add(record);
+                if (chunk.size() == SERIALIZE_CHUNK_SIZE) {
+                    submit(pipeline, writerFactory, schema, topic, chunk);
+                    chunk = new ArrayList<>(SERIALIZE_CHUNK_SIZE);
+                }
+                start = System.nanoTime();
+            }
+            if (!chunk.isEmpty()) {
+                submit(pipeline, writerFactory, schema, topic, chunk);
+            }
+            pipeline.finish();
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            pipeline.cancel();
+            throw e;
+        }
+    }
+
+    private void submit(OrderedTaskPipeline<Pair<List<Record>, List<byte[]>>> pipeline, RecordSetWriterFactory writerFactory, RecordSchema schema,
+            String topic, List<Record> records) throws IOException {
+
+        pipeline.submit(() -> {
+            final long start = System.nanoTime();
+            final List<byte[]> messages = new ArrayList<>(records.size());
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+
+            for (Record record : records) {
+                baos.reset();
+                try (final RecordSetWriter writer = writerFactory.createWriter(getLogger(), schema, baos)) {
+                    writer.write(record);
+                    writer.flush();
+                }
+                messages.add(baos.toByteArray());
+            }
+            time(topic, SERIALIZE_STAGE, start);
+            return Pair.of(records, messages);
+        });
+    }
 }
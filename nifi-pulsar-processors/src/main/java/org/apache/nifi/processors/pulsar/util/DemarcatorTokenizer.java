@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.apache.nifi.stream.io.exception.TokenTooLargeException;
+
+/**
+ * Splits an InputStream into the tokens found between occurrences of a demarcator, in the same way as
+ * NiFi's StreamDemarcator: empty tokens are skipped, and if no demarcator is given the entire stream is a
+ * single token. Unlike StreamDemarcator, a demarcator that directly follows a partial match of itself
+ * (such as the "\r\n" in "\r\r\n") is found.
+ * <p>
+ * Rather than comparing the demarcator at every byte position, the stream is read in blocks that are
+ * searched 8 bytes at a time (SWAR) for the first byte of the demarcator. Demarcators that are at least
+ * as long as a word are searched using Boyer-Moore-Horspool instead, which skips up to the length of the
+ * demarcator at a time. Tokens are exposed as a view over the internal buffer, which is re-used for the
+ * next token, so callers that need to keep a token must copy it (see {@link #copyToken()}).
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class DemarcatorTokenizer implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final InputStream in;
+    private final byte[] demarcator;
+    private final int maxTokenSize;
+    private final int[] shift;
+    private final long pattern;
+
+    private byte[] buffer;
+    private ByteBuffer words;
+    private int position;   // start of the next token
+    private int scanFrom;   // where the demarcator search resumes
+    private int limit;      // end of the data read into the buffer
+    private boolean endOfStream;
+
+    private int tokenOffset;
+    private int tokenLength;
+
+    public DemarcatorTokenizer(InputStream in, byte[] demarcator, int maxTokenSize) {
+        this(in, demarcator, maxTokenSize, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DemarcatorTokenizer(InputStream in, byte[] demarcator, int maxTokenSize, int blockSize) {
+        if (in == null) {
+            throw new IllegalArgumentException("'in' must not be null");
+        }
+        if (maxTokenSize <= 0) {
+            throw new IllegalArgumentException("'maxTokenSize' must be a positive number");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("'blockSize' must be a positive number");
+        }
+
+        this.in = in;
+        this.demarcator = (demarcator == null || demarcator.length == 0) ? null : demarcator.clone();
+        this.maxTokenSize = maxTokenSize;
+        this.shift = (this.demarcator != null && this.demarcator.length >= Long.BYTES) ? buildShiftTable(this.demarcator) : null;
+        this.pattern = (this.demarcator != null) ? ONES * (this.demarcator[0] & 0xFF) : 0L;
+        setBuffer(new byte[Math.max(blockSize, this.demarcator == null ? 0 : this.demarcator.length)]);
+    }
+
+    /**
+     * Advances to the next non-empty token.
+     *
+     * @return true if a token is available, false if the end of the stream was reached.
+     * @throws TokenTooLargeException if the token is larger than the maximum token size.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (demarcator != null) {
+                final int idx = indexOf(scanFrom, limit);
+
+                if (idx >= 0) {
+                    final int length = idx - position;
+                    final int offset = position;
+                    position = idx + demarcator.length;
+                    scanFrom = position;
+
+                    if (length == 0) {
+                        continue;
+                    }
+                    return setToken(offset, length);
+                }
+
+                // The last few bytes may be the start of a demarcator, so they have to be searched again
+                scanFrom = Math.max(position, limit - demarcator.length + 1);
+
+                if (scanFrom - position > maxTokenSize) {
+                    throw tooLarge(scanFrom - position);
+                }
+            } else {
+                scanFrom = limit;
+
+                if (limit - position > maxTokenSize) {
+                    throw tooLarge(limit - position);
+                }
+            }
+
+            if (endOfStream) {
+                if (limit > position) {
+                    final int offset = position;
+                    position = limit;
+                    scanFrom = limit;
+                    return setToken(offset, limit - offset);
+                }
+                tokenLength = 0;
+                return false;
+            }
+
+            fill();
+        }
+    }
+
+    /**
+     * @return the buffer that holds the current token; only valid until the next call to {@link #next()}.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getTokenOffset() {
+        return tokenOffset;
+    }
+
+    public int getTokenLength() {
+        return tokenLength;
+    }
+
+    /**
+     * @return a copy of the current token.
+     */
+    public byte[] copyToken() {
+        return Arrays.copyOfRange(buffer, tokenOffset, tokenOffset + tokenLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean setToken(int offset, int length) throws TokenTooLargeException {
+        if (length > maxTokenSize) {
+            throw tooLarge(length);
+        }
+        tokenOffset = offset;
+        tokenLength = length;
+        return true;
+    }
+
+    private TokenTooLargeException tooLarge(int size) {
+        return new TokenTooLargeException("A message in the stream exceeds the maximum allowed message size of " + maxTokenSize
+            + " bytes (at least " + size + " bytes).");
+    }
+
+    /**
+     * Moves the unconsumed data to the start of the buffer, growing the buffer if it is full, and reads the next block.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scanFrom -= position;
+            position = 0;
+        }
+
+        if (limit == buffer.length) {
+            if (buffer.length >= MAX_BUFFER_SIZE) {
+                throw tooLarge(limit);
+            }
+            setBuffer(Arrays.copyOf(buffer, (int) Math.min(MAX_BUFFER_SIZE, buffer.length * 2L)));
+        }
+
+        final int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the index of the first occurrence of the demarcator that starts at or after 'from'
+     * and ends before 'to', or -1 if there is none.
+     */
+    private int indexOf(int from, int to) {
+        if (shift != null) {
+            return indexOfSequence(from, to);
+        }
+
+        final int end = to - demarcator.length + 1;
+        for (int i = indexOfByte(from, end); i >= 0; i = indexOfByte(i + 1, end)) {
+            if (matches(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first occurrence of the first demarcator byte in [from, to), or -1 if there is none.
+     */
+    private int indexOfByte(int from, int to) {
+        int i = from;
+
+        // Test 8 bytes at a time, the lowest byte of (x - 0x01..) & ~x & 0x80.. that is set marks the first zero byte of x
+        for (final int end = to - Long.BYTES; i <= end; i += Long.BYTES) {
+            final long x = words.getLong(i) ^ pattern;
+            final long found = (x - ONES) & ~x & HIGH_BITS;
+
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+
+        final byte b = demarcator[0];
+        for (; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfSequence(int from, int to) {
+        final int last = demarcator.length - 1;
+        final byte lastByte = demarcator[last];
+
+        for (int i = from + last; i < to; i += shift[buffer[i] & 0xFF]) {
+            if (buffer[i] == lastByte && buffer[i - last] == demarcator[0] && matches(i - last)) {
+                return i - last;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int start) {
+        for (int k = demarcator.length - 1; k > 0; k--) {
+            if (buffer[start + k] != demarcator[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] buildShiftTable(byte[] demarcator) {
+        final int last = demarcator.length - 1;
+        final int[] table = new int[256];
+        Arrays.fill(table, demarcator.length);
+
+        for (int k = 0; k < last; k++) {
+            table[demarcator[k] & 0xFF] = last - k;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+/**
+ * Runs tasks concurrently on an ExecutorService, while handing their results to a sink on the calling thread,
+ * in the order in which the tasks were submitted. At most a fixed number of tasks are in flight at any time:
+ * once that limit is reached, {@link #submit(Callable)} hands the oldest result to the sink before submitting
+ * the next task, so a slow sink applies back-pressure to the producer of the tasks and the memory used by
+ * pending results stays bounded.
+ * <p>
+ * Instances are not thread-safe, and are meant to be used for a single batch of work.
+ */
+public class OrderedTaskPipeline<T> {
+
+    /**
+     * Receives the results of the tasks, in order.
+     */
+    @FunctionalInterface
+    public interface Sink<T> {
+        void accept(T result) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Sink<T> sink;
+    private final Deque<Future<T>> inFlight = new ArrayDeque<>();
+
+    public OrderedTaskPipeline(ExecutorService executor, int maxInFlight, Sink<T> sink) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("'maxInFlight' must be a positive number");
+        }
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.sink = sink;
+    }
+
+    /**
+     * Submits a task, first handing the oldest result to the sink if the maximum number of tasks is in flight.
+     *
+     * @throws IOException if the sink fails, after which the remaining tasks are cancelled.
+     * @throws ProcessException if a task fails or the thread is interrupted, after which the remaining tasks are cancelled.
+     */
+    public void submit(Callable<T> task) throws IOException {
+        while (inFlight.size() >= maxInFlight) {
+            drainOne();
+        }
+        inFlight.addLast(executor.submit(task));
+    }
+
+    /**
+     * Hands the results of all of the tasks in flight to the sink.
+     */
+    public void finish() throws IOException {
+        while (!inFlight.isEmpty()) {
+            drainOne();
+        }
+    }
+
+    /**
+     * Cancels all of the tasks in flight, without handing their results to the sink.
+     */
+    public void cancel() {
+        for (Future<T> future : inFlight) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+    }
+
+    private void drainOne() throws IOException {
+        final T result;
+        try {
+            result = inFlight.peekFirst().get();
+            inFlight.removeFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new ProcessException("Interrupted while waiting for a task to complete", e);
+        } catch (ExecutionException e) {
+            cancel();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ProcessException(e.getCause());
+        }
+
+        try {
+            sink.accept(result);
+        } catch (IOException | RuntimeException e) {
+            cancel();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.pulsar.PulsarClientService;
+import org.apache.pulsar.common.naming.TopicName;
+
+/**
+ * Resolves the value of a "Pre-warm Topics" property into the topics to create producers or consumers for.
+ */
+public final class PreWarmTopics {
+
+    /**
+     * The suffix of an entry that stands for all of the topics of a namespace, as in "public/default/*".
+     */
+    public static final String NAMESPACE_WILDCARD = "/*";
+
+    private PreWarmTopics() {
+    }
+
+    /**
+     * @param value - A comma separated list of topics, and namespaces followed by the wildcard.
+     * @return the distinct topics, with the partitions of a partitioned topic in a namespace resolved to that topic.
+     * @throws ProcessException if the topics of a namespace cannot be listed.
+     */
+    public static List<String> resolve(PulsarClientService clientService, String value) {
+        final Set<String> topics = new LinkedHashSet<>();
+
+        for (String entry : value.split(",")) {
+            final String trimmed = entry.trim();
+
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+
+            if (!trimmed.endsWith(NAMESPACE_WILDCARD)) {
+                topics.add(trimmed);
+                continue;
+            }
+
+            final String namespace = trimmed.substring(0, trimmed.length() - NAMESPACE_WILDCARD.length());
+            try {
+                for (String topic : clientService.getTopics(namespace).join()) {
+                    topics.add(TopicName.get(topic).getPartitionedTopicName());
+                }
+            } catch (final CompletionException e) {
+                throw new ProcessException("Unable to list the topics of namespace " + namespace, e.getCause());
+            }
+        }
+        return new ArrayList<>(topics);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import java.util.Map;
+
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.serialization.record.Record;
+
+/**
+ * A path of field names, such as "/customer/id", that selects a (possibly nested) value of a record. This is only the
+ * child-field subset of NiFi's RecordPath syntax: functions, predicates, wildcards, descendant fields, parent references
+ * and array indexes are rejected when the path is compiled, rather than being evaluated differently. The path is split
+ * into its field names once, so evaluating it against a record is a lookup per field name. Both nested records and maps
+ * are descended into.
+ * <p>
+ * Instances are immutable, and can be shared between threads.
+ */
+public class RecordFieldPath {
+
+    public static final Validator VALIDATOR = (subject, input, context) -> {
+        try {
+            compile(input);
+            return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+        } catch (final IllegalArgumentException e) {
+            return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+        }
+    };
+
+    private final String path;
+    private final String[] fieldNames;
+
+    private RecordFieldPath(String path, String[] fieldNames) {
+        this.path = path;
+        this.fieldNames = fieldNames;
+    }
+
+    // The characters that only other parts of the RecordPath syntax use
+    private static final String RECORD_PATH_CHARACTERS = "[]*()'\"=<>!";
+
+    /**
+     * @throws IllegalArgumentException if the path is not of the form /field[/field...].
+     */
+    public static RecordFieldPath compile(String path) {
+        if (path == null || !path.startsWith("/") || path.length() < 2) {
+            throw new IllegalArgumentException("'" + path + "' is not a path of field names, such as /field or /parent/child");
+        }
+
+        final String[] fieldNames = path.substring(1).split("/", -1);
+        for (String fieldName : fieldNames) {
+            if (fieldName.trim().isEmpty()) {
+                throw new IllegalArgumentException("'" + path + "' contains an empty field name");
+            }
+            if (fieldName.equals(".") || fieldName.equals("..")
+                    || fieldName.chars().anyMatch(c -> RECORD_PATH_CHARACTERS.indexOf(c) >= 0)) {
+                throw new IllegalArgumentException("'" + path + "' is not supported, only field names separated by slashes are, "
+                        + "without the functions, predicates, wildcards or array indexes of a RecordPath");
+            }
+        }
+        return new RecordFieldPath(path, fieldNames);
+    }
+
+    /**
+     * @return the value that the path selects, or null if any of the fields along the path is missing or null.
+     */
+    public Object evaluate(Record record) {
+        Object value = record;
+
+        for (String fieldName : fieldNames) {
+            if (value instanceof Record) {
+                value = ((Record) value).getValue(fieldName);
+            } else if (value instanceof Map) {
+                value = ((Map<?, ?>) value).get(fieldName);
+            } else {
+                return null;
+            }
+
+            if (value == null) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
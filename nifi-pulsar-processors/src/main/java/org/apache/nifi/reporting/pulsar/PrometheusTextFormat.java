@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.pulsar;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.LatencyHistogram;
+import org.apache.nifi.pulsar.stats.TopicStats;
+
+/**
+ * Writes the stats of the Pulsar client services in the Prometheus text exposition format. The samples of each metric
+ * are written together, under a single HELP and TYPE line, labelled with the name of the service and the topic. The
+ * consume latencies are written as cumulative histograms, so that any percentile over any interval can be computed
+ * from the buckets of two scrapes.
+ */
+final class PrometheusTextFormat {
+
+    /**
+     * The stats of one client service.
+     */
+    static final class ServiceStats {
+        final String name;
+        final PulsarMemoryLimiter memoryLimiter;
+        final List<TopicStats> topics;
+
+        ServiceStats(String name, PulsarMemoryLimiter memoryLimiter, List<TopicStats> topics) {
+            this.name = name;
+            this.memoryLimiter = memoryLimiter;
+            this.topics = topics;
+        }
+    }
+
+    private static final class Metric {
+        final String name;
+        final String type;
+        final String help;
+        final ToDoubleFunction<TopicStats> value;
+
+        Metric(String name, String type, String help, ToDoubleFunction<TopicStats> value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private static final Metric[] TOPIC_METRICS = {
+        new Metric("pulsar_producers", "gauge", "Number of producers", TopicStats::getProducers),
+        new Metric("pulsar_send_msgs_rate", "gauge", "Messages sent per second", TopicStats::getSendMsgsRate),
+        new Metric("pulsar_send_bytes_rate", "gauge", "Bytes sent per second", TopicStats::getSendBytesRate),
+        new Metric("pulsar_send_latency_p50_ms", "gauge", "Median send latency in milliseconds", TopicStats::getSendLatencyMillis50pct),
+        new Metric("pulsar_send_latency_p99_ms", "gauge", "99th percentile send latency in milliseconds", TopicStats::getSendLatencyMillis99pct),
+        new Metric("pulsar_send_latency_max_ms", "gauge", "Maximum send latency in milliseconds", TopicStats::getSendLatencyMillisMax),
+        new Metric("pulsar_msgs_sent_total", "counter", "Messages sent", TopicStats::getTotalMsgsSent),
+        new Metric("pulsar_send_failed_total", "counter", "Messages that failed to send", TopicStats::getTotalSendFailed),
+        new Metric("pulsar_acks_received_total", "counter", "Acknowledgements received for sent messages", TopicStats::getTotalAcksReceived),
+        new Metric("pulsar_pending_queue_size", "gauge", "Messages sent but not yet acknowledged", TopicStats::getPendingQueueSize),
+        new Metric("pulsar_consumers", "gauge", "Number of consumers", TopicStats::getConsumers),
+        new Metric("pulsar_receive_msgs_rate", "gauge", "Messages received per second", TopicStats::getReceiveMsgsRate),
+        new Metric("pulsar_receive_bytes_rate", "gauge", "Bytes received per second", TopicStats::getReceiveBytesRate),
+        new Metric("pulsar_msgs_received_total", "counter", "Messages received", TopicStats::getTotalMsgsReceived),
+        new Metric("pulsar_acks_sent_total", "counter", "Acknowledgements sent for received messages", TopicStats::getTotalAcksSent),
+        new Metric("pulsar_receiver_queue_size", "gauge", "Messages prefetched but not yet received", TopicStats::getReceiverQueueSize)
+    };
+
+    private static final class Histogram {
+        final String name;
+        final String help;
+        final Function<TopicStats, LatencyHistogram.Snapshot> value;
+
+        Histogram(String name, String help, Function<TopicStats, LatencyHistogram.Snapshot> value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private static final Histogram[] TOPIC_HISTOGRAMS = {
+        new Histogram("pulsar_publish_latency_ms", "Time from publish until consumed in milliseconds", TopicStats::getPublishLatency),
+        new Histogram("pulsar_event_latency_ms", "Time from event until consumed in milliseconds", TopicStats::getEventLatency)
+    };
+
+    // One less than the powers of two up to about 17 minutes, which are bounds of the buckets of the latency histograms
+    private static final long[] LATENCY_BUCKETS = new long[20];
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKETS[i] = (2L << i) - 1;
+        }
+    }
+
+    private PrometheusTextFormat() {
+    }
+
+    static void write(StringBuilder out, List<ServiceStats> services) {
+        for (Metric metric : TOPIC_METRICS) {
+            header(out, metric.name, metric.type, metric.help);
+            for (ServiceStats service : services) {
+                for (TopicStats topic : service.topics) {
+                    sample(out, metric.name, service.name, topic.getTopic(), null, null, metric.value.applyAsDouble(topic));
+                }
+            }
+        }
+
+        for (Histogram histogram : TOPIC_HISTOGRAMS) {
+            header(out, histogram.name, "histogram", histogram.help);
+            for (ServiceStats service : services) {
+                for (TopicStats topic : service.topics) {
+                    final LatencyHistogram.Snapshot snapshot = histogram.value.apply(topic);
+                    for (long bucket : LATENCY_BUCKETS) {
+                        sample(out, histogram.name + "_bucket", service.name, topic.getTopic(), "le", String.valueOf(bucket),
+                                snapshot.getCountAtOrBelow(bucket));
+                    }
+                    sample(out, histogram.name + "_bucket", service.name, topic.getTopic(), "le", "+Inf", snapshot.getCount());
+                    sample(out, histogram.name + "_sum", service.name, topic.getTopic(), null, null, snapshot.getSum());
+                    sample(out, histogram.name + "_count", service.name, topic.getTopic(), null, null, snapshot.getCount());
+                }
+            }
+        }
+
+        final TreeSet<String> counters = new TreeSet<>();
+        for (ServiceStats service : services) {
+            for (TopicStats topic : service.topics) {
+                counters.addAll(topic.getCounters().keySet());
+            }
+        }
+
+        if (!counters.isEmpty()) {
+            header(out, "pulsar_processor_counter", "counter", "Counters pushed by the processors");
+            for (String counter : counters) {
+                for (ServiceStats service : services) {
+                    for (TopicStats topic : service.topics) {
+                        final Map<String, Long> values = topic.getCounters();
+                        if (values.containsKey(counter)) {
+                            sample(out, "pulsar_processor_counter", service.name, topic.getTopic(), "counter", counter, values.get(counter));
+                        }
+                    }
+                }
+            }
+        }
+
+        header(out, "pulsar_memory_used_bytes", "gauge", "Message bytes held by the producers and consumers");
+        for (ServiceStats service : services) {
+            sample(out, "pulsar_memory_used_bytes", service.name, null, null, null, service.memoryLimiter.getUsed());
+        }
+
+        header(out, "pulsar_memory_limit_bytes", "gauge", "Memory limit for message bytes, zero if there is no limit");
+        for (ServiceStats service : services) {
+            sample(out, "pulsar_memory_limit_bytes", service.name, null, null, null, service.memoryLimiter.getLimit());
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String service, String topic, String label, String labelValue,
+            double value) {
+        out.append(name).append("{service=\"");
+        escape(out, service);
+        if (topic != null) {
+            out.append("\",topic=\"");
+            escape(out, topic);
+        }
+        if (label != null) {
+            out.append("\",").append(label).append("=\"");
+            escape(out, labelValue);
+        }
+        out.append("\"} ");
+
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
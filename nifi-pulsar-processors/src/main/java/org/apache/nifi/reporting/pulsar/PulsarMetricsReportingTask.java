@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.pulsar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.ControllerServiceLookup;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.pulsar.PulsarClientService;
+import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.ReportingContext;
+import org.apache.nifi.ssl.SSLContextService;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+@Tags({"Pulsar", "metrics", "prometheus", "reporting"})
+@CapabilityDescription("Periodically collects the stats of every enabled Pulsar Client Service, i.e. the rates, latencies and "
+        + "queue depths of the producers and consumers of each topic, the counters pushed by the Pulsar processors, and the "
+        + "memory held for messages. The stats are written in the Prometheus text format to a file, e.g. for the textfile "
+        + "collector of the node exporter, and/or served by an HTTP(S) endpoint on this node. Stats are only read from the "
+        + "producers and consumers when the task runs, so the processors are not slowed down by it.")
+public class PulsarMetricsReportingTask extends AbstractReportingTask {
+
+    public static final PropertyDescriptor METRICS_FILE = new PropertyDescriptor.Builder()
+            .name("METRICS_FILE")
+            .displayName("Metrics File")
+            .description("The file to write the metrics to. The file is replaced as a whole each time the task runs, so "
+                    + "readers never see a partially written file.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    public static final PropertyDescriptor METRICS_ENDPOINT_PORT = new PropertyDescriptor.Builder()
+            .name("METRICS_ENDPOINT_PORT")
+            .displayName("Metrics Endpoint Port")
+            .description("The port of an HTTP endpoint that serves the metrics at /metrics. The endpoint serves the metrics "
+                    + "collected by the last run of the task, rather than collecting them for each request.")
+            .required(false)
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    public static final PropertyDescriptor METRICS_ENDPOINT_ADDRESS = new PropertyDescriptor.Builder()
+            .name("METRICS_ENDPOINT_ADDRESS")
+            .displayName("Metrics Endpoint Address")
+            .description("The host name or IP address of the network interface that the HTTP endpoint listens on. By default "
+                    + "only local clients can reach it, use 0.0.0.0 to listen on all of the interfaces of this node.")
+            .required(true)
+            .defaultValue("localhost")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    public static final PropertyDescriptor SSL_CONTEXT_SERVICE = new PropertyDescriptor.Builder()
+            .name("SSL_CONTEXT_SERVICE")
+            .displayName("SSL Context Service")
+            .description("If specified, the HTTP endpoint serves the metrics over HTTPS with the key store of this service. "
+                    + "If the service also has a trust store, clients must authenticate with a certificate that it trusts.")
+            .required(false)
+            .identifiesControllerService(SSLContextService.class)
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES;
+
+    static {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(METRICS_FILE);
+        properties.add(METRICS_ENDPOINT_PORT);
+        properties.add(METRICS_ENDPOINT_ADDRESS);
+        properties.add(SSL_CONTEXT_SERVICE);
+        PROPERTIES = Collections.unmodifiableList(properties);
+    }
+
+    // Reused across runs, as the size of the metrics hardly changes from one run to the next
+    private final StringBuilder buffer = new StringBuilder(8192);
+    private volatile byte[] metrics = new byte[0];
+    private volatile HttpServer server;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+
+        if (!validationContext.getProperty(METRICS_FILE).isSet() && !validationContext.getProperty(METRICS_ENDPOINT_PORT).isSet()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Either the Metrics File or the Metrics Endpoint Port must be specified.").build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void startEndpoint(ConfigurationContext context) throws IOException {
+        if (!context.getProperty(METRICS_ENDPOINT_PORT).isSet()) {
+            return;
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(
+                context.getProperty(METRICS_ENDPOINT_ADDRESS).evaluateAttributeExpressions().getValue(),
+                context.getProperty(METRICS_ENDPOINT_PORT).evaluateAttributeExpressions().asInteger());
+        final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
+
+        final HttpServer httpServer;
+        if (sslContextService == null) {
+            httpServer = HttpServer.create(address, 0);
+        } else {
+            final SSLContextService.ClientAuth clientAuth = sslContextService.isTrustStoreConfigured()
+                    ? SSLContextService.ClientAuth.REQUIRED : SSLContextService.ClientAuth.NONE;
+            final HttpsServer httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContextService.createSSLContext(clientAuth)) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    params.setNeedClientAuth(clientAuth == SSLContextService.ClientAuth.REQUIRED);
+                }
+            });
+            httpServer = httpsServer;
+        }
+
+        httpServer.createContext("/metrics", exchange -> {
+            final byte[] body = metrics;
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+        server = httpServer;
+    }
+
+    /**
+     * @return the address that the HTTP endpoint listens on, or null if it is not running.
+     */
+    InetSocketAddress getEndpointAddress() {
+        final HttpServer httpServer = server;
+        return (httpServer == null) ? null : httpServer.getAddress();
+    }
+
+    @OnStopped
+    public void stopEndpoint() {
+        final HttpServer httpServer = server;
+        if (httpServer != null) {
+            httpServer.stop(0);
+            server = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ReportingContext context) {
+        final ControllerServiceLookup lookup = context.getControllerServiceLookup();
+        final List<PrometheusTextFormat.ServiceStats> services = new ArrayList<>();
+
+        for (String id : lookup.getControllerServiceIdentifiers(PulsarClientService.class)) {
+            if (!lookup.isControllerServiceEnabled(id)) {
+                continue;
+            }
+
+            final PulsarClientService service = (PulsarClientService) lookup.getControllerService(id);
+            services.add(new PrometheusTextFormat.ServiceStats(lookup.getControllerServiceName(id),
+                    service.getMemoryLimiter(), service.getStats().getTopicStats()));
+        }
+
+        final byte[] text;
+        synchronized (buffer) {
+            buffer.setLength(0);
+            PrometheusTextFormat.write(buffer, services);
+            text = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        metrics = text;
+
+        if (context.getProperty(METRICS_FILE).isSet()) {
+            write(Paths.get(context.getProperty(METRICS_FILE).evaluateAttributeExpressions().getValue()), text);
+        }
+    }
+
+    private void write(Path file, byte[] text) {
+        final Path parent = file.toAbsolutePath().getParent();
+        try {
+            final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, text);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            throw new ProcessException("Unable to write the Pulsar metrics to " + file, e);
+        }
+    }
+}
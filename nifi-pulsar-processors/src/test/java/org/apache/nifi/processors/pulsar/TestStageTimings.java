@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
+import org.junit.Test;
+
+public class TestStageTimings {
+
+    @Test
+    public void reportPerTopicTest() {
+        final StageTimings timings = new StageTimings("read", "send");
+        final PulsarClientStats stats = new PulsarClientStats();
+        final ProcessSession session = mock(ProcessSession.class);
+
+        timings.add("topic-a", 0, 100);
+        timings.add("topic-b", 0, 20);
+        timings.add("topic-b", 1, 5);
+        timings.report(session, stats);
+
+        // Each topic is only credited with its own time, while the processor counters add up all topics
+        assertEquals(100, stats.getCounters("topic-a").get("read"));
+        assertEquals(0, stats.getCounters("topic-a").get("send"));
+        assertEquals(20, stats.getCounters("topic-b").get("read"));
+        assertEquals(5, stats.getCounters("topic-b").get("send"));
+        verify(session, times(1)).adjustCounter("read", 100, false);
+        verify(session, times(1)).adjustCounter("read", 20, false);
+        verify(session, times(1)).adjustCounter("send", 5, false);
+    }
+
+    @Test
+    public void reportDeltasTest() {
+        final StageTimings timings = new StageTimings("read");
+        final PulsarClientStats stats = new PulsarClientStats();
+
+        timings.add("topic-a", 0, 100);
+        timings.report(mock(ProcessSession.class), stats);
+
+        // Only the time added since the last report is reported again
+        final ProcessSession session = mock(ProcessSession.class);
+        timings.report(session, stats);
+        verify(session, never()).adjustCounter(anyString(), anyLong(), eq(false));
+
+        timings.add("topic-a", 0, 10);
+        timings.report(session, stats);
+        verify(session, times(1)).adjustCounter("read", 10, false);
+        assertEquals(110, stats.getCounters("topic-a").get("read"));
+        assertEquals(110, timings.getNanos("topic-a", 0));
+    }
+}
@@ -134,7 +134,8 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
             verify(mockClientService.getMockConsumer(), times(batchSize)).receive();
             verify(mockClientService.getMockConsumer(), times(batchSize)).acknowledgeAsync(mockMessage);
         } else {
-            verify(mockClientService.getMockConsumer(), times(batchSize + 1)).receive(0, TimeUnit.SECONDS);
+            // No message is received past a full batch, since it could not be added to the batch
+            verify(mockClientService.getMockConsumer(), times(batchSize)).receive(0, TimeUnit.SECONDS);
             verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
         }
     }
@@ -160,7 +161,7 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
             ff.assertContentEquals(msg + ConsumePulsar.MESSAGE_DEMARCATOR.getDefaultValue());
         }
 
-        verify(mockClientService.getMockConsumer(), times(iterations * 2)).receive(0, TimeUnit.SECONDS);
+        verify(mockClientService.getMockConsumer(), times(iterations)).receive(0, TimeUnit.SECONDS);
 
         // Verify that every message was acknowledged
         if (async) {
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.pubsub.mocks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.stream.io.StreamUtils;
+
+/**
+ * Reads messages that hold a single binary encoded Avro datum, for a schema of string and int fields.
+ */
+public class MockAvroRecordParser extends AbstractControllerService implements RecordReaderFactory {
+    private final Schema avroSchema;
+    private final RecordSchema schema;
+    private final AtomicInteger recordsRead = new AtomicInteger();
+    private volatile int referenceLength;
+
+    public MockAvroRecordParser(final Schema avroSchema) {
+        this.avroSchema = avroSchema;
+        this.schema = toRecordSchema(avroSchema);
+    }
+
+    public static RecordSchema toRecordSchema(final Schema avroSchema) {
+        final List<RecordField> fields = new ArrayList<>();
+        for (Schema.Field field : avroSchema.getFields()) {
+            final RecordFieldType type = (field.schema().getType() == Schema.Type.INT) ? RecordFieldType.INT : RecordFieldType.STRING;
+            fields.add(new RecordField(field.name(), type.getDataType()));
+        }
+        return new SimpleRecordSchema(fields, avroSchema.toString(), "avro", null);
+    }
+
+    public int getRecordsRead() {
+        return recordsRead.get();
+    }
+
+    /**
+     * Makes the parser skip a schema reference of the given length in front of each datum, like a reader whose
+     * Schema Access Strategy uses a content-encoded schema reference.
+     */
+    public void setReferenceLength(int referenceLength) {
+        this.referenceLength = referenceLength;
+    }
+
+    @Override
+    public RecordReader createRecordReader(Map<String, String> variables, InputStream in, ComponentLog logger) throws IOException {
+        StreamUtils.skip(in, referenceLength);
+        final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(in, null);
+        final GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(avroSchema);
+
+        return new RecordReader() {
+
+            @Override
+            public Record nextRecord(boolean coerceTypes, boolean dropUnknown) throws IOException {
+                if (decoder.isEnd()) {
+                    return null;
+                }
+
+                final GenericRecord datum = datumReader.read(null, decoder);
+                final Map<String, Object> values = new HashMap<>();
+                for (Schema.Field field : avroSchema.getFields()) {
+                    final Object value = datum.get(field.name());
+                    values.put(field.name(), (value instanceof CharSequence) ? value.toString() : value);
+                }
+                recordsRead.incrementAndGet();
+                return new MapRecord(schema, values);
+            }
+
+            @Override
+            public RecordSchema getSchema() {
+                return schema;
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.pubsub.mocks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+
+/**
+ * Writes the records to an Avro container file, using the schema the records were read with.
+ */
+public class MockAvroRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+
+    @Override
+    public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(final ComponentLog logger, final RecordSchema schema, final OutputStream out) throws IOException {
+        final Schema avroSchema = new Schema.Parser().parse(schema.getSchemaText().get());
+        final DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(avroSchema));
+        dataFileWriter.create(avroSchema, out);
+
+        return new RecordSetWriter() {
+            private int recordCount = 0;
+
+            @Override
+            public WriteResult write(final RecordSet rs) throws IOException {
+                Record record;
+                while ((record = rs.next()) != null) {
+                    write(record);
+                }
+                return WriteResult.of(recordCount, Collections.emptyMap());
+            }
+
+            @Override
+            public WriteResult write(Record record) throws IOException {
+                final GenericRecord datum = new GenericData.Record(avroSchema);
+                for (Schema.Field field : avroSchema.getFields()) {
+                    datum.put(field.name(), record.getValue(field.name()));
+                }
+                dataFileWriter.append(datum);
+                recordCount++;
+                return WriteResult.of(1, Collections.emptyMap());
+            }
+
+            @Override
+            public String getMimeType() {
+                return "application/avro-binary";
+            }
+
+            @Override
+            public void beginRecordSet() throws IOException {
+            }
+
+            @Override
+            public WriteResult finishRecordSet() throws IOException {
+                dataFileWriter.flush();
+                return (recordCount > 0) ? WriteResult.of(recordCount, Collections.emptyMap()) : WriteResult.EMPTY;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                dataFileWriter.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                dataFileWriter.close();
+            }
+        };
+    }
+}
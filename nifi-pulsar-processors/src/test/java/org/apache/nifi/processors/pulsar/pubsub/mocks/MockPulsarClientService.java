@@ -19,11 +19,15 @@ package org.apache.nifi.processors.pulsar.pubsub.mocks;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.pulsar.PulsarClientService;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
 import org.apache.pulsar.client.api.CompressionType;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.ConsumerBuilder;
@@ -47,6 +51,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 
@@ -78,6 +83,12 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
 
     CompletableFuture<MessageId> future;
 
+    List<String> topics = Collections.emptyList();
+
+    PulsarMemoryLimiter memoryLimiter = PulsarMemoryLimiter.UNLIMITED;
+
+    PulsarClientStats stats = PulsarClientStats.DISABLED;
+
     public MockPulsarClientService() {
         when(mockClient.newProducer()).thenReturn((ProducerBuilder<byte[]>) mockProducerBuilder);
         when(mockClient.newConsumer()).thenReturn((ConsumerBuilder<byte[]>) mockConsumerBuilder);
@@ -90,6 +101,7 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
         when(mockProducerBuilder.compressionType(any(CompressionType.class))).thenReturn(mockProducerBuilder);
         when(mockProducerBuilder.maxPendingMessages(anyInt())).thenReturn(mockProducerBuilder);
         when(mockProducerBuilder.messageRoutingMode(any(MessageRoutingMode.class))).thenReturn(mockProducerBuilder);
+        when(mockProducerBuilder.producerName(anyString())).thenReturn(mockProducerBuilder);
 
         when(mockConsumerBuilder.topic(any(String[].class))).thenReturn(mockConsumerBuilder);
         when(mockConsumerBuilder.topic(anyString())).thenReturn(mockConsumerBuilder);
@@ -112,6 +124,7 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
              }).when(mockConsumer).receive(0, TimeUnit.SECONDS);
 
             when(mockProducerBuilder.create()).thenReturn(mockProducer);
+            when(mockProducerBuilder.createAsync()).thenReturn(CompletableFuture.completedFuture(mockProducer));
             defineDefaultProducerBehavior();
         } catch (PulsarClientException e) {
            e.printStackTrace();
@@ -167,6 +180,11 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
             when(mockProducer.isConnected()).thenReturn(true);
             when(mockProducer.newMessage()).thenReturn(mockTypedMessageBuilder);
             when(mockTypedMessageBuilder.value((T) any(byte[].class))).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.sequenceId(anyLong())).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.properties(anyMap())).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.key(anyString())).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.eventTime(anyLong())).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.send()).thenReturn(mockMessageId);
             when(mockTypedMessageBuilder.sendAsync()).thenReturn(future);
 
         } catch (PulsarClientException e) {
@@ -195,6 +213,33 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
       return mockClient;
     }
 
+    public void setTopics(List<String> topics) {
+      this.topics = topics;
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getTopics(String namespace) {
+      return CompletableFuture.completedFuture(topics);
+    }
+
+    public void setMemoryLimiter(PulsarMemoryLimiter memoryLimiter) {
+      this.memoryLimiter = memoryLimiter;
+    }
+
+    @Override
+    public PulsarMemoryLimiter getMemoryLimiter() {
+      return memoryLimiter;
+    }
+
+    public void setStats(PulsarClientStats stats) {
+      this.stats = stats;
+    }
+
+    @Override
+    public PulsarClientStats getStats() {
+      return stats;
+    }
+
     @Override
     public String getPulsarBrokerRootURL() {
        return "pulsar://mocked:6650";
@@ -19,7 +19,9 @@ package org.apache.nifi.processors.pulsar.pubsub.mocks;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.nifi.controller.AbstractControllerService;
@@ -36,6 +38,7 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
     private final String header;
     private final int failAfterN;
     private final boolean quoteValues;
+    private final boolean buffered;
 
     public MockRecordWriter(final String header) {
         this(header, true, -1);
@@ -46,9 +49,18 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
     }
 
     public MockRecordWriter(final String header, final boolean quoteValues, final int failAfterN) {
+        this(header, quoteValues, failAfterN, false);
+    }
+
+    /**
+     * @param buffered - If true, the records are only written once the record set is finished, like writers that
+     * hold on to the records they are given.
+     */
+    public MockRecordWriter(final String header, final boolean quoteValues, final int failAfterN, final boolean buffered) {
         this.header = header;
         this.quoteValues = quoteValues;
         this.failAfterN = failAfterN;
+        this.buffered = buffered;
     }
 
     @Override
@@ -61,6 +73,7 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
         return new RecordSetWriter() {
 
             private int recordCount = 0;
+            private final List<Record> pending = new ArrayList<>();
 
             @Override
             public void flush() throws IOException {
@@ -114,6 +127,15 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
                     throw new IOException("Unit Test intentionally throwing IOException after " + failAfterN + " records were written");
                 }
 
+                if (buffered) {
+                    pending.add(record);
+                } else {
+                    writeRecord(record);
+                }
+                return WriteResult.of(1, Collections.emptyMap());
+            }
+
+            private void writeRecord(Record record) throws IOException {
                 int i = 0;
                 final int numCols = 2;
 
@@ -134,8 +156,6 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
                     }
                 }
                 out.write("\n".getBytes());
-
-                return WriteResult.of(1, Collections.emptyMap());
             }
 
             @Override
@@ -148,6 +168,10 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
 
             @Override
             public WriteResult finishRecordSet() throws IOException {
+                for (final Record record : pending) {
+                    writeRecord(record);
+                }
+                pending.clear();
                 return (recordCount > 0) ? WriteResult.of(1, Collections.emptyMap()) : WriteResult.EMPTY;
             }
         };
@@ -17,19 +17,39 @@
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsar;
+import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
 import org.apache.nifi.processors.pulsar.pubsub.TestConsumePulsar;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.MessageImpl;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+
+import io.netty.buffer.Unpooled;
 
 public class TestSyncConsumePulsar extends TestConsumePulsar {
 
@@ -88,6 +108,110 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
         verify(mockClientService.getMockConsumer(), atLeast(1)).acknowledgeCumulative(mockMessage);
     }
 
+    @Test
+    public void memoryLimitTest() throws PulsarClientException {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+        mockClientService.setMemoryLimiter(limiter);
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(mockMessage).thenReturn(null);
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+
+        // Nothing is received while the memory is held by others
+        limiter.reserve(100);
+        runner.run();
+        verify(mockClientService.getMockConsumer(), never()).receive(0, TimeUnit.SECONDS);
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 0);
+
+        // The memory of the messages received is released once they have been written
+        limiter.release(100);
+        runner.run();
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 1);
+        assertEquals(0, limiter.getUsed());
+    }
+
+    @Test
+    public void memoryLimitPausesConsumerTest() throws PulsarClientException {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(10);
+        mockClientService.setMemoryLimiter(limiter);
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(mockMessage).thenReturn(null);
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.run();
+
+        // The message exhausts the limit, so the consumer stops prefetching until the message is written
+        final InOrder inOrder = inOrder(mockClientService.getMockConsumer());
+        inOrder.verify(mockClientService.getMockConsumer()).pause();
+        inOrder.verify(mockClientService.getMockConsumer()).resume();
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 1);
+        assertEquals(0, limiter.getUsed());
+    }
+
+    @Test
+    public void latencyTest() throws PulsarClientException {
+        final PulsarClientStats stats = new PulsarClientStats();
+        mockClientService.setStats(stats);
+        when(mockClientService.getMockConsumer().getTopic()).thenReturn("foo");
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(mockMessage).thenReturn(null);
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+
+        final long now = System.currentTimeMillis();
+        when(mockMessage.getPublishTime()).thenReturn(now - 1000);
+        when(mockMessage.getEventTime()).thenReturn(now - 5000);
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.RECORD_LATENCY, "true");
+        runner.run();
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 1);
+
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).get(0);
+        final long publishLatency = Long.parseLong(flowFile.getAttribute("latency.publish.max"));
+        final long eventLatency = Long.parseLong(flowFile.getAttribute("latency.event.max"));
+        assertTrue(publishLatency >= 1000 && publishLatency < eventLatency);
+        assertTrue(eventLatency >= 5000);
+        flowFile.assertAttributeEquals("latency.publish.p50", String.valueOf(publishLatency));
+        flowFile.assertAttributeEquals("latency.publish.p99", String.valueOf(publishLatency));
+
+        assertEquals(1L, runner.getCounterValue(ConsumePulsar.LATENCY_MESSAGES_COUNTER).longValue());
+        assertEquals(publishLatency, runner.getCounterValue(ConsumePulsar.LATENCY_TOTAL_COUNTER).longValue());
+        assertEquals(1, stats.getPublishLatency("foo").getCount());
+        assertEquals(publishLatency, stats.getPublishLatency("foo").getMax());
+        assertEquals(1, stats.getEventLatency("foo").getCount());
+    }
+
+    @Test
+    public void stageTimingsTest() throws PulsarClientException {
+        final PulsarClientStats stats = new PulsarClientStats();
+        mockClientService.setStats(stats);
+        when(mockClientService.getMockConsumer().getTopic()).thenReturn("foo");
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(mockMessage).thenReturn(null);
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.run();
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 1);
+
+        // The commit of a trigger is timed after its timings were reported
+        final long receiveNanos = runner.getCounterValue(PulsarClientStats.CONSUME_RECEIVE_NANOS);
+        assertTrue(receiveNanos > 0);
+        assertTrue(runner.getCounterValue(PulsarClientStats.CONSUME_WRITE_NANOS) > 0);
+        assertTrue(runner.getCounterValue(PulsarClientStats.CONSUME_ACK_NANOS) > 0);
+        assertEquals(Long.valueOf(receiveNanos), stats.getTopicStats().get(0).getCounters().get(PulsarClientStats.CONSUME_RECEIVE_NANOS));
+    }
+
     @Test
     public void singleMessageTest() throws PulsarClientException {
         this.sendMessages("Mocked Message", "foo", "bar", false, 1);
@@ -123,4 +247,398 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
         // Verify that the consumer was closed
         verify(mockClientService.getMockConsumer(), times(1)).close();
     }
+
+    @Test
+    public void reassembleChunksTest() throws PulsarClientException {
+        final Message<byte[]> first = mockChunk("abc", 0, 3, "Mocked ");
+        final Message<byte[]> second = mockChunk("abc", 1, 3, "Chunked ");
+        final Message<byte[]> third = mockChunk("abc", 2, 3, "Message");
+
+        // Once the first chunk is received, the processor waits for the remaining chunks
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(first).thenReturn(null);
+        when(mockClientService.getMockConsumer().receive(5000, TimeUnit.MILLISECONDS)).thenReturn(second).thenReturn(third);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.REASSEMBLE_CHUNKS, "true");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("Mocked Chunked Message");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.CHUNK_COUNT, "3");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(first.getMessageId());
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(second.getMessageId());
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(third.getMessageId());
+    }
+
+    @Test
+    public void missingChunkTest() throws PulsarClientException {
+        final Message<byte[]> first = mockChunk("abc", 0, 3, "Mocked ");
+        final Message<byte[]> third = mockChunk("abc", 2, 3, "Message");
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(first).thenReturn(null);
+        when(mockClientService.getMockConsumer().receive(5000, TimeUnit.MILLISECONDS)).thenReturn(third);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.REASSEMBLE_CHUNKS, "true");
+        runner.run();
+
+        // Each run of consecutive chunks is routed to failure rather than redelivered forever
+        assertEquals(0, runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size());
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_CHUNK_FAILURE);
+        assertEquals(2, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("Mocked ");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.CHUNK_ID_ATTRIBUTE, "abc");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.CHUNK_INDEX_ATTRIBUTE, "0");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.CHUNK_COUNT, "1");
+        flowFiles.get(1).assertContentEquals("Message");
+        flowFiles.get(1).assertAttributeEquals(ConsumePulsar.CHUNK_INDEX_ATTRIBUTE, "2");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(first.getMessageId());
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(third.getMessageId());
+        verify(mockClientService.getMockConsumer(), times(0)).negativeAcknowledge(any(MessageId.class));
+    }
+
+    @Test
+    public void orphanChunkTest() throws PulsarClientException {
+        // The rest of a group whose first chunk was already dropped
+        final Message<byte[]> orphan = mockChunk("abc", 1, 3, "Chunked ");
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(orphan).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.REASSEMBLE_CHUNKS, "true");
+        runner.run();
+
+        assertEquals(0, runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size());
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_CHUNK_FAILURE);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("Chunked ");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.CHUNK_INDEX_ATTRIBUTE, "1");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(orphan.getMessageId());
+        verify(mockClientService.getMockConsumer(), times(0)).negativeAcknowledge(any(Message.class));
+    }
+
+    @Test
+    public void invalidChunkCountTest() throws PulsarClientException {
+        // A chunk count that cannot be read must not complete the FlowFile after its first chunk
+        final Message<byte[]> first = mockChunk("abc", 0, 3, "Mocked ");
+        when(first.getProperty(PublishPulsar.CHUNK_COUNT)).thenReturn("three");
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(first).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.REASSEMBLE_CHUNKS, "true");
+        runner.run();
+
+        assertEquals(0, runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size());
+        assertEquals(1, runner.getFlowFilesForRelationship(ConsumePulsar.REL_CHUNK_FAILURE).size());
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledge(first.getMessageId());
+    }
+
+    @Test
+    public void reassembleSharedSubscriptionTest() {
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.REASSEMBLE_CHUNKS, "true");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Shared");
+        runner.assertNotValid();
+
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Failover");
+        runner.assertValid();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message<byte[]> mockChunk(String chunkId, int index, int count, String content) {
+        final Message<byte[]> chunk = mock(Message.class);
+        final MessageId messageId = mock(MessageId.class);
+        when(chunk.getMessageId()).thenReturn(messageId);
+        when(chunk.getValue()).thenReturn(content.getBytes());
+        when(chunk.getProperty(PublishPulsar.CHUNK_ID)).thenReturn(chunkId);
+        when(chunk.getProperty(PublishPulsar.CHUNK_INDEX)).thenReturn(String.valueOf(index));
+        when(chunk.getProperty(PublishPulsar.CHUNK_COUNT)).thenReturn(String.valueOf(count));
+        return chunk;
+    }
+
+    /*
+     * Verify that the payloads of messages received by the Pulsar client are written straight from their buffers.
+     */
+    @Test
+    public void messageBufferTest() throws PulsarClientException {
+        final Message<byte[]> first = new MessageImpl<byte[]>("foo", "1:1", Collections.emptyMap(),
+            Unpooled.wrappedBuffer("Mocked Message".getBytes(StandardCharsets.UTF_8)), Schema.BYTES);
+        final Message<byte[]> second = new MessageImpl<byte[]>("foo", "1:2", Collections.emptyMap(),
+            Unpooled.wrappedBuffer("xxAnother Messagexx".getBytes(StandardCharsets.UTF_8), 2, 15), Schema.BYTES);
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(first).thenReturn(second).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("Mocked Message\nAnother Message\n");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "2");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(second);
+    }
+
+    /*
+     * Verify that the batch is closed once the message payloads reach the max batch size.
+     */
+    @Test
+    public void maxBatchSizeTest() throws PulsarClientException {
+        when(mockMessage.getValue()).thenReturn("0123456789".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_MAX_SIZE, "25 B");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "3");
+
+        verify(mockClientService.getMockConsumer(), times(3)).receive(0, TimeUnit.SECONDS);
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+    }
+
+    /*
+     * Verify that the consumer waits for messages when a max batch wait is specified.
+     */
+    @Test
+    public void maxBatchWaitTest() throws PulsarClientException {
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        when(mockClientService.getMockConsumer().receive(anyInt(), Matchers.eq(TimeUnit.MILLISECONDS)))
+            .thenReturn(mockMessage).thenReturn(mockMessage).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_MAX_WAIT, "10 sec");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "2");
+
+        verify(mockClientService.getMockConsumer(), times(3)).receive(anyInt(), Matchers.eq(TimeUnit.MILLISECONDS));
+        verify(mockClientService.getMockConsumer(), never()).receive(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void rollingMaxCountTest() throws PulsarClientException {
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, "2");
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_COUNT, "5");
+
+        // Nothing is transferred or acknowledged until the rolling FlowFile holds 5 messages
+        runner.run(2, false);
+        runner.assertTransferCount(ConsumePulsar.REL_SUCCESS, 0);
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulative(mockMessage);
+
+        runner.run(1, false, false);
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "6");
+        flowFiles.get(0).assertContentEquals(String.join("\n", Collections.nCopies(6, "Mocked Message")) + "\n");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+    }
+
+    @Test
+    public void rollingConcurrentTasksTest() throws PulsarClientException {
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, "2");
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_COUNT, "5");
+        runner.setThreadCount(2);
+
+        // Concurrent triggers may append messages out of order, so none of them is acknowledged cumulatively
+        runner.run(3, true);
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+        runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "6");
+
+        verify(mockClientService.getMockConsumer(), times(6)).acknowledge(mockMessage.getMessageId());
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulative(mockMessage);
+    }
+
+    @Test
+    public void rollingFlushOnStopTest() throws PulsarClientException {
+        when(mockMessage.getValue()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Shared");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, "2");
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_SIZE, "1 MB");
+
+        // The open FlowFile is transferred when the processor is stopped
+        runner.run(3, true);
+        runner.assertAllFlowFilesTransferred(ConsumePulsar.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "6");
+
+        verify(mockClientService.getMockConsumer(), times(6)).acknowledge(mockMessage.getMessageId());
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulative(mockMessage);
+    }
+
+    @Test
+    public void rollingMaxAgeAckTimeoutTest() {
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.ACK_TIMEOUT, "30 sec");
+
+        // The messages of the rolling FlowFile would be redelivered before it is transferred
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_AGE, "30 sec");
+        runner.assertNotValid();
+
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_AGE, "20 sec");
+        runner.assertValid();
+    }
+
+    @Test
+    public void rollingAsyncInvalidTest() {
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.ASYNC_ENABLED, "true");
+        runner.setProperty(ConsumePulsar.ROLLING_MAX_AGE, "1 min");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void routeOnPropertiesTest() throws PulsarClientException {
+        final Message<byte[]> eu1 = mockRoutedMessage("eu-1", "eu", null);
+        final Message<byte[]> us = mockRoutedMessage("us-1", "us", null);
+        final Message<byte[]> eu2 = mockRoutedMessage("eu-2", "eu", null);
+        final Message<byte[]> keyed = mockRoutedMessage("vip-1", "us", "vip");
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+            .thenReturn(eu1).thenReturn(us).thenReturn(eu2).thenReturn(keyed).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty("europe", "${region:equals('eu')}");
+        runner.setProperty("vip", "${message.key:equals('vip')}");
+        runner.run();
+
+        final Relationship europe = new Relationship.Builder().name("europe").build();
+        final Relationship vip = new Relationship.Builder().name("vip").build();
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(europe);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("eu-1\neu-2\n");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "2");
+
+        flowFiles = runner.getFlowFilesForRelationship(vip);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("vip-1\n");
+
+        // Messages that match none of the routes go to success
+        flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("us-1\n");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(keyed);
+    }
+
+    @Test
+    public void groupByPropertyTest() throws PulsarClientException {
+        final Message<byte[]> eu1 = mockRoutedMessage("eu-1", "eu", null);
+        final Message<byte[]> us1 = mockRoutedMessage("us-1", "us", null);
+        final Message<byte[]> eu2 = mockRoutedMessage("eu-2", "eu", null);
+        final Message<byte[]> us2 = mockRoutedMessage("us-2", "us", null);
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+            .thenReturn(eu1).thenReturn(us1).thenReturn(eu2).thenReturn(us2).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.GROUP_BY, ConsumePulsar.GROUP_BY_MESSAGE_PROPERTY.getValue());
+        runner.assertNotValid();
+
+        runner.setProperty(ConsumePulsar.GROUP_BY_PROPERTY, "region");
+        runner.run();
+
+        // A FlowFile per region, in the order the regions were first seen
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(2, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("eu-1\neu-2\n");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.PROPERTY_ATTRIBUTE_PREFIX + "region", "eu");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "2");
+        flowFiles.get(1).assertContentEquals("us-1\nus-2\n");
+        flowFiles.get(1).assertAttributeEquals(ConsumePulsar.PROPERTY_ATTRIBUTE_PREFIX + "region", "us");
+
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(us2);
+    }
+
+    @Test
+    public void groupByKeyTest() throws PulsarClientException {
+        final Message<byte[]> a1 = mockRoutedMessage("a-1", "eu", "a");
+        final Message<byte[]> none = mockRoutedMessage("none", "eu", null);
+        final Message<byte[]> a2 = mockRoutedMessage("a-2", "eu", "a");
+
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+            .thenReturn(a1).thenReturn(none).thenReturn(a2).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.GROUP_BY, ConsumePulsar.GROUP_BY_KEY.getValue());
+        runner.run();
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(2, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("a-1\na-2\n");
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.KEY_ATTRIBUTE, "a");
+
+        // Messages without a key are grouped together, without the attribute
+        flowFiles.get(1).assertContentEquals("none\n");
+        flowFiles.get(1).assertAttributeNotExists(ConsumePulsar.KEY_ATTRIBUTE);
+    }
+
+    private static Message<byte[]> mockRoutedMessage(String value, String region, String key) {
+        @SuppressWarnings("unchecked")
+        final Message<byte[]> msg = mock(Message.class);
+        when(msg.getValue()).thenReturn(value.getBytes());
+        when(msg.getProperties()).thenReturn(Collections.singletonMap("region", region));
+        when(msg.getProperty("region")).thenReturn(region);
+        when(msg.hasKey()).thenReturn(key != null);
+        when(msg.getKey()).thenReturn(key);
+        return msg;
+    }
 }
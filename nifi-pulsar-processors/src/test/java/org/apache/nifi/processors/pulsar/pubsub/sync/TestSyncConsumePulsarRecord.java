@@ -16,19 +16,43 @@
  */
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsarRecord;
 import org.apache.nifi.processors.pulsar.pubsub.TestConsumePulsarRecord;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockAvroRecordParser;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockAvroRecordWriter;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockRecordWriter;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.impl.MessageIdImpl;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.stubbing.OngoingStubbing;
 
 import static org.junit.Assert.assertEquals;
 
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
 
@@ -141,4 +165,260 @@ public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
         String flowFileContents = new String(runner.getContentAsByteArray(results.get(0)));
         assertEquals(expected.toString(), flowFileContents);
     }
+
+    /*
+     * Verify that the batch is closed once the message payloads reach the max batch size.
+     */
+    @Test
+    public void maxBatchSizeTest() throws PulsarClientException {
+       when(mockMessage.getValue()).thenReturn(MOCKED_MSG.getBytes());
+       mockClientService.setMockMessage(mockMessage);
+
+       runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+       runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+       runner.setProperty(ConsumePulsarRecord.CONSUMER_BATCH_MAX_SIZE, (MOCKED_MSG.length() * 2) + " B");
+       runner.run();
+       runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_SUCCESS);
+
+       List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+       assertEquals(1, successFlowFiles.size());
+
+       // The batch is closed after the second message, without receiving a third one
+       verify(mockClientService.getMockConsumer(), times(2)).receive(0, TimeUnit.SECONDS);
+       verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+    }
+
+    @Test
+    public void avroPassthroughTest() throws Exception {
+        final MockAvroRecordParser parser = useAvro();
+        runner.setProperty(ConsumePulsarRecord.AVRO_PASSTHROUGH, "true");
+
+        final List<GenericRecord> records = consumeAvro();
+        assertEquals(3, records.size());
+        assertEquals("Mocked", records.get(2).get("name").toString());
+        assertEquals(7, records.get(2).get("age"));
+
+        // The datums were copied without being decoded
+        assertEquals(0, parser.getRecordsRead());
+    }
+
+    @Test
+    public void avroPassthroughSchemaReferenceTest() throws Exception {
+        final MockAvroRecordParser parser = useAvro();
+        parser.setReferenceLength(5);
+        runner.setProperty(ConsumePulsarRecord.AVRO_PASSTHROUGH, "true");
+
+        // The schema reference in front of each datum must not be copied into the container file
+        final List<GenericRecord> records = consumeAvro(new byte[] {0, 0, 0, 0, 42});
+        assertEquals(3, records.size());
+        assertEquals("Mocked", records.get(2).get("name").toString());
+        assertEquals(7, records.get(2).get("age"));
+        assertEquals(3, parser.getRecordsRead());
+    }
+
+    @Test
+    public void avroPassthroughDisabledTest() throws Exception {
+        final MockAvroRecordParser parser = useAvro();
+
+        final List<GenericRecord> records = consumeAvro();
+        assertEquals(3, records.size());
+        assertEquals("Mocked", records.get(2).get("name").toString());
+        assertEquals(7, records.get(2).get("age"));
+        assertEquals(3, parser.getRecordsRead());
+    }
+
+    @Test
+    public void emptyRouteTest() throws PulsarClientException {
+       final Message<byte[]> vip = mockMessage("Alice, 1");
+       when(vip.hasKey()).thenReturn(true);
+       when(vip.getKey()).thenReturn("vip");
+       final Message<byte[]> bad = mockMessage(BAD_MSG);
+
+       when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(vip).thenReturn(bad).thenReturn(null);
+
+       runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+       runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+       runner.setProperty("vip", "${message.key:equals('vip')}");
+       runner.run();
+
+       // A route without any records that could be written does not drop the FlowFiles of the other routes
+       List<MockFlowFile> vipFlowFiles = runner.getFlowFilesForRelationship(new Relationship.Builder().name("vip").build());
+       assertEquals(1, vipFlowFiles.size());
+       vipFlowFiles.get(0).assertContentEquals("\"Alice\",\"1\"\n");
+       runner.assertTransferCount(ConsumePulsarRecord.REL_SUCCESS, 0);
+       runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_PARSE_FAILURE).get(0).assertContentEquals(BAD_MSG);
+
+       // The messages of all routes are acknowledged once
+       verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(Matchers.any(Message.class));
+       verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(bad);
+    }
+
+    @Test
+    public void singleRecordReaderTest() throws PulsarClientException {
+       final Message<byte[]> first = mockMessage("Alice, 1");
+       final Message<byte[]> bad = mockMessage(BAD_MSG);
+       final Message<byte[]> last = mockMessage("Carol, 3");
+
+       when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+           .thenReturn(first).thenReturn(bad).thenReturn(mockMessage("Bob, 2")).thenReturn(last).thenReturn(null);
+
+       runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+       runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+       runner.setProperty(ConsumePulsarRecord.SINGLE_RECORD_READER, "true");
+       runner.run();
+
+       // The malformed message is routed on its own, and the records on either side of it are kept
+       List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+       assertEquals(1, successFlowFiles.size());
+       successFlowFiles.get(0).assertContentEquals("\"Alice\",\"1\"\n\"Bob\",\"2\"\n\"Carol\",\"3\"\n");
+
+       List<MockFlowFile> failureFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_PARSE_FAILURE);
+       assertEquals(1, failureFlowFiles.size());
+       failureFlowFiles.get(0).assertContentEquals(BAD_MSG);
+
+       verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(last);
+    }
+
+    @Test
+    public void parallelDecodeTest() throws PulsarClientException {
+       final StringBuilder expected = new StringBuilder();
+       final List<Message<byte[]>> messages = new ArrayList<>();
+
+       for (int i = 0; i < 50; i++) {
+          if (i == 17) {
+             messages.add(mockMessage(BAD_MSG));
+             continue;
+          }
+          messages.add(mockMessage("name" + i + ", " + i));
+          expected.append("\"name").append(i).append("\",\"").append(i).append("\"\n");
+       }
+
+       OngoingStubbing<Message<byte[]>> stubbing = when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS));
+       for (Message<byte[]> msg : messages) {
+          stubbing = stubbing.thenReturn(msg);
+       }
+       stubbing.thenReturn(null);
+
+       runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+       runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+       runner.setProperty(ConsumePulsarRecord.DECODE_THREADS, "4");
+       runner.run();
+
+       // The records are written in the order the messages were received
+       List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+       assertEquals(1, successFlowFiles.size());
+       successFlowFiles.get(0).assertContentEquals(expected.toString());
+
+       List<MockFlowFile> failureFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_PARSE_FAILURE);
+       assertEquals(1, failureFlowFiles.size());
+       failureFlowFiles.get(0).assertContentEquals(BAD_MSG);
+    }
+
+    @Test
+    public void addMetadataFieldsTest() throws PulsarClientException {
+       consumeWithMetadataFields();
+    }
+
+    @Test
+    public void addMetadataFieldsBufferedTest() throws PulsarClientException, InitializationException {
+       // Writers that hold on to the records until the record set is finished still write every record as it was
+       final MockRecordWriter writer = new MockRecordWriter("name, age", true, -1, true);
+       runner.addControllerService("buffered-writer", writer);
+       runner.enableControllerService(writer);
+       runner.setProperty(ConsumePulsarRecord.RECORD_WRITER, "buffered-writer");
+
+       consumeWithMetadataFields();
+    }
+
+    private void consumeWithMetadataFields() throws PulsarClientException {
+       final Message<byte[]> first = mockMessage("Alice, 1");
+       when(first.hasKey()).thenReturn(true);
+       when(first.getKey()).thenReturn("k1");
+       when(first.getTopicName()).thenReturn(DEFAULT_TOPIC);
+       when(first.getMessageId()).thenReturn(new MessageIdImpl(1, 2, 0));
+       when(first.getPublishTime()).thenReturn(1000L);
+
+       final Message<byte[]> second = mockMessage("Bob, 2");
+       when(second.getTopicName()).thenReturn(DEFAULT_TOPIC);
+       when(second.getMessageId()).thenReturn(new MessageIdImpl(1, 3, 0));
+       when(second.getPublishTime()).thenReturn(2000L);
+       when(second.getEventTime()).thenReturn(1500L);
+
+       when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+           .thenReturn(first).thenReturn(second).thenReturn(null);
+
+       runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+       runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+       runner.setProperty(ConsumePulsarRecord.ADD_METADATA_FIELDS, "true");
+       runner.run();
+
+       List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+       assertEquals(1, successFlowFiles.size());
+
+       // The metadata fields follow the fields of the record, the event time is null when the message has none
+       successFlowFiles.get(0).assertContentEquals(
+           "\"Alice\",\"1\"\"k1\"\"" + DEFAULT_TOPIC + "\"\"1:2:0\"\"1000\"\"\"\"{}\"\n"
+           + "\"Bob\",\"2\"\"\"\"" + DEFAULT_TOPIC + "\"\"1:3:0\"\"2000\"\"1500\"\"{}\"\n");
+    }
+
+    private static Message<byte[]> mockMessage(String value) {
+       @SuppressWarnings("unchecked")
+       final Message<byte[]> msg = mock(Message.class);
+       when(msg.getValue()).thenReturn(value.getBytes());
+       return msg;
+    }
+
+    private static final Schema AVRO_SCHEMA = SchemaBuilder.record("person").fields()
+            .requiredString("name").requiredInt("age").endRecord();
+
+    private MockAvroRecordParser useAvro() throws InitializationException {
+        final MockAvroRecordParser parser = new MockAvroRecordParser(AVRO_SCHEMA);
+        runner.addControllerService("avro-reader", parser);
+        runner.enableControllerService(parser);
+
+        final MockAvroRecordWriter writer = new MockAvroRecordWriter();
+        runner.addControllerService("avro-writer", writer);
+        runner.enableControllerService(writer);
+
+        runner.setProperty(ConsumePulsarRecord.RECORD_READER, "avro-reader");
+        runner.setProperty(ConsumePulsarRecord.RECORD_WRITER, "avro-writer");
+        return parser;
+    }
+
+    private List<GenericRecord> consumeAvro() throws IOException {
+        return consumeAvro(new byte[0]);
+    }
+
+    private List<GenericRecord> consumeAvro(byte[] schemaReference) throws IOException {
+        final GenericRecord datum = new GenericData.Record(AVRO_SCHEMA);
+        datum.put("name", "Mocked");
+        datum.put("age", 7);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(schemaReference);
+        final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+        new GenericDatumWriter<GenericRecord>(AVRO_SCHEMA).write(datum, encoder);
+        encoder.flush();
+
+        when(mockMessage.getValue()).thenReturn(baos.toByteArray());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+        runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+        runner.setProperty(ConsumePulsarRecord.CONSUMER_BATCH_SIZE, 3 + "");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_SUCCESS);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsarRecord.MSG_COUNT, "3");
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+
+        final List<GenericRecord> records = new ArrayList<>();
+        try (DataFileStream<GenericRecord> in = new DataFileStream<>(new ByteArrayInputStream(runner.getContentAsByteArray(flowFiles.get(0))),
+                new GenericDatumReader<GenericRecord>())) {
+            in.forEach(records::add);
+        }
+        return records;
+    }
 }
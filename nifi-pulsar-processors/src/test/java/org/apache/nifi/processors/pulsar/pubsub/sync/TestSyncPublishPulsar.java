@@ -16,20 +16,37 @@
  */
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
 import org.apache.nifi.processors.pulsar.pubsub.TestPublishPulsar;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
+import org.apache.nifi.pulsar.stats.TopicStats;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 
@@ -145,4 +162,264 @@ public class TestSyncPublishPulsar extends TestPublishPulsar {
         runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
         verify(mockClientService.getMockProducer(), times(20)).send(content.getBytes());
     }
+
+    @Test
+    public void deduplicationTest() throws UnsupportedEncodingException, PulsarClientException {
+        final String content = "some content";
+        final String demarcator = "\n";
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, demarcator);
+        runner.setProperty(PublishPulsar.DEDUPLICATION_ENABLED, Boolean.TRUE.toString());
+
+        runner.enqueue((content + demarcator + content).getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        final MockFlowFile outFile = runner.getFlowFilesForRelationship(PublishPulsar.REL_SUCCESS).get(0);
+        final String uuid = outFile.getAttribute(CoreAttributes.UUID.key());
+
+        // Verify that the producer name is stable, so that the client continues from the last sequence id of the producer
+        verify(mockClientService.getMockProducerBuilder(), times(1)).producerName(startsWith(runner.getProcessor().getIdentifier()));
+        verify(mockClientService.getMockTypedMessageBuilder(), never()).sequenceId(anyLong());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+        verify(mockClientService.getMockProducer(), times(0)).send(content.getBytes());
+
+        // Each message is identified by the FlowFile and its offset, for consumers to discard the messages of a retry
+        for (int offset = 0; offset < 2; offset++) {
+            final Map<String, String> expected = new HashMap<>();
+            expected.put(PublishPulsar.FLOWFILE_UUID_PROPERTY, uuid);
+            expected.put(PublishPulsar.MESSAGE_OFFSET_PROPERTY, String.valueOf(offset));
+            verify(mockClientService.getMockTypedMessageBuilder(), times(1)).properties(expected);
+        }
+    }
+
+    @Test
+    public void deduplicationRetryTest() throws UnsupportedEncodingException, PulsarClientException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.DEDUPLICATION_ENABLED, Boolean.TRUE.toString());
+
+        // A FlowFile that is retried after newer FlowFiles were sent goes through the same producer, which assigns
+        // its messages a greater sequence id
+        runner.enqueue("newer".getBytes("UTF-8"));
+        runner.run(1, false);
+        runner.enqueue("retried".getBytes("UTF-8"));
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 2);
+
+        verify(mockClientService.getMockProducerBuilder(), times(1)).producerName(startsWith(runner.getProcessor().getIdentifier()));
+        verify(mockClientService.getMockTypedMessageBuilder(), never()).sequenceId(anyLong());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+    }
+
+    @Test
+    public void attributesAsPropertiesTest() throws UnsupportedEncodingException, PulsarClientException {
+        final String demarcator = "\n";
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, demarcator);
+        runner.setProperty(PublishPulsar.ATTRIBUTES_AS_PROPERTIES, "order\\..*");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("order.id", "42");
+        attributes.put("order.region", "eu");
+        attributes.put("customer", "acme");
+
+        runner.enqueue(("first" + demarcator + "second").getBytes("UTF-8"), attributes);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        // Only the matching attributes are sent, with every message of the FlowFile
+        final Map<String, String> expected = new HashMap<>();
+        expected.put("order.id", "42");
+        expected.put("order.region", "eu");
+
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).properties(expected);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+        verify(mockClientService.getMockProducer(), times(0)).send(Matchers.any(byte[].class));
+    }
+
+    @Test
+    public void pendingProducerTest() throws UnsupportedEncodingException, PulsarClientException {
+        final CompletableFuture<Producer<byte[]>> pending = new CompletableFuture<>();
+        when(mockClientService.getMockProducerBuilder().createAsync()).thenReturn(pending);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run(1, false, true);
+
+        // The FlowFile is put back on the queue, rather than blocking until the producer is created
+        runner.assertQueueNotEmpty();
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 0);
+        runner.assertTransferCount(PublishPulsar.REL_FAILURE, 0);
+
+        pending.complete(mockClientService.getMockProducer());
+        runner.clearTransferState();
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        // The producer is only created once
+        verify(mockClientService.getMockProducerBuilder(), times(1)).createAsync();
+    }
+
+    @Test
+    public void pendingProducerFailureTest() throws UnsupportedEncodingException, PulsarClientException {
+        final CompletableFuture<Producer<byte[]>> pending = new CompletableFuture<>();
+        when(mockClientService.getMockProducerBuilder().createAsync()).thenReturn(pending);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run(1, false, true);
+        runner.assertQueueNotEmpty();
+
+        // Once the creation fails, the FlowFile is routed to failure rather than waiting on a new creation forever
+        pending.completeExceptionally(new PulsarClientException("unavailable"));
+        runner.clearTransferState();
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_FAILURE);
+        verify(mockClientService.getMockProducerBuilder(), times(1)).createAsync();
+    }
+
+    @Test
+    public void preWarmTopicsTest() throws PulsarClientException {
+        mockClientService.setTopics(Arrays.asList("persistent://public/default/c-partition-0",
+                "persistent://public/default/c-partition-1", "persistent://public/default/d"));
+
+        runner.setProperty(PublishPulsar.TOPIC, "${topic}");
+        runner.setProperty(PublishPulsar.PREWARM_TOPICS, "a, b, public/default/*");
+        runner.run(1, false, true);
+
+        // The partitions of a partitioned topic share a single producer
+        verify(mockClientService.getMockProducerBuilder(), times(4)).createAsync();
+        verify(mockClientService.getMockProducerBuilder(), times(1)).topic("persistent://public/default/c");
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 0);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void preWarmTopicsFailureTest() {
+        final CompletableFuture<Producer<byte[]>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new PulsarClientException("unavailable"));
+        when(mockClientService.getMockProducerBuilder().createAsync()).thenReturn(failed);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.PREWARM_TOPICS, "my-topic");
+        runner.run(1, false, true);
+    }
+
+    @Test
+    public void memoryLimitTest() throws UnsupportedEncodingException, PulsarClientException {
+        final PulsarMemoryLimiter limiter = new PulsarMemoryLimiter(100);
+        mockClientService.setMemoryLimiter(limiter);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.enqueue("some content".getBytes("UTF-8"));
+
+        // The FlowFile stays queued while the memory is held by others
+        limiter.reserve(100);
+        runner.run(1, false, true);
+        runner.assertQueueNotEmpty();
+        verify(mockClientService.getMockProducer(), times(0)).send(Matchers.any(byte[].class));
+
+        // The memory of the message is released once it has been sent
+        limiter.release(100);
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+        verify(mockClientService.getMockProducer(), times(1)).send("some content".getBytes());
+        assertEquals(0, limiter.getUsed());
+    }
+
+    @Test
+    public void statsTest() throws UnsupportedEncodingException, PulsarClientException {
+        final PulsarClientStats stats = new PulsarClientStats();
+        mockClientService.setStats(stats);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        final List<TopicStats> topics = stats.getTopicStats();
+        assertEquals(1, topics.size());
+        assertEquals(1, topics.get(0).getProducers());
+        assertEquals(Long.valueOf(1), topics.get(0).getCounters().get(PulsarClientStats.MESSAGES_SENT));
+        assertEquals(Long.valueOf(12), topics.get(0).getCounters().get(PulsarClientStats.BYTES_SENT));
+    }
+
+    @Test
+    public void stageTimingsTest() throws UnsupportedEncodingException, PulsarClientException {
+        final PulsarClientStats stats = new PulsarClientStats();
+        mockClientService.setStats(stats);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, "\n");
+        runner.enqueue("one\ntwo\nthree".getBytes("UTF-8"));
+        runner.enqueue("four".getBytes("UTF-8"));
+
+        // The timings of a trigger are reported by the next one
+        runner.run(2);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 2);
+
+        final long sendNanos = runner.getCounterValue(PulsarClientStats.PUBLISH_SEND_NANOS);
+        assertTrue(sendNanos > 0);
+        assertTrue(runner.getCounterValue(PulsarClientStats.PUBLISH_READ_NANOS) > 0);
+        assertTrue(runner.getCounterValue(PulsarClientStats.PUBLISH_SERIALIZE_NANOS) > 0);
+
+        final Map<String, Long> counters = stats.getTopicStats().get(0).getCounters();
+        assertEquals(Long.valueOf(sendNanos), counters.get(PulsarClientStats.PUBLISH_SEND_NANOS));
+    }
+
+    @Test
+    public void chunkedFlowFileTest() throws UnsupportedEncodingException, PulsarClientException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_CHUNK_SIZE, "4 B");
+
+        runner.enqueue("0123456789".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        final MockFlowFile outFile = runner.getFlowFilesForRelationship(PublishPulsar.REL_SUCCESS).get(0);
+        outFile.assertAttributeEquals(PublishPulsar.MSG_COUNT, "3");
+
+        // Every chunk is sent with the chunk properties, rather than as a plain message
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).properties(anyMap());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).send();
+        verify(mockClientService.getMockProducer(), times(0)).send(Matchers.any(byte[].class));
+
+        // All chunks are keyed by a chunk id of their own, so they land on the same partition
+        final ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).key(keys.capture());
+        assertEquals(1, new HashSet<>(keys.getAllValues()).size());
+        assertNotEquals(outFile.getAttribute(CoreAttributes.UUID.key()), keys.getValue());
+    }
+
+    @Test
+    public void chunkSizeAndDemarcatorTest() {
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_CHUNK_SIZE, "4 B");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, "\n");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void messageTooLargeTest() throws UnsupportedEncodingException, PulsarClientException {
+        final String demarcator = "\n";
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, demarcator);
+        runner.setProperty(PublishPulsar.MAX_MESSAGE_SIZE, "8 B");
+
+        runner.enqueue(("small" + demarcator + "much too large" + demarcator).getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_FAILURE);
+        verify(mockClientService.getMockProducer(), times(1)).send("small".getBytes());
+    }
 }
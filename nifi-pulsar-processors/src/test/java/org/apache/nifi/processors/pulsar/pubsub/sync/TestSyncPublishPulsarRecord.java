@@ -17,10 +17,12 @@
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
@@ -30,6 +32,7 @@ import org.apache.nifi.util.MockFlowFile;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 
 public class TestSyncPublishPulsarRecord extends TestPublishPulsarRecord {
@@ -134,4 +137,160 @@ public class TestSyncPublishPulsarRecord extends TestPublishPulsarRecord {
 
         verify(mockClientService.getMockProducer(), times(1000)).send("\"Mary Jane\",\"32\"\n".getBytes());
     }
+
+    @Test
+    public void testParallelSerializationPreservesOrder() throws PulsarClientException {
+        StringBuilder sb = new StringBuilder();
+
+        for (int idx = 0; idx < 1000; idx++) {
+            sb.append("Person ").append(idx).append(", ").append(idx % 100).append("\n");
+        }
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.SERIALIZE_THREADS, "4");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS);
+        assertEquals(1, results.size());
+        results.get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "1000");
+
+        // The messages are sent in the order of the records, even though they were serialized concurrently
+        InOrder inOrder = inOrder(mockClientService.getMockProducer());
+        for (int idx = 0; idx < 1000; idx++) {
+            inOrder.verify(mockClientService.getMockProducer()).send(("\"Person " + idx + "\",\"" + (idx % 100) + "\"\n").getBytes());
+        }
+    }
+
+    @Test
+    public void testPartialFailure() throws PulsarClientException {
+        when(mockClientService.getMockProducer().send("\"John Doe\",\"35\"\n".getBytes())).thenThrow(PulsarClientException.class);
+
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, 35").append("\n")
+                                              .append("Busta Move, 26").append("\n");
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+
+        // The original FlowFile is routed to success, as the record before the failed one was sent
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS);
+        assertEquals(1, results.size());
+        results.get(0).assertContentEquals(sb.toString());
+        results.get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "1");
+
+        // Sending stops at the failed record, and a retry of the copy routed to failure starts at it
+        List<MockFlowFile> failures = runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_FAILURE);
+        assertEquals(1, failures.size());
+        failures.get(0).assertContentEquals(sb.toString());
+        failures.get(0).assertAttributeEquals(PublishPulsarRecord.RECORD_OFFSET, "1");
+
+        verify(mockClientService.getMockProducer(), times(0)).send("\"Busta Move\",\"26\"\n".getBytes());
+    }
+
+    @Test
+    public void testRetryPartialFailure() throws PulsarClientException {
+        when(mockClientService.getMockProducer().send("\"Busta Move\",\"26\"\n".getBytes())).thenThrow(PulsarClientException.class);
+
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, 35").append("\n")
+                                              .append("Busta Move, 26").append("\n");
+
+        // A retry that fails again continues from the offset of the previous attempt
+        runner.enqueue(sb.toString(), Collections.singletonMap(PublishPulsarRecord.RECORD_OFFSET, "1"));
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "1");
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_FAILURE).get(0).assertAttributeEquals(PublishPulsarRecord.RECORD_OFFSET, "2");
+        verify(mockClientService.getMockProducer(), times(0)).send("\"Mary Jane\",\"32\"\n".getBytes());
+    }
+
+    @Test
+    public void testPartialRead() throws PulsarClientException {
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, 35").append("\n")
+                                              .append("Malformed").append("\n")
+                                              .append("Busta Move, 26").append("\n");
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+
+        // The original FlowFile is routed to success, since the records before the malformed one were sent
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS);
+        assertEquals(1, results.size());
+        results.get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "2");
+
+        // A retry of the copy that is routed to failure starts at the first record that was not sent
+        List<MockFlowFile> failures = runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_FAILURE);
+        assertEquals(1, failures.size());
+        failures.get(0).assertContentEquals(sb.toString());
+        failures.get(0).assertAttributeEquals(PublishPulsarRecord.RECORD_OFFSET, "2");
+
+        verify(mockClientService.getMockProducer(), times(2)).send(Matchers.any(byte[].class));
+    }
+
+    @Test
+    public void testPartialEventTimeFailure() throws PulsarClientException {
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, unknown").append("\n")
+                                              .append("Busta Move, 26").append("\n");
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.EVENT_TIME_FIELD, "/age");
+        runner.run();
+
+        runner.assertTransferCount(PublishPulsarRecord.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "1");
+        runner.assertTransferCount(PublishPulsarRecord.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_FAILURE).get(0).assertAttributeEquals(PublishPulsarRecord.RECORD_OFFSET, "1");
+    }
+
+    @Test
+    public void testResumeFromOffset() throws PulsarClientException {
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, 35").append("\n")
+                                              .append("Busta Move, 26").append("\n");
+
+        runner.enqueue(sb.toString(), Collections.singletonMap(PublishPulsarRecord.RECORD_OFFSET, "2"));
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        // The records that a previous attempt sent are skipped
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "1");
+        verify(mockClientService.getMockProducer(), times(1)).send(Matchers.any(byte[].class));
+        verify(mockClientService.getMockProducer(), times(1)).send("\"Busta Move\",\"26\"\n".getBytes());
+    }
+
+    @Test
+    public void testFieldPaths() throws PulsarClientException {
+        StringBuilder sb = new StringBuilder().append("Mary Jane, 32").append("\n")
+                                              .append("John Doe, 35").append("\n");
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.MESSAGE_KEY_FIELD, "/name");
+        runner.setProperty(PublishPulsarRecord.EVENT_TIME_FIELD, "/age");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        // Each message is given the key and event time of its own record
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).key("Mary Jane");
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).eventTime(32L);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).key("John Doe");
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).eventTime(35L);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+    }
+
+    @Test
+    public void testInvalidFieldPath() {
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.MESSAGE_KEY_FIELD, "name");
+        runner.assertNotValid();
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.stream.io.util.StreamDemarcator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares DemarcatorTokenizer with StreamDemarcator, the way PublishPulsar uses them, on 1 GB of
+ * newline delimited records. The input is generated on the fly, so the benchmark does not need 1 GB of heap.
+ * <p>
+ * Run with: java -cp (test classpath) org.apache.nifi.processors.pulsar.util.DemarcatorTokenizerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DemarcatorTokenizerBenchmark {
+
+    private static final long INPUT_SIZE = 1024L * 1024L * 1024L;
+
+    @Param({"\n", "\r\n"})
+    public String demarcator;
+
+    @Param({"100", "1000"})
+    public int recordSize;
+
+    private byte[] demarcatorBytes;
+    private byte[] record;
+
+    @Setup
+    public void setup() {
+        demarcatorBytes = demarcator.getBytes(StandardCharsets.UTF_8);
+        record = new byte[recordSize];
+
+        for (int i = 0; i < recordSize - demarcatorBytes.length; i++) {
+            record[i] = (byte) ('a' + (i % 26));
+        }
+        System.arraycopy(demarcatorBytes, 0, record, recordSize - demarcatorBytes.length, demarcatorBytes.length);
+    }
+
+    @Benchmark
+    public void streamDemarcator(Blackhole blackhole) throws IOException {
+        byte[] token;
+
+        try (StreamDemarcator demarcator = new StreamDemarcator(new RepeatingInputStream(record, INPUT_SIZE), demarcatorBytes, Integer.MAX_VALUE)) {
+            while ((token = demarcator.nextToken()) != null) {
+                blackhole.consume(token);
+            }
+        }
+    }
+
+    @Benchmark
+    public void demarcatorTokenizer(Blackhole blackhole) throws IOException {
+        try (DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(new RepeatingInputStream(record, INPUT_SIZE), demarcatorBytes, Integer.MAX_VALUE)) {
+            while (tokenizer.next()) {
+                blackhole.consume(tokenizer.copyToken());
+            }
+        }
+    }
+
+    @Benchmark
+    public void demarcatorTokenizerViews(Blackhole blackhole) throws IOException {
+        try (DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(new RepeatingInputStream(record, INPUT_SIZE), demarcatorBytes, Integer.MAX_VALUE)) {
+            while (tokenizer.next()) {
+                blackhole.consume(tokenizer.getTokenLength());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(DemarcatorTokenizerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * Produces the given record over and over again, until the given number of bytes has been read.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] record;
+        private long remaining;
+        private int position;
+
+        RepeatingInputStream(byte[] record, long size) {
+            this.record = record;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            final int b = record[position] & 0xFF;
+            position = (position + 1) % record.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            final int toRead = (int) Math.min(len, remaining);
+            int read = 0;
+            while (read < toRead) {
+                final int count = Math.min(toRead - read, record.length - position);
+                System.arraycopy(record, position, b, off + read, count);
+                position = (position + count) % record.length;
+                read += count;
+            }
+            remaining -= toRead;
+            return toRead;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.nifi.stream.io.exception.TokenTooLargeException;
+import org.apache.nifi.stream.io.util.StreamDemarcator;
+import org.junit.Test;
+
+public class TestDemarcatorTokenizer {
+
+    @Test
+    public void singleByteDemarcatorTest() throws IOException {
+        assertEquals(list("a", "bb", "ccc"), tokenize("a\nbb\nccc", "\n", 1024, 16));
+        assertEquals(list("a", "b"), tokenize("\na\n\n\nb\n", "\n", 1024, 16));
+        assertEquals(list(), tokenize("", "\n", 1024, 16));
+        assertEquals(list(), tokenize("\n\n", "\n", 1024, 16));
+    }
+
+    @Test
+    public void multiByteDemarcatorTest() throws IOException {
+        assertEquals(list("a", "b"), tokenize("a\r\n\r\nb", "\r\n", 1024, 16));
+        assertEquals(list("a", "b", "X"), tokenize("aXYXYbXYX", "XY", 1024, 16));
+        assertEquals(list("ab", "d", "d"), tokenize("ababcabcdabcd", "abc", 1024, 16));
+    }
+
+    @Test
+    public void noDemarcatorTest() throws IOException {
+        assertEquals(list("some content\n"), tokenize("some content\n", null, 1024, 4));
+        assertEquals(list(), tokenize("", null, 1024, 4));
+    }
+
+    @Test
+    public void tokensSpanningBlocksTest() throws IOException {
+        // A block size of 1 forces every token and demarcator to be split across reads
+        assertEquals(list("hello", "world"), tokenize("hello<>world<>", "<>", 1024, 1));
+        assertEquals(list("hello", "world"), tokenize("hello\nworld", "\n", 1024, 3));
+    }
+
+    @Test(expected = TokenTooLargeException.class)
+    public void tokenTooLargeTest() throws IOException {
+        tokenize("abc\nabcdef\n", "\n", 4, 2);
+    }
+
+    @Test(expected = TokenTooLargeException.class)
+    public void lastTokenTooLargeTest() throws IOException {
+        tokenize("abcdef", null, 4, 16);
+    }
+
+    @Test
+    public void maxSizeTokenTest() throws IOException {
+        assertEquals(list("abcd", "efgh"), tokenize("abcd||efgh", "||", 4, 2));
+    }
+
+    @Test
+    public void tokenViewTest() throws IOException {
+        try (DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(
+                new ByteArrayInputStream("first,second".getBytes(StandardCharsets.UTF_8)), ",".getBytes(StandardCharsets.UTF_8), 1024)) {
+            assertTrue(tokenizer.next());
+            assertEquals("first", new String(tokenizer.getBuffer(), tokenizer.getTokenOffset(), tokenizer.getTokenLength(), StandardCharsets.UTF_8));
+            assertTrue(tokenizer.next());
+            assertEquals("second", new String(tokenizer.getBuffer(), tokenizer.getTokenOffset(), tokenizer.getTokenLength(), StandardCharsets.UTF_8));
+            assertFalse(tokenizer.next());
+        }
+    }
+
+    /*
+     * StreamDemarcator does not backtrack after a partial match, so it misses the demarcator in "\r\r\n".
+     */
+    @Test
+    public void partialMatchTest() throws IOException {
+        assertEquals(list("a\r", "b"), tokenize("a\r\r\nb", "\r\n", 1024, 16));
+        assertEquals(list("a\r\r\nb"), demarcate("a\r\r\nb", "\r\n"));
+    }
+
+    /*
+     * Verify that the tokens are the same as the ones found by a plain String search on random input.
+     */
+    @Test
+    public void randomContentTest() throws IOException {
+        final Random random = new Random(42);
+        final String[] demarcators = {"\n", "\r\n", "aba", "ab"};
+        final char[] alphabet = {'a', 'b', '\r', '\n', 'c'};
+
+        for (int run = 0; run < 500; run++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(200);
+            for (int i = 0; i < length; i++) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+
+            final String demarcator = demarcators[run % demarcators.length];
+            final int blockSize = 1 + random.nextInt(20);
+            assertEquals(split(sb.toString(), demarcator), tokenize(sb.toString(), demarcator, 1024, blockSize));
+        }
+    }
+
+    private static List<String> tokenize(String content, String demarcator, int maxTokenSize, int blockSize) throws IOException {
+        final List<String> tokens = new ArrayList<>();
+
+        try (DemarcatorTokenizer tokenizer = new DemarcatorTokenizer(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                demarcator == null ? null : demarcator.getBytes(StandardCharsets.UTF_8), maxTokenSize, blockSize)) {
+            while (tokenizer.next()) {
+                tokens.add(new String(tokenizer.copyToken(), StandardCharsets.UTF_8));
+            }
+        }
+        return tokens;
+    }
+
+    private static List<String> demarcate(String content, String demarcator) throws IOException {
+        final List<String> tokens = new ArrayList<>();
+        byte[] token;
+
+        try (StreamDemarcator streamDemarcator = new StreamDemarcator(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                demarcator.getBytes(StandardCharsets.UTF_8), 1024)) {
+            while ((token = streamDemarcator.nextToken()) != null) {
+                tokens.add(new String(token, StandardCharsets.UTF_8));
+            }
+        }
+        return tokens;
+    }
+
+    private static List<String> split(String content, String demarcator) {
+        final List<String> tokens = new ArrayList<>();
+        int start = 0;
+        int idx;
+
+        while ((idx = content.indexOf(demarcator, start)) >= 0) {
+            if (idx > start) {
+                tokens.add(content.substring(start, idx));
+            }
+            start = idx + demarcator.length();
+        }
+        if (start < content.length()) {
+            tokens.add(content.substring(start));
+        }
+        return tokens;
+    }
+
+    private static List<String> list(String... values) {
+        final List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOrderedTaskPipeline {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void preservesOrderTest() throws IOException {
+        final List<Integer> results = new ArrayList<>();
+        final OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<>(executor, 8, results::add);
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            final int delay = random.nextInt(3);
+            pipeline.submit(() -> {
+                Thread.sleep(delay);
+                return value;
+            });
+        }
+        pipeline.finish();
+
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void boundedInFlightTest() throws IOException {
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+
+        final OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<>(executor, 3, result -> consumed.incrementAndGet());
+
+        for (int i = 0; i < 50; i++) {
+            pipeline.submit(() -> {
+                final int ahead = started.incrementAndGet() - consumed.get();
+                maxAhead.accumulateAndGet(ahead, Math::max);
+                return 0;
+            });
+        }
+        pipeline.finish();
+
+        assertEquals(50, consumed.get());
+        assertTrue("Too many tasks in flight: " + maxAhead.get(), maxAhead.get() <= 3);
+    }
+
+    @Test
+    public void failedTaskTest() throws IOException {
+        final OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<>(executor, 2, result -> { });
+
+        pipeline.submit(() -> {
+            throw new IllegalStateException("Unit Test intentionally failing a task");
+        });
+
+        try {
+            pipeline.finish();
+            fail("Expected the failure of the task to be rethrown");
+        } catch (ProcessException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.junit.Test;
+
+public class TestRecordFieldPath {
+
+    private static final RecordSchema CUSTOMER_SCHEMA = new SimpleRecordSchema(Collections.singletonList(
+            new RecordField("id", RecordFieldType.STRING.getDataType())));
+
+    private static final RecordSchema ORDER_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("customer", RecordFieldType.RECORD.getRecordDataType(CUSTOMER_SCHEMA)),
+            new RecordField("headers", RecordFieldType.MAP.getMapDataType(RecordFieldType.STRING.getDataType()))));
+
+    @Test
+    public void nestedRecordTest() {
+        assertEquals("c-1", RecordFieldPath.compile("/customer/id").evaluate(order("c-1", null)));
+    }
+
+    @Test
+    public void mapTest() {
+        assertEquals("eu", RecordFieldPath.compile("/headers/region").evaluate(order("c-1", Collections.singletonMap("region", "eu"))));
+    }
+
+    @Test
+    public void missingFieldTest() {
+        assertNull(RecordFieldPath.compile("/headers/region").evaluate(order("c-1", null)));
+        assertNull(RecordFieldPath.compile("/customer/id/more").evaluate(order("c-1", null)));
+        assertNull(RecordFieldPath.compile("/unknown").evaluate(order("c-1", null)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void relativePathTest() {
+        RecordFieldPath.compile("customer/id");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyFieldNameTest() {
+        RecordFieldPath.compile("/customer//id");
+    }
+
+    @Test
+    public void recordPathSyntaxTest() {
+        // Other RecordPath syntax is rejected, rather than being looked up as a field name
+        for (String path : Arrays.asList("/customer[0]", "/customer/*", "/customer[./id = 'c-1']", "/customer/..", "/customer/.",
+                "substringBefore(/customer/id, '-')")) {
+            try {
+                RecordFieldPath.compile(path);
+                fail("Expected " + path + " to be rejected");
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static Record order(String customerId, Map<String, Object> headers) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("customer", new MapRecord(CUSTOMER_SCHEMA, Collections.singletonMap("id", customerId)));
+        values.put("headers", headers);
+        return new MapRecord(ORDER_SCHEMA, values);
+    }
+}
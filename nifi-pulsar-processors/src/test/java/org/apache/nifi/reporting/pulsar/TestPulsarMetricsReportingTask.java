@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.pulsar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.ControllerServiceLookup;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockPulsarClientService;
+import org.apache.nifi.pulsar.PulsarClientService;
+import org.apache.nifi.pulsar.memory.PulsarMemoryLimiter;
+import org.apache.nifi.pulsar.stats.PulsarClientStats;
+import org.apache.nifi.reporting.ReportingContext;
+import org.apache.nifi.util.MockPropertyValue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestPulsarMetricsReportingTask {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ReportingContext context;
+    private ControllerServiceLookup lookup;
+    private PulsarClientStats stats;
+    private PulsarMemoryLimiter memoryLimiter;
+
+    @Before
+    public void init() {
+        stats = new PulsarClientStats();
+        memoryLimiter = new PulsarMemoryLimiter(1024);
+
+        final MockPulsarClientService<byte[]> service = new MockPulsarClientService<>();
+        service.setStats(stats);
+        service.setMemoryLimiter(memoryLimiter);
+
+        lookup = mock(ControllerServiceLookup.class);
+        when(lookup.getControllerServiceIdentifiers(PulsarClientService.class)).thenReturn(new HashSet<>(Arrays.asList("enabled", "disabled")));
+        when(lookup.isControllerServiceEnabled("enabled")).thenReturn(true);
+        when(lookup.isControllerServiceEnabled("disabled")).thenReturn(false);
+        when(lookup.getControllerService("enabled")).thenReturn(service);
+        when(lookup.getControllerServiceName("enabled")).thenReturn("Pulsar \"Client\"");
+
+        context = mock(ReportingContext.class);
+        when(context.getControllerServiceLookup()).thenReturn(lookup);
+    }
+
+    @Test
+    public void writeMetricsFileTest() throws Exception {
+        final File file = new File(folder.getRoot(), "pulsar.prom");
+        final PropertyValue fileProperty = mock(PropertyValue.class);
+        when(fileProperty.isSet()).thenReturn(true);
+        when(fileProperty.evaluateAttributeExpressions()).thenReturn(fileProperty);
+        when(fileProperty.getValue()).thenReturn(file.getAbsolutePath());
+        when(context.getProperty(PulsarMetricsReportingTask.METRICS_FILE)).thenReturn(fileProperty);
+
+        stats.getCounters("persistent://public/default/my-topic").add(PulsarClientStats.MESSAGES_SENT, 42);
+        memoryLimiter.reserve(100);
+        stats.getPublishLatency("persistent://public/default/my-topic").record(2);
+        stats.getPublishLatency("persistent://public/default/my-topic").record(100);
+
+        final PulsarMetricsReportingTask task = new PulsarMetricsReportingTask();
+        task.onTrigger(context);
+
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.contains("# TYPE pulsar_producers gauge"));
+        assertTrue(lines.contains("pulsar_producers{service=\"Pulsar \\\"Client\\\"\",topic=\"persistent://public/default/my-topic\"} 0"));
+        assertTrue(lines.contains("pulsar_processor_counter{service=\"Pulsar \\\"Client\\\"\","
+                + "topic=\"persistent://public/default/my-topic\",counter=\"messages.sent\"} 42"));
+        assertTrue(lines.contains("pulsar_memory_used_bytes{service=\"Pulsar \\\"Client\\\"\"} 100"));
+        assertTrue(lines.contains("pulsar_memory_limit_bytes{service=\"Pulsar \\\"Client\\\"\"} 1024"));
+
+        // The latencies are written as a cumulative histogram
+        final String latency = "pulsar_publish_latency_ms_%s{service=\"Pulsar \\\"Client\\\"\",topic=\"persistent://public/default/my-topic\"%s} %d";
+        assertTrue(lines.contains("# TYPE pulsar_publish_latency_ms histogram"));
+        assertTrue(lines.contains(String.format(latency, "bucket", ",le=\"1\"", 0)));
+        assertTrue(lines.contains(String.format(latency, "bucket", ",le=\"3\"", 1)));
+        assertTrue(lines.contains(String.format(latency, "bucket", ",le=\"127\"", 2)));
+        assertTrue(lines.contains(String.format(latency, "bucket", ",le=\"+Inf\"", 2)));
+        assertTrue(lines.contains(String.format(latency, "sum", "", 102)));
+        assertTrue(lines.contains(String.format(latency, "count", "", 2)));
+
+        // Only the file itself is left behind in the directory
+        assertTrue(Arrays.equals(new String[] {"pulsar.prom"}, folder.getRoot().list()));
+
+        // Each run replaces the whole file
+        stats.getCounters("persistent://public/default/my-topic").add(PulsarClientStats.MESSAGES_SENT, 8);
+        task.onTrigger(context);
+
+        final List<String> replaced = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(replaced.contains("pulsar_processor_counter{service=\"Pulsar \\\"Client\\\"\","
+                + "topic=\"persistent://public/default/my-topic\",counter=\"messages.sent\"} 50"));
+        assertFalse(replaced.contains("pulsar_processor_counter{service=\"Pulsar \\\"Client\\\"\","
+                + "topic=\"persistent://public/default/my-topic\",counter=\"messages.sent\"} 42"));
+    }
+
+    @Test
+    public void metricsEndpointTest() throws Exception {
+        final int port;
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        final ConfigurationContext configuration = mock(ConfigurationContext.class);
+        when(configuration.getProperty(PulsarMetricsReportingTask.METRICS_ENDPOINT_PORT)).thenReturn(new MockPropertyValue(String.valueOf(port)));
+        when(configuration.getProperty(PulsarMetricsReportingTask.METRICS_ENDPOINT_ADDRESS))
+            .thenReturn(new MockPropertyValue(PulsarMetricsReportingTask.METRICS_ENDPOINT_ADDRESS.getDefaultValue()));
+        when(configuration.getProperty(PulsarMetricsReportingTask.SSL_CONTEXT_SERVICE)).thenReturn(new MockPropertyValue(null));
+        when(context.getProperty(PulsarMetricsReportingTask.METRICS_FILE)).thenReturn(new MockPropertyValue(null));
+
+        final PulsarMetricsReportingTask task = new PulsarMetricsReportingTask();
+        task.startEndpoint(configuration);
+        try {
+            // The endpoint is only reachable from this node by default
+            final InetSocketAddress address = task.getEndpointAddress();
+            assertTrue(address.getAddress().isLoopbackAddress());
+
+            memoryLimiter.reserve(100);
+            task.onTrigger(context);
+
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            try (final InputStream in = connection.getInputStream()) {
+                final String body = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+                assertTrue(body.contains("pulsar_memory_used_bytes{service=\"Pulsar \\\"Client\\\"\"} 100"));
+            }
+        } finally {
+            task.stopEndpoint();
+        }
+    }
+}